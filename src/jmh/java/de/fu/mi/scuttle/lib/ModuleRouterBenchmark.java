@@ -0,0 +1,112 @@
+package de.fu.mi.scuttle.lib;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import de.fu.mi.scuttle.lib.util.PathUtil;
+import de.fu.mi.scuttle.lib.web.ScuttleRequest;
+import de.fu.mi.scuttle.lib.web.ScuttleResponse;
+
+/**
+ * Compares routing a request through the {@link ModuleRouter} with the
+ * previous approach of splitting the path with {@link PathUtil#pathInfo(String)}
+ * and looking up the first segment in a map of mount points.
+ *
+ * Run with <code>mvn -P jmh test-compile exec:exec</code>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ModuleRouterBenchmark {
+
+    private static final class Module implements ScuttleModule {
+        @Override
+        public ScuttleResponse handle(final ScuttleRequest req) {
+            return null;
+        }
+
+        @Override
+        public void done() {
+            // nothing to do
+        }
+
+        @Override
+        public long cacheTag(final ScuttleRequest req) {
+            return 0;
+        }
+
+        @Override
+        public void loaded() {
+            // nothing to do
+        }
+    }
+
+    private static final String[] MOUNT_POINTS = { "users", "courses",
+            "rooms", "styles", "scripts", "libs", "templates", "cache-stats",
+            "api", "api/v2/users" };
+
+    @Param({ "/users/42/profile", "//courses//2014/ws", "/api/v2/users/42",
+            "/unknown/path" })
+    public String path;
+
+    private Map<String, ScuttleModule> modules;
+
+    private ModuleRouter router;
+
+    @Setup
+    public void setUp() {
+        modules = new HashMap<>();
+        for (final String mountPoint : MOUNT_POINTS) {
+            modules.put(mountPoint, new Module());
+        }
+        router = new ModuleRouter(modules);
+    }
+
+    /**
+     * How requests were routed before the {@link ModuleRouter}.
+     */
+    @Benchmark
+    public void pathUtil(final Blackhole blackhole) {
+        final String[] pathInfo = PathUtil.pathInfo(path);
+        blackhole.consume(modules.get(pathInfo[0]));
+        blackhole.consume(pathInfo[1]);
+    }
+
+    @Benchmark
+    public void router(final Blackhole blackhole) {
+        final long route = router.route(path);
+        blackhole.consume(router.module(route));
+        blackhole.consume(ModuleRouter.offset(route));
+    }
+
+    /**
+     * Like {@link #router(Blackhole)}, but a module asks for the remaining
+     * path, which is only created then.
+     */
+    @Benchmark
+    public void routerWithPath(final Blackhole blackhole) {
+        final long route = router.route(path);
+        final ScuttleModule module = router.module(route);
+        blackhole.consume(module);
+        if (module != null) {
+            blackhole.consume(path.substring(ModuleRouter.offset(route)));
+        }
+    }
+}
@@ -0,0 +1,537 @@
+package de.fu.mi.scuttle.lib;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import com.google.common.base.Charsets;
+
+/**
+ * Coordinates the worker thread of an asynchronous request (see
+ * {@link de.fu.mi.scuttle.lib.web.Asynchronous}) with the container, which
+ * times the request out or reports an error on its own.
+ *
+ * Whoever comes first owns the response: the worker, once it starts writing
+ * the response, or the container, if the request times out (or fails) before.
+ * In the latter case the client is answered with
+ * <code>503 Service Unavailable</code> and the worker writes into the void,
+ * see {@link #response()}. The context is completed exactly once. The worker
+ * processes a copy of the request (see {@link DetachedHttpRequest}), since
+ * the container recycles the request once it is completed.
+ *
+ * A timeout which occurs while the worker writes the response waits for the
+ * worker for a while. If the worker does not finish in time, it is cut off:
+ * whatever it writes afterwards is discarded, and the container takes over.
+ */
+final class AsyncCompletion implements AsyncListener {
+
+    private static final int RUNNING = 0;
+    private static final int WRITING = 1;
+    private static final int EXPIRED = 2;
+    private static final int ABANDONED = 3;
+
+    /**
+     * How long a timeout waits for a worker which is writing the response, in
+     * seconds. The container takes over afterwards.
+     */
+    private static final long WRITE_GRACE = 10;
+
+    private final ScuttleBackendServlet parent;
+    private final AsyncContext context;
+    private final HttpServletResponse httpResponse;
+
+    private final AtomicInteger state = new AtomicInteger(RUNNING);
+
+    /**
+     * Held shared by the worker while it touches the actual response, and
+     * exclusively by the container thread when it cuts the worker off.
+     */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * Released when the worker is done, such that a timeout which occurs
+     * while the worker writes the response waits for it.
+     */
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    AsyncCompletion(final ScuttleBackendServlet parent,
+            final AsyncContext context,
+            final HttpServletResponse httpResponse) {
+        this.parent = parent;
+        this.context = context;
+        this.httpResponse = httpResponse;
+    }
+
+    /**
+     * Claims the response for the worker.
+     *
+     * @return false if the request has expired already.
+     */
+    boolean claim() {
+        return state.compareAndSet(RUNNING, WRITING)
+                || state.get() == WRITING;
+    }
+
+    /**
+     * Claims the response and keeps the worker from being cut off until
+     * {@link #exit()} is called.
+     *
+     * @return false if the response belongs to the container.
+     */
+    private boolean enter() {
+        lock.readLock().lock();
+        if (claim()) {
+            return true;
+        }
+        lock.readLock().unlock();
+        return false;
+    }
+
+    private void exit() {
+        lock.readLock().unlock();
+    }
+
+    /**
+     * Determine whether the container has answered the request already.
+     *
+     * @return Whether the request has timed out or failed.
+     */
+    boolean isExpired() {
+        return state.get() == EXPIRED;
+    }
+
+    /**
+     * Retrieve the response the worker writes to. It writes to the actual
+     * response once it has been claimed, and discards everything if the
+     * request has expired.
+     *
+     * @return The response.
+     */
+    HttpServletResponse response() {
+        return new GuardedResponse();
+    }
+
+    /**
+     * Called by the worker when it is done (or when it is not going to run at
+     * all). Completes the context unless the container did so.
+     */
+    void done() {
+        try {
+            if (enter()) {
+                try {
+                    context.complete();
+                } finally {
+                    exit();
+                }
+            }
+        } finally {
+            done.countDown();
+        }
+    }
+
+    private void expire() throws IOException {
+        if (state.compareAndSet(RUNNING, EXPIRED)) {
+            parent.error503(httpResponse, 1);
+            context.complete();
+            return;
+        }
+        // the worker is writing the response, which should not take long,
+        // but the container thread must not be held up indefinitely
+        try {
+            if (!done.await(WRITE_GRACE, TimeUnit.SECONDS)
+                    && lock.writeLock().tryLock(WRITE_GRACE,
+                            TimeUnit.SECONDS)) {
+                try {
+                    state.compareAndSet(WRITING, ABANDONED);
+                } finally {
+                    lock.writeLock().unlock();
+                }
+            }
+        } catch (final InterruptedException exc) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void onTimeout(final AsyncEvent event) throws IOException {
+        expire();
+    }
+
+    @Override
+    public void onError(final AsyncEvent event) throws IOException {
+        expire();
+    }
+
+    @Override
+    public void onComplete(final AsyncEvent event) {
+        // nothing to do
+    }
+
+    @Override
+    public void onStartAsync(final AsyncEvent event) {
+        // nothing to do
+    }
+
+    private static final class NullOutputStream extends ServletOutputStream {
+        @Override
+        public void write(final int b) {
+            // discarded
+        }
+
+        @Override
+        public void write(final byte[] bytes, final int offset,
+                final int length) {
+            // discarded
+        }
+    }
+
+    /**
+     * Writes to the actual output stream as long as the worker owns the
+     * response.
+     */
+    private final class GuardedOutputStream extends ServletOutputStream {
+
+        private final ServletOutputStream out;
+
+        GuardedOutputStream(final ServletOutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            if (enter()) {
+                try {
+                    out.write(b);
+                } finally {
+                    exit();
+                }
+            }
+        }
+
+        @Override
+        public void write(final byte[] bytes, final int offset,
+                final int length) throws IOException {
+            if (enter()) {
+                try {
+                    out.write(bytes, offset, length);
+                } finally {
+                    exit();
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (enter()) {
+                try {
+                    out.flush();
+                } finally {
+                    exit();
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (enter()) {
+                try {
+                    out.close();
+                } finally {
+                    exit();
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes to the actual writer as long as the worker owns the response.
+     */
+    private final class GuardedWriter extends Writer {
+
+        private final Writer out;
+
+        GuardedWriter(final Writer out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(final char[] chars, final int offset,
+                final int length) throws IOException {
+            if (enter()) {
+                try {
+                    out.write(chars, offset, length);
+                } finally {
+                    exit();
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (enter()) {
+                try {
+                    out.flush();
+                } finally {
+                    exit();
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (enter()) {
+                try {
+                    out.close();
+                } finally {
+                    exit();
+                }
+            }
+        }
+    }
+
+    private final class GuardedResponse extends HttpServletResponseWrapper {
+
+        GuardedResponse() {
+            super(httpResponse);
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() throws IOException {
+            if (!enter()) {
+                return new NullOutputStream();
+            }
+            try {
+                return new GuardedOutputStream(super.getOutputStream());
+            } finally {
+                exit();
+            }
+        }
+
+        @Override
+        public PrintWriter getWriter() throws IOException {
+            if (!enter()) {
+                return new PrintWriter(new OutputStreamWriter(
+                        new NullOutputStream(), Charsets.UTF_8));
+            }
+            try {
+                return new PrintWriter(new GuardedWriter(super.getWriter()));
+            } finally {
+                exit();
+            }
+        }
+
+        @Override
+        public void setStatus(final int status) {
+            if (enter()) {
+                try {
+                    super.setStatus(status);
+                } finally {
+                    exit();
+                }
+            }
+        }
+
+        @Override
+        @Deprecated
+        public void setStatus(final int status, final String message) {
+            if (enter()) {
+                try {
+                    super.setStatus(status, message);
+                } finally {
+                    exit();
+                }
+            }
+        }
+
+        @Override
+        public void sendError(final int status) throws IOException {
+            if (enter()) {
+                try {
+                    super.sendError(status);
+                } finally {
+                    exit();
+                }
+            }
+        }
+
+        @Override
+        public void sendError(final int status, final String message)
+                throws IOException {
+            if (enter()) {
+                try {
+                    super.sendError(status, message);
+                } finally {
+                    exit();
+                }
+            }
+        }
+
+        @Override
+        public void sendRedirect(final String location) throws IOException {
+            if (enter()) {
+                try {
+                    super.sendRedirect(location);
+                } finally {
+                    exit();
+                }
+            }
+        }
+
+        @Override
+        public void setHeader(final String name, final String value) {
+            if (enter()) {
+                try {
+                    super.setHeader(name, value);
+                } finally {
+                    exit();
+                }
+            }
+        }
+
+        @Override
+        public void addHeader(final String name, final String value) {
+            if (enter()) {
+                try {
+                    super.addHeader(name, value);
+                } finally {
+                    exit();
+                }
+            }
+        }
+
+        @Override
+        public void setIntHeader(final String name, final int value) {
+            if (enter()) {
+                try {
+                    super.setIntHeader(name, value);
+                } finally {
+                    exit();
+                }
+            }
+        }
+
+        @Override
+        public void addIntHeader(final String name, final int value) {
+            if (enter()) {
+                try {
+                    super.addIntHeader(name, value);
+                } finally {
+                    exit();
+                }
+            }
+        }
+
+        @Override
+        public void setDateHeader(final String name, final long value) {
+            if (enter()) {
+                try {
+                    super.setDateHeader(name, value);
+                } finally {
+                    exit();
+                }
+            }
+        }
+
+        @Override
+        public void addDateHeader(final String name, final long value) {
+            if (enter()) {
+                try {
+                    super.addDateHeader(name, value);
+                } finally {
+                    exit();
+                }
+            }
+        }
+
+        @Override
+        public void addCookie(final Cookie cookie) {
+            if (enter()) {
+                try {
+                    super.addCookie(cookie);
+                } finally {
+                    exit();
+                }
+            }
+        }
+
+        @Override
+        public void setContentType(final String type) {
+            if (enter()) {
+                try {
+                    super.setContentType(type);
+                } finally {
+                    exit();
+                }
+            }
+        }
+
+        @Override
+        public void setCharacterEncoding(final String charset) {
+            if (enter()) {
+                try {
+                    super.setCharacterEncoding(charset);
+                } finally {
+                    exit();
+                }
+            }
+        }
+
+        @Override
+        public void flushBuffer() throws IOException {
+            if (enter()) {
+                try {
+                    super.flushBuffer();
+                } finally {
+                    exit();
+                }
+            }
+        }
+
+        @Override
+        public void reset() {
+            if (enter()) {
+                try {
+                    super.reset();
+                } finally {
+                    exit();
+                }
+            }
+        }
+
+        @Override
+        public void resetBuffer() {
+            if (enter()) {
+                try {
+                    super.resetBuffer();
+                } finally {
+                    exit();
+                }
+            }
+        }
+
+        @Override
+        public void setContentLength(final int length) {
+            if (enter()) {
+                try {
+                    super.setContentLength(length);
+                } finally {
+                    exit();
+                }
+            }
+        }
+    }
+}
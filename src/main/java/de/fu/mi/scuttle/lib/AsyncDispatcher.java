@@ -0,0 +1,133 @@
+package de.fu.mi.scuttle.lib;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.fu.mi.scuttle.lib.web.Asynchronous;
+
+/**
+ * Manages the executors of the modules which are annotated with
+ * {@link Asynchronous}.
+ * 
+ * Every such module gets a bounded executor of its own, which is created the
+ * first time it is needed and lives until the servlet is destroyed.
+ */
+final class AsyncDispatcher {
+
+    private final ConcurrentMap<ScuttleModule, ExecutorService> executors = new ConcurrentHashMap<>();
+
+    private volatile boolean shutdown = false;
+
+    /**
+     * Retrieve the executor for the given module.
+     * 
+     * @param module
+     *            The module.
+     * @return The executor or null if the module is to be processed
+     *         synchronously.
+     */
+    ExecutorService executor(final ScuttleModule module) {
+        final ExecutorService executor = executors.get(module);
+        if (executor != null) {
+            return executor;
+        }
+        final Asynchronous async = module.getClass().getAnnotation(
+                Asynchronous.class);
+        if (async == null || shutdown) {
+            return null;
+        }
+        final ExecutorService newExecutor = newExecutor(module, async);
+        final ExecutorService existing = executors.putIfAbsent(module,
+                newExecutor);
+        if (existing != null) {
+            newExecutor.shutdown();
+            return existing;
+        }
+        return newExecutor;
+    }
+
+    /**
+     * Retrieve the timeout for asynchronous requests to the given module.
+     * 
+     * @param module
+     *            The module.
+     * @return The timeout in milliseconds.
+     */
+    long timeout(final ScuttleModule module) {
+        final Asynchronous async = module.getClass().getAnnotation(
+                Asynchronous.class);
+        return async == null ? 0 : async.timeout();
+    }
+
+    /**
+     * Shuts down all executors. Requests already accepted are still
+     * processed.
+     */
+    void shutdown() {
+        shutdown = true;
+        for (final ExecutorService executor : executors.values()) {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Checks the {@link Asynchronous} annotations of the given modules, such
+     * that a broken one is reported at startup instead of failing the first
+     * request.
+     * 
+     * @param modules
+     *            The modules by mount point.
+     * @return The problems found, empty if there are none.
+     */
+    List<Exception> validate(final Map<String, ScuttleModule> modules) {
+        final List<Exception> problems = new ArrayList<>();
+        for (final ScuttleModule module : modules.values()) {
+            final Asynchronous async = module.getClass().getAnnotation(
+                    Asynchronous.class);
+            if (async != null && async.threads() < 1) {
+                problems.add(new ScuttleConfigurationException(
+                        new IllegalArgumentException(message(module))));
+            }
+        }
+        return problems;
+    }
+
+    private static String message(final ScuttleModule module) {
+        return "@Asynchronous of " + module.getClass().getName()
+                + " must declare at least one thread";
+    }
+
+    private static ExecutorService newExecutor(final ScuttleModule module,
+            final Asynchronous async) {
+        if (async.threads() < 1) {
+            throw new IllegalArgumentException(message(module));
+        }
+        final String name = "scuttle-" + module.getClass().getSimpleName();
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                async.threads(), async.threads(),
+                60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(Math.max(1, async.queueSize())),
+                new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(final Runnable runnable) {
+                        final Thread thread = new Thread(runnable, name + "-"
+                                + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+}
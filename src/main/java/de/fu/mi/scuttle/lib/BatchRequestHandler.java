@@ -0,0 +1,716 @@
+package de.fu.mi.scuttle.lib;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+import org.json.JSONWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CharStreams;
+
+import de.fu.mi.scuttle.lib.ScuttleBackendServlet.RequestHandler;
+
+/**
+ * Executes many module calls in a single HTTP round trip.
+ *
+ * The batch mount point (<code>batch</code> by default, see the
+ * <code>batch</code> section of the configuration) accepts a JSON array of
+ * sub requests, either in the parameter <code>requests</code> or as the body
+ * of a request with the content type <code>application/json</code>:
+ *
+ * <pre>
+ * [ { "id": "me", "mountPoint": "users", "path": "me", "params": { "full": true } },
+ *   { "mountPoint": "news", "method": "POST", "params": { "ids": [1, 2] } } ]
+ * </pre>
+ *
+ * The sub requests are processed concurrently by the ordinary
+ * {@link RequestHandlerImpl} pipeline (including login, privilege checks,
+ * bulkheads and the response cache) and share the session of the batch
+ * request. The result is a JSON array which is streamed as the sub requests
+ * finish, hence the items appear in the order of completion:
+ *
+ * <pre>
+ * [ { "id": 1, "status": 200, "contentType": "application/json", "body": { ... } },
+ *   { "id": "me", "status": 403, "contentType": "text/plain", "body": "403 Forbidden" } ]
+ * </pre>
+ *
+ * The <code>id</code> of an item is the id given in the sub request or its
+ * index. Sub requests that do not finish in time are reported with the status
+ * 504 and cancelled. Cookies set by sub requests are dropped.
+ *
+ * Text bodies (of a textual content type, or without a content type but
+ * valid in the character encoding of the response) are embedded as strings.
+ * Other bodies, like PDF documents or images, are embedded base64 encoded and
+ * the item is marked with <code>"encoding": "base64"</code>.
+ */
+final class BatchRequestHandler {
+
+    /**
+     * The headers of the batch request which are not passed on to the sub
+     * requests. The results are embedded into the batch response, hence they
+     * must neither be compressed individually nor be answered with
+     * <code>304 Not Modified</code> (and an empty body) as a conditional
+     * request for a single response would.
+     */
+    private static final Set<String> OMITTED_HEADERS = Collections
+            .unmodifiableSet(new HashSet<>(Arrays.asList("accept-encoding",
+                    "if-none-match", "if-modified-since", "if-match",
+                    "if-unmodified-since", "if-range")));
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final ScuttleBackendServlet parent;
+
+    private final String mountPoint;
+
+    private final int maxRequests;
+
+    private final long timeout;
+
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * Creates a batch request handler.
+     *
+     * @param parent
+     *            The servlet.
+     * @param config
+     *            The <code>batch</code> section of the configuration, may be
+     *            null.
+     */
+    BatchRequestHandler(final ScuttleBackendServlet parent,
+            final JSONObject config) {
+        final JSONObject c = config == null ? new JSONObject() : config;
+        this.parent = parent;
+        this.mountPoint = trimSlashes(c.optString("mountPoint", "batch"));
+        this.maxRequests = Math.max(1, c.optInt("maxRequests", 32));
+        this.timeout = Math.max(1, c.optLong("timeout", 30000));
+
+        final int threads = Math.max(1, c.optInt("threads", 8));
+        final AtomicInteger count = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 60,
+                TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(Math.max(1,
+                        c.optInt("queueSize", 64))), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable runnable) {
+                        final Thread thread = new Thread(runnable,
+                                "scuttle-batch-" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Checks whether the given path denotes the batch mount point.
+     *
+     * @param pathInfo
+     *            The path info of the request, may be null.
+     */
+    boolean matches(final String pathInfo) {
+        return !mountPoint.isEmpty() && pathInfo != null
+                && mountPoint.equals(trimSlashes(pathInfo));
+    }
+
+    /**
+     * Stops accepting sub requests.
+     */
+    void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * Handles a batch request.
+     *
+     * @param handler
+     *            The handler the sub requests are dispatched to.
+     * @param httpRequest
+     *            The batch request.
+     * @param httpResponse
+     *            The response the results are streamed to.
+     */
+    void handleRequest(final RequestHandler handler,
+            final HttpServletRequest httpRequest,
+            final HttpServletResponse httpResponse) {
+        final JSONArray requests;
+        try {
+            requests = readRequests(httpRequest);
+        } catch (final IOException | JSONException exc) {
+            parent.error400(httpResponse, exc.getMessage());
+            return;
+        }
+        if (requests == null) {
+            parent.error400(httpResponse, "No requests given.");
+            return;
+        }
+        if (requests.length() > maxRequests) {
+            parent.error400(httpResponse, "At most " + maxRequests
+                    + " requests are allowed in a batch.");
+            return;
+        }
+        // resolved on the container thread, the sub requests share it
+        final HttpSession session = httpRequest.getSession();
+
+        final CompletionService<Result> completion = new ExecutorCompletionService<>(
+                executor);
+        final Map<Future<Result>, Object> pending = new LinkedHashMap<>();
+        final List<Result> failed = new ArrayList<>();
+        for (int i = 0; i < requests.length(); i++) {
+            final JSONObject item = requests.optJSONObject(i);
+            final Object id = item == null ? i : item.opt("id") == null ? i
+                    : item.opt("id");
+            final DetachedHttpRequest subRequest;
+            try {
+                subRequest = subRequest(httpRequest, session, item);
+            } catch (final JSONException exc) {
+                failed.add(new Result(id, 400, exc.getMessage()));
+                continue;
+            }
+            try {
+                pending.put(completion.submit(new Callable<Result>() {
+                    @Override
+                    public Result call() {
+                        final SubResponse subResponse = new SubResponse();
+                        handler.handleRequest(subRequest, subResponse);
+                        return new Result(id, subResponse);
+                    }
+                }), id);
+            } catch (final RejectedExecutionException exc) {
+                failed.add(new Result(id, 503, "503 Service Unavailable"));
+            }
+        }
+
+        httpResponse.setContentType("application/json");
+        httpResponse.setCharacterEncoding("UTF-8");
+        try {
+            final Writer writer = httpResponse.getWriter();
+            final JSONWriter json = new JSONWriter(writer).array();
+            for (final Result result : failed) {
+                result.write(json);
+            }
+            writer.flush();
+
+            final long deadline = System.nanoTime()
+                    + TimeUnit.MILLISECONDS.toNanos(timeout);
+            while (!pending.isEmpty()) {
+                final Future<Result> future = completion.poll(deadline
+                        - System.nanoTime(), TimeUnit.NANOSECONDS);
+                if (future == null) {
+                    break;
+                }
+                final Object id = pending.remove(future);
+                Result result;
+                try {
+                    result = future.get();
+                } catch (final ExecutionException exc) {
+                    logger.warn("Sub request " + id + " failed.",
+                            exc.getCause());
+                    result = new Result(id, 500, String.valueOf(exc
+                            .getCause()));
+                }
+                result.write(json);
+                writer.flush();
+            }
+            for (final Map.Entry<Future<Result>, Object> entry : pending
+                    .entrySet()) {
+                // a sub request that is still queued is not started at all,
+                // a running one is interrupted (it refers to copies of the
+                // batch request only, hence it does no harm if it goes on)
+                entry.getKey().cancel(true);
+                new Result(entry.getValue(), 504, "504 Gateway Timeout")
+                        .write(json);
+            }
+            json.endArray();
+            writer.flush();
+        } catch (final InterruptedException exc) {
+            Thread.currentThread().interrupt();
+        } catch (final IOException | JSONException exc) {
+            // the client most likely went away
+            logger.debug("Could not write batch response.", exc);
+        }
+    }
+
+    private static JSONArray readRequests(final HttpServletRequest httpRequest)
+            throws IOException, JSONException {
+        final String requests = httpRequest.getParameter("requests");
+        if (requests != null) {
+            return new JSONArray(requests);
+        }
+        final String contentType = httpRequest.getContentType();
+        if (contentType != null && contentType.startsWith("application/json")) {
+            return new JSONArray(CharStreams.toString(httpRequest.getReader()));
+        }
+        return null;
+    }
+
+    private DetachedHttpRequest subRequest(
+            final HttpServletRequest httpRequest,
+            final HttpSession session, final JSONObject item)
+            throws JSONException {
+        if (item == null) {
+            throw new JSONException("A sub request must be an object.");
+        }
+        final String target = trimSlashes(item.getString("mountPoint"));
+        if (target.isEmpty() || target.equals(mountPoint)) {
+            throw new JSONException("Invalid mount point: " + target);
+        }
+        final String path = trimSlashes(item.optString("path", ""));
+        final String pathInfo = path.isEmpty() ? "/" + target : "/" + target
+                + "/" + path;
+        final String method = item.optString("method",
+                httpRequest.getMethod()).toUpperCase();
+
+        final Map<String, String[]> params = new HashMap<>();
+        final JSONObject jsonParams = item.optJSONObject("params");
+        if (jsonParams != null) {
+            for (final Iterator<?> it = jsonParams.keys(); it.hasNext();) {
+                final String key = (String) it.next();
+                final Object value = jsonParams.get(key);
+                if (value instanceof JSONArray) {
+                    final JSONArray values = (JSONArray) value;
+                    final String[] strings = new String[values.length()];
+                    for (int i = 0; i < strings.length; i++) {
+                        strings[i] = values.getString(i);
+                    }
+                    params.put(key, strings);
+                } else if (value != null && value != JSONObject.NULL) {
+                    params.put(key, new String[] { value.toString() });
+                }
+            }
+        }
+        return new DetachedHttpRequest(httpRequest, session, pathInfo, null,
+                method, params, OMITTED_HEADERS);
+    }
+
+    private static String trimSlashes(final String path) {
+        int from = 0;
+        int to = path.length();
+        while (from < to && path.charAt(from) == '/') {
+            from++;
+        }
+        while (to > from && path.charAt(to - 1) == '/') {
+            to--;
+        }
+        return path.substring(from, to);
+    }
+
+    /**
+     * The outcome of a sub request.
+     */
+    private static final class Result {
+
+        private final Object id;
+        private final int status;
+        private final String contentType;
+        private final Map<String, String> headers;
+        private final Object body;
+        private final String encoding;
+
+        Result(final Object id, final int status, final String message) {
+            this.id = id;
+            this.status = status;
+            this.contentType = "text/plain";
+            this.headers = Collections.emptyMap();
+            this.body = message;
+            this.encoding = null;
+        }
+
+        Result(final Object id, final SubResponse response) {
+            this.id = id;
+            this.status = response.getStatus();
+            this.contentType = response.getContentType();
+            this.headers = response.headers;
+            this.body = response.body();
+            this.encoding = response.isBase64() ? "base64" : null;
+        }
+
+        void write(final JSONWriter json) throws JSONException {
+            json.object();
+            json.key("id").value(id);
+            json.key("status").value(status);
+            if (contentType != null) {
+                json.key("contentType").value(contentType);
+            }
+            if (!headers.isEmpty()) {
+                json.key("headers").value(new JSONObject(headers));
+            }
+            if (encoding != null) {
+                json.key("encoding").value(encoding);
+            }
+            json.key("body").value(body);
+            json.endObject();
+        }
+    }
+
+    /**
+     * Captures the response to a sub request instead of writing to the batch
+     * response. It does not refer to the batch response at all, such that a
+     * sub request which is still running after the batch response is done
+     * can not touch it.
+     */
+    private static final class SubResponse implements HttpServletResponse {
+
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final Map<String, String> headers = new TreeMap<>(
+                String.CASE_INSENSITIVE_ORDER);
+        private int status = 200;
+        private String contentType;
+        private String characterEncoding;
+        private ServletOutputStream outputStream;
+        private PrintWriter writer;
+        private Locale locale = Locale.getDefault();
+        private boolean base64 = false;
+
+        @Override
+        public void setStatus(final int status) {
+            this.status = status;
+        }
+
+        @Override
+        @Deprecated
+        public void setStatus(final int status, final String message) {
+            this.status = status;
+        }
+
+        @Override
+        public int getStatus() {
+            return status;
+        }
+
+        @Override
+        public void sendError(final int status) {
+            this.status = status;
+        }
+
+        @Override
+        public void sendError(final int status, final String message) {
+            this.status = status;
+        }
+
+        @Override
+        public void sendRedirect(final String location) {
+            status = 302;
+            headers.put("Location", location);
+        }
+
+        @Override
+        public void setHeader(final String name, final String value) {
+            if ("Content-Type".equalsIgnoreCase(name)) {
+                setContentType(value);
+            } else if (value == null) {
+                headers.remove(name);
+            } else {
+                headers.put(name, value);
+            }
+        }
+
+        @Override
+        public void addHeader(final String name, final String value) {
+            final String existing = headers.get(name);
+            setHeader(name, existing == null ? value : existing + ", "
+                    + value);
+        }
+
+        @Override
+        public void setIntHeader(final String name, final int value) {
+            setHeader(name, String.valueOf(value));
+        }
+
+        @Override
+        public void addIntHeader(final String name, final int value) {
+            addHeader(name, String.valueOf(value));
+        }
+
+        @Override
+        public void setDateHeader(final String name, final long date) {
+            setHeader(name, String.valueOf(date));
+        }
+
+        @Override
+        public void addDateHeader(final String name, final long date) {
+            addHeader(name, String.valueOf(date));
+        }
+
+        @Override
+        public boolean containsHeader(final String name) {
+            return headers.containsKey(name);
+        }
+
+        @Override
+        public String getHeader(final String name) {
+            return headers.get(name);
+        }
+
+        @Override
+        public Collection<String> getHeaders(final String name) {
+            final String value = headers.get(name);
+            return value == null ? Collections.<String> emptyList()
+                    : Collections.singletonList(value);
+        }
+
+        @Override
+        public Collection<String> getHeaderNames() {
+            return new ArrayList<>(headers.keySet());
+        }
+
+        @Override
+        public String encodeURL(final String url) {
+            return url;
+        }
+
+        @Override
+        public String encodeRedirectURL(final String url) {
+            return url;
+        }
+
+        @Override
+        @Deprecated
+        public String encodeUrl(final String url) {
+            return url;
+        }
+
+        @Override
+        @Deprecated
+        public String encodeRedirectUrl(final String url) {
+            return url;
+        }
+
+        @Override
+        public void setLocale(final Locale locale) {
+            this.locale = locale;
+        }
+
+        @Override
+        public Locale getLocale() {
+            return locale;
+        }
+
+        @Override
+        public void setBufferSize(final int size) {
+            // the body is buffered entirely
+        }
+
+        @Override
+        public int getBufferSize() {
+            return bytes.size();
+        }
+
+        @Override
+        public void setContentType(final String contentType) {
+            this.contentType = contentType;
+            if (contentType != null) {
+                final int charset = contentType.indexOf("charset=");
+                if (charset >= 0) {
+                    characterEncoding = contentType.substring(charset + 8)
+                            .trim();
+                }
+            }
+        }
+
+        @Override
+        public String getContentType() {
+            return contentType;
+        }
+
+        @Override
+        public void setCharacterEncoding(final String characterEncoding) {
+            this.characterEncoding = characterEncoding;
+        }
+
+        @Override
+        public String getCharacterEncoding() {
+            return characterEncoding == null ? "UTF-8" : characterEncoding;
+        }
+
+        @Override
+        public void setContentLength(final int length) {
+            // the body is embedded into the batch response
+        }
+
+        @Override
+        public void addCookie(final Cookie cookie) {
+            // the batch response may already be committed
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() {
+            if (outputStream == null) {
+                outputStream = new ServletOutputStream() {
+                    @Override
+                    public void write(final int b) {
+                        bytes.write(b);
+                    }
+
+                    @Override
+                    public void write(final byte[] b, final int off,
+                            final int len) {
+                        bytes.write(b, off, len);
+                    }
+                };
+            }
+            return outputStream;
+        }
+
+        @Override
+        public PrintWriter getWriter() {
+            if (writer == null) {
+                writer = new PrintWriter(new OutputStreamWriter(
+                        getOutputStream(), charset()));
+            }
+            return writer;
+        }
+
+        @Override
+        public void flushBuffer() {
+            // nothing is sent before the sub request is done
+        }
+
+        @Override
+        public boolean isCommitted() {
+            return false;
+        }
+
+        @Override
+        public void reset() {
+            resetBuffer();
+            headers.clear();
+            status = 200;
+            contentType = null;
+        }
+
+        @Override
+        public void resetBuffer() {
+            if (writer != null) {
+                writer.flush();
+            }
+            bytes.reset();
+        }
+
+        private Charset charset() {
+            try {
+                return Charset.forName(getCharacterEncoding());
+            } catch (final IllegalArgumentException exc) {
+                return Charsets.UTF_8;
+            }
+        }
+
+        /**
+         * Determine whether the body is textual, judged by the content type.
+         * A body without a content type is textual if it can be decoded.
+         */
+        private boolean isText(final byte[] data) {
+            if (contentType == null) {
+                try {
+                    charset().newDecoder()
+                            .onMalformedInput(CodingErrorAction.REPORT)
+                            .onUnmappableCharacter(CodingErrorAction.REPORT)
+                            .decode(ByteBuffer.wrap(data));
+                    return true;
+                } catch (final CharacterCodingException exc) {
+                    return false;
+                }
+            }
+            final String type = contentType.toLowerCase(Locale.ROOT);
+            return type.startsWith("text/") || type.contains("json")
+                    || type.contains("xml") || type.contains("javascript")
+                    || type.contains("ecmascript")
+                    || type.contains("x-www-form-urlencoded")
+                    || type.contains("charset=");
+        }
+
+        /**
+         * Whether {@link #body()} returned the body base64 encoded.
+         */
+        boolean isBase64() {
+            return base64;
+        }
+
+        /**
+         * The body of the response, parsed if it is JSON, base64 encoded if
+         * it is not textual.
+         */
+        Object body() {
+            if (writer != null) {
+                writer.flush();
+            }
+            byte[] data = bytes.toByteArray();
+            final String encoding = headers.remove("Content-Encoding");
+            if ("gzip".equalsIgnoreCase(encoding)) {
+                try (InputStream in = new GZIPInputStream(
+                        new ByteArrayInputStream(data))) {
+                    data = ByteStreams.toByteArray(in);
+                } catch (final IOException exc) {
+                    headers.put("Content-Encoding", encoding);
+                    return null;
+                }
+            }
+            headers.remove("Content-Length");
+            if (!isText(data)) {
+                base64 = true;
+                return BaseEncoding.base64().encode(data);
+            }
+            final String body = new String(data, charset());
+            if (contentType != null && contentType.contains("json")) {
+                try {
+                    final JSONTokener tokener = new JSONTokener(body);
+                    final Object value = tokener.nextValue();
+                    if (tokener.nextClean() == 0) {
+                        return value;
+                    }
+                } catch (final JSONException exc) {
+                    // not valid JSON after all, embed as string
+                }
+            }
+            return body;
+        }
+    }
+}
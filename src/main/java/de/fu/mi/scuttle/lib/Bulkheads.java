@@ -0,0 +1,104 @@
+package de.fu.mi.scuttle.lib;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.json.JSONObject;
+
+import de.fu.mi.scuttle.lib.util.concurrent.Bulkhead;
+import de.fu.mi.scuttle.lib.web.ConcurrencyLimit;
+
+/**
+ * The {@link Bulkhead}s of the modules of a {@link ScuttleBackendServlet}.
+ * 
+ * The limits are taken from the <code>bulkheads</code> section of the
+ * configuration and from {@link ConcurrencyLimit} annotations, in that order.
+ * Modules without a limit do not have a bulkhead.
+ */
+final class Bulkheads {
+
+    private volatile Map<ScuttleModule, Bulkhead> byModule = Collections
+            .emptyMap();
+
+    private volatile Map<String, Bulkhead> byMountPoint = Collections
+            .emptyMap();
+
+    /**
+     * Retrieve the bulkhead of a module.
+     * 
+     * @param module
+     *            The module.
+     * @return The bulkhead or null if the module is not limited.
+     */
+    Bulkhead get(final ScuttleModule module) {
+        return byModule.get(module);
+    }
+
+    /**
+     * Retrieve all bulkheads by mount point.
+     * 
+     * @return An unmodifiable map.
+     */
+    Map<String, Bulkhead> byMountPoint() {
+        return byMountPoint;
+    }
+
+    /**
+     * Sets up the bulkheads for the given modules. Modules which already have
+     * a bulkhead keep theirs (including its counters).
+     * 
+     * @param modules
+     *            The modules by mount point.
+     * @param config
+     *            The configuration of the servlet.
+     */
+    synchronized void configure(
+            final Map<String, ScuttleModule> modules,
+            final JSONObject config) {
+        final JSONObject limits = config.optJSONObject("bulkheads");
+
+        final Map<ScuttleModule, Bulkhead> newByModule = new IdentityHashMap<>();
+        final Map<String, Bulkhead> newByMountPoint = new HashMap<>();
+        for (final Entry<String, ScuttleModule> entry : modules.entrySet()) {
+            final ScuttleModule module = entry.getValue();
+            Bulkhead bulkhead = byModule.get(module);
+            if (bulkhead == null) {
+                bulkhead = newBulkhead(module, limits == null ? null
+                        : limits.optJSONObject(entry.getKey()));
+            }
+            if (bulkhead != null) {
+                newByModule.put(module, bulkhead);
+                newByMountPoint.put(entry.getKey(), bulkhead);
+            }
+        }
+        byModule = newByModule;
+        byMountPoint = Collections.unmodifiableMap(newByMountPoint);
+    }
+
+    private static Bulkhead newBulkhead(
+            final ScuttleModule module,
+            final JSONObject config) {
+        final ConcurrencyLimit limit = module.getClass().getAnnotation(
+                ConcurrencyLimit.class);
+        if (config == null && limit == null) {
+            return null;
+        }
+        int maxConcurrent = limit == null ? 0 : limit.value();
+        int maxQueued = limit == null ? 0 : limit.maxQueued();
+        long maxWait = limit == null ? 1000 : limit.maxWait();
+        int retryAfter = limit == null ? 1 : limit.retryAfter();
+        if (config != null) {
+            maxConcurrent = config.optInt("maxConcurrent", maxConcurrent);
+            maxQueued = config.optInt("maxQueued", maxQueued);
+            maxWait = config.optLong("maxWait", maxWait);
+            retryAfter = config.optInt("retryAfter", retryAfter);
+        }
+        if (maxConcurrent <= 0) {
+            return null;
+        }
+        return new Bulkhead(maxConcurrent, maxQueued, maxWait, retryAfter);
+    }
+}
@@ -0,0 +1,240 @@
+package de.fu.mi.scuttle.lib;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.fu.mi.scuttle.lib.web.HttpCachingResponse;
+import de.fu.mi.scuttle.lib.web.ResponseCache;
+import de.fu.mi.scuttle.lib.web.ScuttleRequest;
+import de.fu.mi.scuttle.lib.web.SyntheticRequest;
+import de.fu.mi.scuttle.lib.web.WarmUp;
+import de.fu.mi.scuttle.lib.web.WarmUpProvider;
+
+/**
+ * Populates the response cache with the warm-up requests of the modules after
+ * startup, see {@link WarmUp} and {@link WarmUpProvider}.
+ *
+ * The requests are processed concurrently on a pool of its own, which is shut
+ * down once all of them are done. They go through the cache like ordinary
+ * requests, hence a request from a client which arrives meanwhile waits for
+ * the warm-up request instead of computing the same response again.
+ *
+ * The configuration (the <code>warmUp</code> section) has the keys
+ * <code>enabled</code>, <code>threads</code>, <code>await</code> (whether
+ * the servlet is only put into service once the warm-up is done) and
+ * <code>timeout</code> (how long to wait for it at most, in milliseconds).
+ */
+final class CacheWarmer {
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final ScuttleBackendServlet parent;
+
+    private final RequestHandlerImpl requestHandler;
+
+    private final ExecutorService executor;
+
+    private final boolean awaitOnStartup;
+
+    private final long timeout;
+
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    /**
+     * The number of tasks which have been submitted but are not finished yet.
+     */
+    private final AtomicInteger pending = new AtomicInteger();
+
+    private final AtomicInteger warmed = new AtomicInteger();
+
+    private long start;
+
+    /**
+     * Creates a cache warmer.
+     *
+     * @param parent
+     *            The servlet.
+     * @param requestHandler
+     *            The request handler, which renders the responses.
+     * @param config
+     *            The <code>warmUp</code> section of the configuration, may be
+     *            null.
+     */
+    CacheWarmer(final ScuttleBackendServlet parent,
+            final RequestHandlerImpl requestHandler, final JSONObject config) {
+        final JSONObject c = config == null ? new JSONObject() : config;
+        this.parent = parent;
+        this.requestHandler = requestHandler;
+        this.awaitOnStartup = c.optBoolean("await", false);
+        this.timeout = Math.max(0, c.optLong("timeout", 60000));
+
+        final int threads = Math.max(1, c.optInt("threads", 4));
+        final AtomicInteger count = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 0,
+                TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable runnable) {
+                        final Thread thread = new Thread(runnable,
+                                "scuttle-warm-up-" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
+    /**
+     * Starts warming up the cache with the requests of the given modules and
+     * waits for it to finish if so configured.
+     *
+     * @param modules
+     *            The modules by mount point.
+     */
+    void start(final Map<String, ScuttleModule> modules) {
+        start = System.currentTimeMillis();
+        pending.incrementAndGet();
+        for (final Entry<String, ScuttleModule> entry : modules.entrySet()) {
+            final ScuttleModule module = entry.getValue();
+            if (module.getClass().isAnnotationPresent(WarmUp.class)
+                    || module instanceof WarmUpProvider) {
+                submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (final ScuttleRequest request : requests(
+                                entry.getKey(), module)) {
+                            submit(new Runnable() {
+                                @Override
+                                public void run() {
+                                    warmUp(entry.getKey(), module, request);
+                                }
+                            });
+                        }
+                    }
+                });
+            }
+        }
+        finished();
+
+        if (awaitOnStartup) {
+            try {
+                if (!done.await(timeout, TimeUnit.MILLISECONDS)) {
+                    logger.warn(
+                            "The warm-up did not finish within {} ms, going on",
+                            timeout);
+                }
+            } catch (final InterruptedException exc) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private List<ScuttleRequest> requests(final String mountPoint,
+            final ScuttleModule module) {
+        final List<ScuttleRequest> requests = new ArrayList<>();
+        final WarmUp warmUp = module.getClass().getAnnotation(WarmUp.class);
+        if (warmUp != null) {
+            for (final String path : warmUp.value()) {
+                requests.add(SyntheticRequest.parse(path));
+            }
+        }
+        if (module instanceof WarmUpProvider) {
+            try {
+                requests.addAll(((WarmUpProvider) module).warmUpRequests());
+            } catch (final Exception exc) {
+                logger.warn("Can not determine the warm-up requests of {}",
+                        mountPoint, exc);
+            } finally {
+                parent.closeEntityManager();
+            }
+        }
+        return requests;
+    }
+
+    private void warmUp(final String mountPoint, final ScuttleModule module,
+            final ScuttleRequest request) {
+        try {
+            final long cacheTag = module.cacheTag(request);
+            if (cacheTag == 0) {
+                return;
+            }
+            final HttpCachingResponse response = parent.getCache().get(
+                    module, cacheTag,
+                    requestHandler.refresher(module, request));
+            if (response != null) {
+                response.release();
+                warmed.incrementAndGet();
+            }
+        } catch (final ScuttleNoPermissionException exc) {
+            logger.debug("Skipped the warm-up request {}/{}, it requires a "
+                    + "login", mountPoint, request.getPath());
+        } catch (final Exception exc) {
+            logger.warn("The warm-up request {}/{} failed", mountPoint,
+                    request.getPath(), exc);
+        } finally {
+            parent.closeEntityManager();
+        }
+    }
+
+    private void submit(final Runnable task) {
+        pending.incrementAndGet();
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        task.run();
+                    } finally {
+                        finished();
+                    }
+                }
+            });
+        } catch (final RejectedExecutionException exc) {
+            // shut down
+            finished();
+        }
+    }
+
+    private void finished() {
+        if (pending.decrementAndGet() == 0) {
+            executor.shutdown();
+            logger.info("Warmed up {} cached responses in {} ms",
+                    warmed.get(), System.currentTimeMillis() - start);
+            done.countDown();
+        }
+    }
+
+    /**
+     * Waits for the warm-up to finish.
+     *
+     * @param timeout
+     *            The maximum time to wait in milliseconds.
+     * @return Whether the warm-up is done.
+     * @throws InterruptedException
+     *             If the current thread is interrupted while waiting.
+     */
+    boolean await(final long timeout) throws InterruptedException {
+        return done.await(timeout, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Abandons the warm-up requests which have not been started yet.
+     */
+    void shutdown() {
+        executor.shutdownNow();
+        done.countDown();
+    }
+}
@@ -0,0 +1,549 @@
+package de.fu.mi.scuttle.lib;
+
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.security.Principal;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.DispatcherType;
+import javax.servlet.RequestDispatcher;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+import javax.servlet.http.Part;
+
+/**
+ * A copy of an http request which does not refer to the http request
+ * anymore. It is made on the container thread and used by a thread which may
+ * outlive the actual request, once the container recycles it: the sub requests
+ * of a batch (see {@link BatchRequestHandler}) and requests processed by an
+ * {@link de.fu.mi.scuttle.lib.web.Asynchronous} module, which the container
+ * may time out while the module is still at work.
+ *
+ * The headers, cookies, addresses and so forth are copied, the session is
+ * shared with the actual request. The request has no body, its parameters are
+ * copied (or given) instead. Attributes are not copied.
+ */
+final class DetachedHttpRequest implements HttpServletRequest {
+
+    private final HttpSession session;
+    private final String pathInfo;
+    private final String queryString;
+    private final String method;
+    private final Map<String, String[]> params;
+    private final Map<String, List<String>> headers;
+    private final Cookie[] cookies;
+    private final Map<String, Object> attributes = new ConcurrentHashMap<>();
+    private final ServletContext servletContext;
+    private final String authType;
+    private final String remoteUser;
+    private final Principal userPrincipal;
+    private final String requestedSessionId;
+    private final boolean requestedSessionIdFromCookie;
+    private final boolean requestedSessionIdFromURL;
+    private final String contextPath;
+    private final String servletPath;
+    private final String protocol;
+    private final String scheme;
+    private final boolean secure;
+    private final String serverName;
+    private final int serverPort;
+    private final String remoteAddr;
+    private final String remoteHost;
+    private final int remotePort;
+    private final String localAddr;
+    private final String localName;
+    private final int localPort;
+    private final List<Locale> locales;
+    private volatile String characterEncoding;
+
+    /**
+     * Copies a request.
+     *
+     * @param request
+     *            The request, which must not be done yet.
+     * @return The copy.
+     */
+    static DetachedHttpRequest copy(final HttpServletRequest request) {
+        final Map<String, String[]> params = new HashMap<>();
+        for (final Map.Entry<String, String[]> param : request
+                .getParameterMap().entrySet()) {
+            params.put(param.getKey(), param.getValue().clone());
+        }
+        return new DetachedHttpRequest(request, request.getSession(),
+                request.getPathInfo(), request.getQueryString(),
+                request.getMethod(), params, Collections.<String> emptySet());
+    }
+
+    /**
+     * Creates a request which takes everything but the given path, method
+     * and parameters from the given request.
+     *
+     * @param request
+     *            The request to copy from, which must not be done yet.
+     * @param session
+     *            The session, resolved on the container thread.
+     * @param pathInfo
+     *            The path info.
+     * @param queryString
+     *            The query string, may be null.
+     * @param method
+     *            The request method.
+     * @param params
+     *            The parameters.
+     * @param omittedHeaders
+     *            The names of headers which are not copied, in lower case.
+     */
+    DetachedHttpRequest(final HttpServletRequest request,
+            final HttpSession session, final String pathInfo,
+            final String queryString, final String method,
+            final Map<String, String[]> params,
+            final Set<String> omittedHeaders) {
+        this.session = session;
+        this.pathInfo = pathInfo;
+        this.queryString = queryString;
+        this.method = method;
+        this.params = Collections.unmodifiableMap(params);
+
+        final Map<String, List<String>> headers = new TreeMap<>(
+                String.CASE_INSENSITIVE_ORDER);
+        final Enumeration<String> names = request.getHeaderNames();
+        while (names != null && names.hasMoreElements()) {
+            final String name = names.nextElement();
+            final Enumeration<String> values = request.getHeaders(name);
+            if (values != null
+                    && !omittedHeaders.contains(name.toLowerCase(Locale.ROOT))) {
+                headers.put(name, Collections.list(values));
+            }
+        }
+        this.headers = Collections.unmodifiableMap(headers);
+        final Cookie[] cookies = request.getCookies();
+        this.cookies = cookies == null ? null : cookies.clone();
+
+        this.servletContext = request.getServletContext();
+        this.authType = request.getAuthType();
+        this.remoteUser = request.getRemoteUser();
+        this.userPrincipal = request.getUserPrincipal();
+        this.requestedSessionId = request.getRequestedSessionId();
+        this.requestedSessionIdFromCookie = request
+                .isRequestedSessionIdFromCookie();
+        this.requestedSessionIdFromURL = request
+                .isRequestedSessionIdFromURL();
+        this.contextPath = request.getContextPath();
+        this.servletPath = request.getServletPath();
+        this.protocol = request.getProtocol();
+        this.scheme = request.getScheme();
+        this.secure = request.isSecure();
+        this.serverName = request.getServerName();
+        this.serverPort = request.getServerPort();
+        this.remoteAddr = request.getRemoteAddr();
+        this.remoteHost = request.getRemoteHost();
+        this.remotePort = request.getRemotePort();
+        this.localAddr = request.getLocalAddr();
+        this.localName = request.getLocalName();
+        this.localPort = request.getLocalPort();
+        final Enumeration<Locale> locales = request.getLocales();
+        this.locales = locales == null ? Collections.<Locale> emptyList()
+                : Collections.unmodifiableList(Collections.list(locales));
+        this.characterEncoding = request.getCharacterEncoding();
+    }
+
+    @Override
+    public String getPathInfo() {
+        return pathInfo;
+    }
+
+    @Override
+    public String getPathTranslated() {
+        return null;
+    }
+
+    @Override
+    public String getMethod() {
+        return method;
+    }
+
+    @Override
+    public String getParameter(final String name) {
+        final String[] values = params.get(name);
+        return values == null || values.length == 0 ? null : values[0];
+    }
+
+    @Override
+    public String[] getParameterValues(final String name) {
+        final String[] values = params.get(name);
+        return values == null ? null : values.clone();
+    }
+
+    @Override
+    public Map<String, String[]> getParameterMap() {
+        return params;
+    }
+
+    @Override
+    public Enumeration<String> getParameterNames() {
+        return Collections.enumeration(params.keySet());
+    }
+
+    @Override
+    public String getQueryString() {
+        return queryString;
+    }
+
+    @Override
+    public String getHeader(final String name) {
+        final List<String> values = headers.get(name);
+        return values == null || values.isEmpty() ? null : values.get(0);
+    }
+
+    @Override
+    public Enumeration<String> getHeaders(final String name) {
+        final List<String> values = headers.get(name);
+        return Collections.enumeration(values == null ? Collections
+                .<String> emptyList() : values);
+    }
+
+    @Override
+    public Enumeration<String> getHeaderNames() {
+        return Collections.enumeration(headers.keySet());
+    }
+
+    @Override
+    public int getIntHeader(final String name) {
+        final String value = getHeader(name);
+        return value == null ? -1 : Integer.parseInt(value);
+    }
+
+    @Override
+    public long getDateHeader(final String name) {
+        final String value = getHeader(name);
+        if (value == null) {
+            return -1;
+        }
+        final SimpleDateFormat format = new SimpleDateFormat(
+                "EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        try {
+            return format.parse(value).getTime();
+        } catch (final ParseException exc) {
+            throw new IllegalArgumentException(value, exc);
+        }
+    }
+
+    @Override
+    public Cookie[] getCookies() {
+        return cookies == null ? null : cookies.clone();
+    }
+
+    @Override
+    public HttpSession getSession() {
+        return session;
+    }
+
+    @Override
+    public HttpSession getSession(final boolean create) {
+        return session;
+    }
+
+    @Override
+    public String getRequestedSessionId() {
+        return requestedSessionId;
+    }
+
+    @Override
+    public boolean isRequestedSessionIdValid() {
+        return requestedSessionId != null
+                && requestedSessionId.equals(session.getId());
+    }
+
+    @Override
+    public boolean isRequestedSessionIdFromCookie() {
+        return requestedSessionIdFromCookie;
+    }
+
+    @Override
+    public boolean isRequestedSessionIdFromURL() {
+        return requestedSessionIdFromURL;
+    }
+
+    @Override
+    @Deprecated
+    public boolean isRequestedSessionIdFromUrl() {
+        return requestedSessionIdFromURL;
+    }
+
+    @Override
+    public String getAuthType() {
+        return authType;
+    }
+
+    @Override
+    public String getRemoteUser() {
+        return remoteUser;
+    }
+
+    @Override
+    public Principal getUserPrincipal() {
+        return userPrincipal;
+    }
+
+    /**
+     * The roles of the container are not copied, the modules check the
+     * privileges of the scuttle user instead.
+     */
+    @Override
+    public boolean isUserInRole(final String role) {
+        return false;
+    }
+
+    @Override
+    public boolean authenticate(final HttpServletResponse response) {
+        return userPrincipal != null;
+    }
+
+    @Override
+    public void login(final String username, final String password)
+            throws ServletException {
+        throw new ServletException(
+                "Detached requests can not log in to the container.");
+    }
+
+    @Override
+    public void logout() throws ServletException {
+        throw new ServletException(
+                "Detached requests can not log out of the container.");
+    }
+
+    @Override
+    public String getContextPath() {
+        return contextPath;
+    }
+
+    @Override
+    public String getServletPath() {
+        return servletPath;
+    }
+
+    @Override
+    public String getRequestURI() {
+        return contextPath + servletPath + pathInfo;
+    }
+
+    @Override
+    public StringBuffer getRequestURL() {
+        final StringBuffer url = new StringBuffer();
+        url.append(scheme).append("://").append(serverName);
+        if (!("http".equals(scheme) && serverPort == 80)
+                && !("https".equals(scheme) && serverPort == 443)) {
+            url.append(':').append(serverPort);
+        }
+        return url.append(getRequestURI());
+    }
+
+    @Override
+    public Collection<Part> getParts() {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public Part getPart(final String name) {
+        return null;
+    }
+
+    @Override
+    public Object getAttribute(final String name) {
+        return attributes.get(name);
+    }
+
+    @Override
+    public Enumeration<String> getAttributeNames() {
+        return Collections.enumeration(attributes.keySet());
+    }
+
+    @Override
+    public void setAttribute(final String name, final Object value) {
+        if (value == null) {
+            attributes.remove(name);
+        } else {
+            attributes.put(name, value);
+        }
+    }
+
+    @Override
+    public void removeAttribute(final String name) {
+        attributes.remove(name);
+    }
+
+    @Override
+    public String getCharacterEncoding() {
+        return characterEncoding;
+    }
+
+    @Override
+    public void setCharacterEncoding(final String env) {
+        this.characterEncoding = env;
+    }
+
+    /**
+     * The parameters of a sub request are given in the batch, it has no
+     * body.
+     */
+    @Override
+    public int getContentLength() {
+        return -1;
+    }
+
+    @Override
+    public String getContentType() {
+        return null;
+    }
+
+    @Override
+    public ServletInputStream getInputStream() {
+        return new ServletInputStream() {
+            @Override
+            public int read() {
+                return -1;
+            }
+        };
+    }
+
+    @Override
+    public BufferedReader getReader() {
+        return new BufferedReader(new StringReader(""));
+    }
+
+    @Override
+    public String getProtocol() {
+        return protocol;
+    }
+
+    @Override
+    public String getScheme() {
+        return scheme;
+    }
+
+    @Override
+    public boolean isSecure() {
+        return secure;
+    }
+
+    @Override
+    public String getServerName() {
+        return serverName;
+    }
+
+    @Override
+    public int getServerPort() {
+        return serverPort;
+    }
+
+    @Override
+    public String getRemoteAddr() {
+        return remoteAddr;
+    }
+
+    @Override
+    public String getRemoteHost() {
+        return remoteHost;
+    }
+
+    @Override
+    public int getRemotePort() {
+        return remotePort;
+    }
+
+    @Override
+    public String getLocalAddr() {
+        return localAddr;
+    }
+
+    @Override
+    public String getLocalName() {
+        return localName;
+    }
+
+    @Override
+    public int getLocalPort() {
+        return localPort;
+    }
+
+    @Override
+    public Locale getLocale() {
+        return locales.isEmpty() ? Locale.getDefault() : locales.get(0);
+    }
+
+    @Override
+    public Enumeration<Locale> getLocales() {
+        return Collections.enumeration(locales.isEmpty() ? Collections
+                .singletonList(Locale.getDefault()) : locales);
+    }
+
+    @Override
+    public ServletContext getServletContext() {
+        return servletContext;
+    }
+
+    @Override
+    public RequestDispatcher getRequestDispatcher(final String path) {
+        return null;
+    }
+
+    @Override
+    @Deprecated
+    public String getRealPath(final String path) {
+        return servletContext.getRealPath(path);
+    }
+
+    @Override
+    public DispatcherType getDispatcherType() {
+        return DispatcherType.REQUEST;
+    }
+
+    @Override
+    public boolean isAsyncSupported() {
+        return false;
+    }
+
+    @Override
+    public boolean isAsyncStarted() {
+        return false;
+    }
+
+    @Override
+    public AsyncContext startAsync() {
+        throw new IllegalStateException(
+                "Detached requests are always processed synchronously.");
+    }
+
+    @Override
+    public AsyncContext startAsync(final ServletRequest request,
+            final ServletResponse response) {
+        return startAsync();
+    }
+
+    @Override
+    public AsyncContext getAsyncContext() {
+        throw new IllegalStateException(
+                "Detached requests are always processed synchronously.");
+    }
+}
@@ -0,0 +1,130 @@
+package de.fu.mi.scuttle.lib;
+
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+import javax.servlet.http.HttpServletRequest;
+
+import de.fu.mi.scuttle.lib.web.ContentEncoding;
+import de.fu.mi.scuttle.lib.web.ConversionException;
+import de.fu.mi.scuttle.lib.web.Converters;
+import de.fu.mi.scuttle.lib.web.ScuttleRequest;
+import de.fu.mi.scuttle.lib.web.ScuttleSession;
+
+/**
+ * A copy of a request which does not refer to the http request anymore, such
+ * that a module can be invoked with it after the actual request is done (the
+ * container may recycle the http request then). Used for refreshing stale
+ * responses in the background, see {@link ScuttleRequestImpl#detach()}.
+ *
+ * The session is shared with the original request.
+ */
+class DetachedRequest implements ScuttleRequest {
+
+    private final Map<String, String> parameters;
+    private final Map<String, String> headers;
+    private final String path;
+    private final String remoteAddress;
+    private final RequestMethod requestMethod;
+    private final ScuttleSession session;
+
+    DetachedRequest(
+            final HttpServletRequest req,
+            final String path,
+            final RequestMethod requestMethod,
+            final ScuttleSession session) {
+        final Map<String, String> parameters = new HashMap<>();
+        for (final Entry<String, String[]> parameter : req.getParameterMap()
+                .entrySet()) {
+            final String[] values = parameter.getValue();
+            if (values != null && values.length > 0) {
+                parameters.put(parameter.getKey(), values[0]);
+            }
+        }
+        final Map<String, String> headers = new TreeMap<>(
+                String.CASE_INSENSITIVE_ORDER);
+        final Enumeration<String> names = req.getHeaderNames();
+        while (names != null && names.hasMoreElements()) {
+            final String name = names.nextElement();
+            headers.put(name, req.getHeader(name));
+        }
+        this.parameters = Collections.unmodifiableMap(parameters);
+        this.headers = Collections.unmodifiableMap(headers);
+        this.path = path;
+        this.remoteAddress = req.getRemoteAddr();
+        this.requestMethod = requestMethod;
+        this.session = session;
+    }
+
+    @Override
+    public boolean isNull(final String name) {
+        return parameters.get(name) == null;
+    }
+
+    @Override
+    public String get(final String name) {
+        return parameters.get(name);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T get(final String name, final T defaultValue) {
+        final String value = parameters.get(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Converters.convert(value,
+                    (Class<T>) defaultValue.getClass());
+        } catch (final ConversionException exc) {
+            return defaultValue;
+        }
+    }
+
+    @Override
+    public <T> T get(final String name, final Class<T> clazz)
+            throws ConversionException {
+        return Converters.convert(parameters.get(name), clazz);
+    }
+
+    @Override
+    public <T> List<T> getList(final String name, final Class<T> clazz)
+            throws ConversionException {
+        return Converters.convertList(parameters.get(name), clazz);
+    }
+
+    @Override
+    public String getPath() {
+        return path;
+    }
+
+    @Override
+    public ScuttleSession getSession() {
+        return session;
+    }
+
+    @Override
+    public String getHeader(final String name) {
+        return headers.get(name);
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    @Override
+    public boolean acceptsGzip() {
+        return ContentEncoding.acceptsGzip(getHeader("Accept-Encoding"));
+    }
+
+    @Override
+    public RequestMethod getRequestMethod() {
+        return requestMethod;
+    }
+}
@@ -0,0 +1,178 @@
+package de.fu.mi.scuttle.lib;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+
+/**
+ * Throttles login attempts per login name and per client address.
+ * 
+ * Every login name, as used from a particular client address, and every
+ * client address has a token bucket. An attempt takes a token from both
+ * buckets, a successful login gives them back. Tokens
+ * are refilled at a fixed rate. Once a bucket is empty, further attempts are
+ * rejected immediately for a period that doubles with every rejection, until
+ * the bucket is full again. Nobody ever has to wait: an attempt is either
+ * processed right away or rejected with a hint when to try again.
+ * 
+ * Since the bucket of a login name is specific to the address, failing
+ * attempts from one address do not lock the user out at other addresses.
+ * 
+ * The buckets live in a bounded cache, such that an attacker can not exhaust
+ * the memory by trying lots of different login names.
+ */
+final class LoginThrottle {
+
+    private final class Bucket {
+
+        private final int capacity;
+
+        private double tokens;
+
+        private long updated;
+
+        private int strikes = 0;
+
+        private long blockedUntil = 0;
+
+        Bucket(final int capacity) {
+            this.capacity = capacity;
+            this.tokens = capacity;
+            this.updated = System.currentTimeMillis();
+        }
+
+        /**
+         * @return 0 if a token was taken or the number of milliseconds to
+         *         wait before trying again.
+         */
+        synchronized long tryAcquire(final long now) {
+            if (now < blockedUntil) {
+                return blockedUntil - now;
+            }
+            refill(now);
+            if (tokens >= 1) {
+                tokens -= 1;
+                return 0;
+            }
+            strikes += 1;
+            final long backoff = Math.min(maxBackoff,
+                    interval << Math.min(strikes - 1, 20));
+            blockedUntil = now + backoff;
+            return backoff;
+        }
+
+        synchronized void release() {
+            tokens = Math.min(capacity, tokens + 1);
+        }
+
+        synchronized void reset() {
+            tokens = capacity;
+            strikes = 0;
+            blockedUntil = 0;
+        }
+
+        private void refill(final long now) {
+            tokens = Math.min(capacity, tokens + (double) (now - updated)
+                    / interval);
+            updated = now;
+            if (tokens >= capacity) {
+                strikes = 0;
+            }
+        }
+    }
+
+    private final int attempts;
+    private final int addressAttempts;
+    private final long interval;
+    private final long maxBackoff;
+
+    private final LoadingCache<String, Bucket> buckets;
+
+    /**
+     * Creates a login throttle.
+     * 
+     * @param config
+     *            The <code>loginThrottle</code> section of the configuration,
+     *            may be null.
+     */
+    LoginThrottle(final JSONObject config) {
+        final JSONObject c = config == null ? new JSONObject() : config;
+
+        attempts = Math.max(1, c.optInt("attempts", 5));
+        addressAttempts = Math.max(1, c.optInt("addressAttempts", 20));
+        interval = Math.max(1, c.optLong("interval", 60000));
+        maxBackoff = Math.max(interval, c.optLong("maxBackoff", 900000));
+
+        buckets = CacheBuilder.newBuilder()
+                .maximumSize(Math.max(1, c.optLong("maxEntries", 100000)))
+                .expireAfterAccess(
+                        Math.max(maxBackoff, interval * addressAttempts),
+                        TimeUnit.MILLISECONDS)
+                .build(new CacheLoader<String, Bucket>() {
+                    @Override
+                    public Bucket load(final String key) {
+                        return new Bucket(key.startsWith("address:")
+                                ? addressAttempts : attempts);
+                    }
+                });
+    }
+
+    /**
+     * Registers a login attempt.
+     * 
+     * @param loginName
+     *            The login name.
+     * @param address
+     *            The address of the client, may be null.
+     * @return 0 if the attempt may proceed or the number of milliseconds the
+     *         client has to wait before trying again.
+     */
+    long attempt(final String loginName, final String address) {
+        final long now = System.currentTimeMillis();
+        final Bucket user = bucket(userKey(loginName, address));
+        final long userWait = user.tryAcquire(now);
+        if (userWait > 0 || address == null) {
+            return userWait;
+        }
+        final long addressWait = bucket("address:" + address).tryAcquire(now);
+        if (addressWait > 0) {
+            user.release();
+        }
+        return addressWait;
+    }
+
+    /**
+     * Registers a successful login. The tokens taken by the attempt are given
+     * back and the login name starts over with a full bucket at the address.
+     * 
+     * @param loginName
+     *            The login name.
+     * @param address
+     *            The address of the client, may be null.
+     */
+    void succeeded(final String loginName, final String address) {
+        bucket(userKey(loginName, address)).reset();
+        if (address != null) {
+            bucket("address:" + address).release();
+        }
+    }
+
+    private static String userKey(final String loginName,
+            final String address) {
+        return address == null ? "user:" + loginName : "user:" + loginName
+                + '\n' + address;
+    }
+
+    private Bucket bucket(final String key) {
+        try {
+            return buckets.get(key);
+        } catch (final ExecutionException exc) {
+            throw new RuntimeException(exc);
+        }
+    }
+}
@@ -0,0 +1,356 @@
+package de.fu.mi.scuttle.lib;
+
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.fu.mi.scuttle.lib.web.Crucial;
+import de.fu.mi.scuttle.lib.web.Deferred;
+import de.fu.mi.scuttle.lib.web.DependsOn;
+import de.fu.mi.scuttle.lib.web.MountPoint;
+
+/**
+ * Constructs the modules of a {@link ScuttleBackendServlet} concurrently on a
+ * startup pool and invokes their {@link ScuttleModule#loaded()} methods in
+ * the order declared by {@link DependsOn}. A module whose dependency failed to
+ * load is not loaded at all.
+ * 
+ * Failures are not reported to the servlet directly but collected, such that
+ * the servlet can report them from the thread that initializes it. Entity
+ * managers opened through the servlet on the startup pool are closed once a
+ * module is constructed or loaded. The time every module takes to initialize
+ * is recorded.
+ */
+final class ModuleInitializer {
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final ScuttleBackendServlet servlet;
+
+    private final int threads;
+
+    private final List<Exception> problems = new ArrayList<>();
+
+    private final List<Exception> warnings = new ArrayList<>();
+
+    private final Map<String, Long> times = new ConcurrentHashMap<>();
+
+    /**
+     * @param servlet
+     *            The servlet the modules belong to.
+     * @param threads
+     *            The size of the startup pool.
+     */
+    ModuleInitializer(final ScuttleBackendServlet servlet, final int threads) {
+        this.servlet = servlet;
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Constructs the modules concurrently.
+     * 
+     * @param handlers
+     *            Pairs of mount point (may be null) and class name, in the
+     *            order of the configuration. If two modules share a mount
+     *            point, the latter one wins.
+     * @return The modules by mount point.
+     */
+    Map<String, ScuttleModule> construct(final List<String[]> handlers) {
+        final ExecutorService pool = newPool();
+        try {
+            return construct(pool, handlers);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Invokes {@link ScuttleModule#loaded()} on the {@link Deferred} modules,
+     * respecting {@link DependsOn}.
+     * 
+     * @param modules
+     *            The modules by mount point.
+     */
+    void load(final Map<String, ScuttleModule> modules) {
+        final ExecutorService pool = newPool();
+        try {
+            load(pool, modules);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private ExecutorService newPool() {
+        return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "scuttle-init-"
+                        + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Configuration problems which occurred during initialization.
+     */
+    List<Exception> getProblems() {
+        return problems;
+    }
+
+    /**
+     * Configuration warnings which occurred during initialization.
+     */
+    List<Exception> getWarnings() {
+        return warnings;
+    }
+
+    /**
+     * The time it took to construct and load every module, in milliseconds.
+     * 
+     * @return The times by mount point, unmodifiable.
+     */
+    Map<String, Long> getTimes() {
+        return Collections.unmodifiableMap(times);
+    }
+
+    private static final class Constructed {
+        private final String name;
+        private final ScuttleModule module;
+        private final long nanos;
+
+        Constructed(final String name, final ScuttleModule module,
+                final long nanos) {
+            this.name = name;
+            this.module = module;
+            this.nanos = nanos;
+        }
+    }
+
+    private Map<String, ScuttleModule> construct(final ExecutorService pool,
+            final List<String[]> handlers) {
+        final List<Future<Constructed>> futures = new ArrayList<>(
+                handlers.size());
+        for (final String[] handler : handlers) {
+            futures.add(pool.submit(new Callable<Constructed>() {
+                @Override
+                public Constructed call() throws Exception {
+                    try {
+                        return construct(handler[0], handler[1]);
+                    } finally {
+                        // a constructor may have used the servlet's db()
+                        servlet.closeEntityManager();
+                    }
+                }
+            }));
+        }
+        final Map<String, ScuttleModule> modules = new LinkedHashMap<>();
+        for (int i = 0; i < futures.size(); i++) {
+            final String[] handler = handlers.get(i);
+            try {
+                final Constructed constructed = futures.get(i).get();
+                modules.put(constructed.name, constructed.module);
+                final long millis = TimeUnit.NANOSECONDS
+                        .toMillis(constructed.nanos);
+                times.put(constructed.name, millis);
+                logger.info("Constructed module {} ({}) in {} ms",
+                        constructed.name, handler[1], millis);
+            } catch (final ExecutionException exc) {
+                warnings.add(new ScuttleHandlerInitializationException(
+                        cause(exc), handler[0], handler[1]));
+            } catch (final InterruptedException exc) {
+                Thread.currentThread().interrupt();
+                warnings.add(new ScuttleHandlerInitializationException(exc,
+                        handler[0], handler[1]));
+            }
+        }
+        return modules;
+    }
+
+    private Constructed construct(final String mountPoint,
+            final String className) throws Exception {
+        final long start = System.nanoTime();
+        @SuppressWarnings("unchecked")
+        final Class<? extends ScuttleModule> clazz = (Class<? extends ScuttleModule>) Class
+                .forName(className);
+        if (clazz.isAnnotationPresent(Crucial.class)
+                && clazz.isAnnotationPresent(Deferred.class)) {
+            throw new ScuttleIllDefinedModuleException(clazz,
+                    "A module must not declare @Crucial and @Deferred at the same time.");
+        }
+        String name = mountPoint;
+        if (name == null) {
+            if (clazz.isAnnotationPresent(MountPoint.class)) {
+                name = clazz.getAnnotation(MountPoint.class).value();
+            } else {
+                throw new ScuttleIllDefinedModuleException(clazz,
+                        "The module does not define a @MountPoint.");
+            }
+        }
+        ScuttleModule module;
+        try {
+            final Constructor<?> c = findConstructor(clazz);
+            module = (ScuttleModule) c.newInstance(servlet);
+        } catch (final NoSuchMethodException exc) {
+            module = clazz.newInstance();
+        }
+        return new Constructed(name, module, System.nanoTime() - start);
+    }
+
+    private Constructor<?> findConstructor(
+            final Class<? extends ScuttleModule> clazz)
+            throws NoSuchMethodException {
+        for (final Constructor<?> c : clazz.getConstructors()) {
+            final Class<?>[] params = c.getParameterTypes();
+            if (params == null || params.length != 1) {
+                continue;
+            }
+            if (params[0].isAssignableFrom(servlet.getClass())) {
+                return c;
+            }
+        }
+        throw new NoSuchMethodException();
+    }
+
+    /**
+     * Invokes {@link ScuttleModule#loaded()} on the deferred modules in waves:
+     * every wave consists of the modules whose dependencies have been loaded
+     * in a previous wave, the modules of one wave are loaded concurrently.
+     */
+    private void load(final ExecutorService pool,
+            final Map<String, ScuttleModule> modules) {
+        final Map<String, ScuttleModule> pending = new LinkedHashMap<>();
+        for (final Entry<String, ScuttleModule> entry : modules.entrySet()) {
+            if (entry.getValue().getClass().isAnnotationPresent(Deferred.class)) {
+                pending.put(entry.getKey(), entry.getValue());
+            }
+        }
+        final Set<Class<?>> failedClasses = new HashSet<>();
+        while (!pending.isEmpty()) {
+            final Set<Class<?>> pendingClasses = new HashSet<>();
+            for (final ScuttleModule module : pending.values()) {
+                pendingClasses.add(module.getClass());
+            }
+            final Map<String, Future<Long>> wave = new LinkedHashMap<>();
+            final Iterator<Entry<String, ScuttleModule>> it = pending
+                    .entrySet().iterator();
+            while (it.hasNext()) {
+                final Entry<String, ScuttleModule> entry = it.next();
+                if (dependsOnAny(entry.getValue(), pendingClasses)) {
+                    continue;
+                }
+                final ScuttleModule module = entry.getValue();
+                if (dependsOnAny(module, failedClasses)) {
+                    // the module would find its dependency in a broken state
+                    it.remove();
+                    failedClasses.add(module.getClass());
+                    failed(entry.getKey(), module,
+                            new ScuttleIllDefinedModuleException(module
+                                    .getClass(),
+                                    "A @DependsOn dependency of the module failed to load."));
+                    continue;
+                }
+                wave.put(entry.getKey(), pool.submit(new Callable<Long>() {
+                    @Override
+                    public Long call() throws Exception {
+                        final long start = System.nanoTime();
+                        try {
+                            module.loaded();
+                        } finally {
+                            servlet.closeEntityManager();
+                        }
+                        return System.nanoTime() - start;
+                    }
+                }));
+            }
+            if (wave.isEmpty() && pending.isEmpty()) {
+                return;
+            } else if (wave.isEmpty()) {
+                for (final Entry<String, ScuttleModule> entry : pending
+                        .entrySet()) {
+                    failed(entry.getKey(), entry.getValue(),
+                            new ScuttleIllDefinedModuleException(entry
+                                    .getValue().getClass(),
+                                    "The module is part of or depends on a cycle of @DependsOn dependencies."));
+                }
+                return;
+            }
+            for (final Entry<String, Future<Long>> entry : wave.entrySet()) {
+                final String name = entry.getKey();
+                final ScuttleModule module = pending.remove(name);
+                try {
+                    final long millis = TimeUnit.NANOSECONDS.toMillis(entry
+                            .getValue().get());
+                    final Long constructed = times.get(name);
+                    times.put(name, (constructed == null ? 0 : constructed)
+                            + millis);
+                    logger.info("Loaded module {} in {} ms", name, millis);
+                } catch (final ExecutionException exc) {
+                    failedClasses.add(module.getClass());
+                    failed(name, module, cause(exc));
+                } catch (final InterruptedException exc) {
+                    Thread.currentThread().interrupt();
+                    failedClasses.add(module.getClass());
+                    failed(name, module, exc);
+                }
+            }
+        }
+    }
+
+    private static boolean dependsOnAny(final ScuttleModule module,
+            final Set<Class<?>> classes) {
+        final DependsOn dependsOn = module.getClass().getAnnotation(
+                DependsOn.class);
+        if (dependsOn == null) {
+            return false;
+        }
+        for (final Class<?> dependency : dependsOn.value()) {
+            if (dependency != module.getClass()
+                    && classes.contains(dependency)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void failed(final String name, final ScuttleModule module,
+            final Exception exc) {
+        final Exception wrapped = new ScuttleHandlerInitializationException(
+                exc, name, module.getClass().getName());
+        if (module.getClass().isAnnotationPresent(Crucial.class)) {
+            problems.add(wrapped);
+        } else {
+            warnings.add(wrapped);
+        }
+    }
+
+    private static Exception cause(final ExecutionException exc) {
+        final Throwable cause = exc.getCause();
+        if (cause instanceof Exception) {
+            return (Exception) cause;
+        }
+        return exc;
+    }
+}
@@ -0,0 +1,108 @@
+package de.fu.mi.scuttle.lib;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An immutable snapshot of the modules of a {@link ScuttleBackendServlet}.
+ *
+ * Requests read the current snapshot without any locking. A
+ * {@link ScuttleUpdater} never modifies a snapshot, instead a new snapshot is
+ * derived using {@link #update(ScuttleUpdater)} and published by the servlet
+ * in a single (volatile) write. A request therefore always sees a consistent
+ * set of modules, no matter how many updates are going on concurrently.
+ */
+final class ModuleRegistry {
+
+    /**
+     * The registry that is in place before the modules are initialized.
+     */
+    static final ModuleRegistry EMPTY = new ModuleRegistry(0,
+            Collections.<String, ScuttleModule> emptyMap());
+
+    private final long version;
+
+    private final Map<String, ScuttleModule> modules;
+
+    private final Map<Class<? extends ScuttleModule>, ScuttleModule> modulesByClass;
+
+    private final ModuleRouter router;
+
+    ModuleRegistry(final long version, final Map<String, ScuttleModule> modules) {
+        final Map<Class<? extends ScuttleModule>, ScuttleModule> byClass = new HashMap<>(
+                modules.size());
+        for (final ScuttleModule module : modules.values()) {
+            byClass.put(module.getClass(), module);
+        }
+        this.version = version;
+        this.modules = Collections.unmodifiableMap(new HashMap<>(modules));
+        this.modulesByClass = Collections.unmodifiableMap(byClass);
+        this.router = new ModuleRouter(this.modules);
+    }
+
+    /**
+     * The version of this snapshot. Every update increments the version by
+     * one.
+     *
+     * @return The version of this snapshot.
+     */
+    long version() {
+        return version;
+    }
+
+    /**
+     * Retrieve the module which is mounted at the given mount point.
+     *
+     * @param mountPoint
+     *            The mount point.
+     * @return The module or null if there is no such module.
+     */
+    ScuttleModule get(final String mountPoint) {
+        return modules.get(mountPoint);
+    }
+
+    /**
+     * Retrieve the routing table for the modules of this snapshot.
+     *
+     * @return The router.
+     */
+    ModuleRouter router() {
+        return router;
+    }
+
+    /**
+     * Retrieve the module of the given class.
+     *
+     * @param clazz
+     *            The class of the module.
+     * @return The module or null if there is no such module.
+     */
+    @SuppressWarnings("unchecked")
+    <T extends ScuttleModule> T get(final Class<T> clazz) {
+        return (T) modulesByClass.get(clazz);
+    }
+
+    /**
+     * All modules by mount point.
+     *
+     * @return An unmodifiable view of the modules.
+     */
+    Map<String, ScuttleModule> modules() {
+        return modules;
+    }
+
+    /**
+     * Derives a new snapshot by applying the given updater to a copy of the
+     * modules of this snapshot.
+     *
+     * @param updater
+     *            The updater.
+     * @return The new snapshot, this snapshot is not modified.
+     */
+    ModuleRegistry update(final ScuttleUpdater updater) {
+        final Map<String, ScuttleModule> copy = new HashMap<>(modules);
+        updater.update(copy);
+        return new ModuleRegistry(version + 1, copy);
+    }
+}
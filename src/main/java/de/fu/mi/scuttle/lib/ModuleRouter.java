@@ -0,0 +1,153 @@
+package de.fu.mi.scuttle.lib;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * A routing table which maps request paths to modules.
+ *
+ * The router is a trie over the path segments of the mount points. It is
+ * compiled once (whenever a {@link ModuleRegistry} is created) and parses a
+ * path in a single pass, without regular expressions and without creating any
+ * intermediate strings or arrays. Mount points may be nested (like
+ * <code>api/v2/users</code>), in which case the longest matching mount point
+ * wins.
+ *
+ * The result of {@link #route(String)} is a primitive <code>long</code> which
+ * encodes both the module and the offset of the remaining path within the
+ * original string, see {@link #module(long)} and {@link #offset(long)}.
+ */
+final class ModuleRouter {
+
+    /**
+     * The route returned if no module matches.
+     */
+    static final long NO_ROUTE = -1;
+
+    private static final class Node {
+
+        private final String segment;
+
+        private Node[] children = new Node[0];
+
+        private int module = -1;
+
+        Node(final String segment) {
+            this.segment = segment;
+        }
+
+        Node child(final String path, final int offset, final int length) {
+            for (final Node child : children) {
+                if (child.segment.length() == length
+                        && path.regionMatches(offset, child.segment, 0, length)) {
+                    return child;
+                }
+            }
+            return null;
+        }
+
+        Node addChild(final String segment) {
+            final Node existing = child(segment, 0, segment.length());
+            if (existing != null) {
+                return existing;
+            }
+            final Node child = new Node(segment);
+            children = Arrays.copyOf(children, children.length + 1);
+            children[children.length - 1] = child;
+            return child;
+        }
+    }
+
+    private final Node root = new Node("");
+
+    private final ScuttleModule[] modules;
+
+    ModuleRouter(final Map<String, ScuttleModule> mountPoints) {
+        final List<ScuttleModule> modules = new ArrayList<>(mountPoints.size());
+        for (final Entry<String, ScuttleModule> entry : mountPoints.entrySet()) {
+            Node node = root;
+            for (final String segment : entry.getKey().split("/+")) {
+                if (!segment.isEmpty()) {
+                    node = node.addChild(segment);
+                }
+            }
+            node.module = modules.size();
+            modules.add(entry.getValue());
+        }
+        this.modules = modules.toArray(new ScuttleModule[modules.size()]);
+    }
+
+    /**
+     * Finds the module for the given path.
+     *
+     * @param path
+     *            The path, usually {@link
+     *            javax.servlet.http.HttpServletRequest#getPathInfo()}. May be
+     *            null.
+     * @return The route or {@link #NO_ROUTE}.
+     */
+    long route(final String path) {
+        final int length = path == null ? 0 : path.length();
+        int i = skipSlashes(path, 0, length);
+        if (i == length) {
+            // a module mounted at the root handles the empty path only
+            return root.module < 0 ? NO_ROUTE : pack(root.module, i);
+        }
+        long route = NO_ROUTE;
+        Node node = root;
+        while (i < length) {
+            int end = path.indexOf('/', i);
+            if (end < 0) {
+                end = length;
+            }
+            node = node.child(path, i, end - i);
+            if (node == null) {
+                break;
+            }
+            i = skipSlashes(path, end, length);
+            if (node.module >= 0) {
+                route = pack(node.module, i);
+            }
+        }
+        return route;
+    }
+
+    /**
+     * Retrieve the module of a route.
+     *
+     * @param route
+     *            A route as returned by {@link #route(String)}.
+     * @return The module or null if the route is {@link #NO_ROUTE}.
+     */
+    ScuttleModule module(final long route) {
+        if (route == NO_ROUTE) {
+            return null;
+        }
+        return modules[(int) (route >>> 32)];
+    }
+
+    /**
+     * Retrieve the offset of the path relative to the module of a route.
+     *
+     * @param route
+     *            A route as returned by {@link #route(String)}.
+     * @return The offset of the remaining path within the routed string.
+     */
+    static int offset(final long route) {
+        return (int) route;
+    }
+
+    private static long pack(final int module, final int offset) {
+        return ((long) module << 32) | (offset & 0xFFFFFFFFL);
+    }
+
+    private static int skipSlashes(final String path, int i, final int length) {
+        while (i < length && path.charAt(i) == '/') {
+            i++;
+        }
+        return i;
+    }
+}
@@ -0,0 +1,166 @@
+package de.fu.mi.scuttle.lib;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import de.fu.mi.scuttle.lib.persistence.EntityChangeListener;
+import de.fu.mi.scuttle.lib.persistence.EntityTags;
+
+/**
+ * Caches the role and the privileges of users, such that
+ * {@link ScuttleBackendServlet#check(de.fu.mi.scuttle.lib.web.ScuttleRequest, String)}
+ * does not have to ask the database every time.
+ * 
+ * Entries expire after a configurable time to live and can be invalidated
+ * explicitly whenever a user or the privileges of a user change. Besides, the
+ * cache is invalidated as a whole whenever an entity of the class of the
+ * cached users, or of one of the classes listed as <code>entities</code> in
+ * the configuration (like a role or privilege entity), is written through an
+ * entity manager of the servlet, see {@link EntityChangeListener}.
+ */
+final class PrivilegeCache implements EntityChangeListener {
+
+    /**
+     * An immutable copy of the role and privileges of a {@link ScuttleUser}.
+     */
+    static final class Privileges {
+
+        private final String username;
+        private final String role;
+        private final Set<String> privileges;
+
+        Privileges(final String username, final ScuttleUser user) {
+            this.username = username;
+            this.role = user.getRole();
+            this.privileges = Collections.unmodifiableSet(new HashSet<>(user
+                    .getPrivileges()));
+        }
+
+        String getUsername() {
+            return username;
+        }
+
+        boolean has(final String privilege) {
+            return "admin".equals(role) || privileges.contains(privilege);
+        }
+    }
+
+    private final Cache<String, Privileges> cache;
+
+    /**
+     * Counts the invalidations, such that privileges which have been read from
+     * the database while the cache was invalidated are not cached.
+     */
+    private final AtomicLong generation = new AtomicLong();
+
+    /**
+     * The tags of the entity classes which users, roles and privileges are
+     * stored in, see {@link EntityTags#of(Class)}.
+     */
+    private final Set<String> watched = Collections
+            .newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * Creates a privilege cache.
+     * 
+     * @param config
+     *            The <code>privilegeCache</code> section of the
+     *            configuration, may be null.
+     */
+    PrivilegeCache(final JSONObject config) {
+        final JSONObject c = config == null ? new JSONObject() : config;
+
+        cache = CacheBuilder.newBuilder()
+                .maximumSize(Math.max(0, c.optLong("maxEntries", 10000)))
+                .expireAfterWrite(Math.max(0, c.optLong("ttl", 60000)),
+                        TimeUnit.MILLISECONDS)
+                .build();
+
+        final JSONArray entities = c.optJSONArray("entities");
+        if (entities != null) {
+            for (int i = 0; i < entities.length(); i++) {
+                final String entity = entities.optString(i, null);
+                if (entity != null && !entity.isEmpty()) {
+                    watched.add("class:" + entity);
+                }
+            }
+        }
+    }
+
+    /**
+     * Watches the class of a user entity, such that writing any user
+     * invalidates the cache.
+     * 
+     * @param user
+     *            A user read from the database.
+     */
+    void watch(final ScuttleUser user) {
+        watched.add(EntityTags.of(user.getClass()));
+    }
+
+    /**
+     * Invalidates the cache if users, roles or privileges have been written.
+     */
+    @Override
+    public void entitiesChanged(final Set<String> tags) {
+        for (final String tag : tags) {
+            if (watched.contains(tag)) {
+                // which users are affected is not known
+                invalidateAll();
+                return;
+            }
+        }
+    }
+
+    Privileges get(final String username) {
+        return cache.getIfPresent(username);
+    }
+
+    /**
+     * Retrieve the current generation, to be passed to
+     * {@link #put(Privileges, long)}. Obtain it before reading the privileges
+     * from the database.
+     */
+    long generation() {
+        return generation.get();
+    }
+
+    /**
+     * Caches the privileges of a user, unless the cache has been invalidated
+     * since they have been read.
+     * 
+     * @param privileges
+     *            The privileges.
+     * @param started
+     *            The {@link #generation()} before the privileges have been
+     *            read from the database.
+     */
+    void put(final Privileges privileges, final long started) {
+        cache.put(privileges.getUsername(), privileges);
+        // check after putting, such that an invalidation which happens
+        // concurrently either sees the entry or is seen here
+        if (generation.get() != started) {
+            cache.asMap().remove(privileges.getUsername(), privileges);
+        }
+    }
+
+    void invalidate(final String username) {
+        generation.incrementAndGet();
+        cache.invalidate(username);
+    }
+
+    void invalidateAll() {
+        generation.incrementAndGet();
+        cache.invalidateAll();
+    }
+}
@@ -1,12 +1,21 @@
 package de.fu.mi.scuttle.lib;
 
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+
+import javax.servlet.AsyncContext;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import de.fu.mi.scuttle.lib.ScuttleBackendServlet.RequestHandler;
-import de.fu.mi.scuttle.lib.util.PathUtil;
+import de.fu.mi.scuttle.lib.util.concurrent.Bulkhead;
+import de.fu.mi.scuttle.lib.web.Asynchronous;
+import de.fu.mi.scuttle.lib.web.ConditionalResponse;
+import de.fu.mi.scuttle.lib.web.ETags;
 import de.fu.mi.scuttle.lib.web.ExceptionUtil;
 import de.fu.mi.scuttle.lib.web.HttpCachingResponse;
+import de.fu.mi.scuttle.lib.web.ResponseCache;
 import de.fu.mi.scuttle.lib.web.ScuttleRequest;
 import de.fu.mi.scuttle.lib.web.ScuttleResponse;
 
@@ -22,9 +31,13 @@ class RequestHandlerImpl implements RequestHandler {
      * Handle a request.
      * 
      * (1) Check if a handler exists for the given path. (2) handle() the
-     * request or if no handler exists error404. (3) doResponse() on the
+     * request or if no handler exists error404 (unless the path is the batch
+     * mount point, see {@link BatchRequestHandler}). (3) doResponse() on the
      * response from handle().
      * 
+     * Steps (2) and (3) are performed on the executor of the module if it is
+     * {@link Asynchronous} and the container supports asynchronous requests.
+     * 
      * If any exception occurs during handle() or doResponse() error505.
      * 
      * @param httpRequest
@@ -36,101 +49,260 @@ class RequestHandlerImpl implements RequestHandler {
     public void handleRequest(
             final HttpServletRequest httpRequest,
             final HttpServletResponse httpResponse) {
-        final String[] pathInfo = PathUtil.pathInfo(httpRequest
-                .getPathInfo());
-        parent.modulesRWLock.readLock().lock();
+        final String pathInfo = httpRequest.getPathInfo();
+        // the registry is an immutable snapshot, no locking required
+        final ModuleRouter router = parent.registry().router();
+        final long route = router.route(pathInfo);
+        final ScuttleModule handler = router.module(route);
+        if (handler == null) {
+            // modules take precedence over the batch mount point
+            final BatchRequestHandler batch = parent.getBatchHandler();
+            if (batch != null && batch.matches(pathInfo)) {
+                batch.handleRequest(this, httpRequest, httpResponse);
+            } else {
+                parent.error404(httpResponse);
+            }
+            return;
+        }
+        final Bulkhead bulkhead = parent.getBulkhead(handler);
+        if (bulkhead != null && !bulkhead.tryEnter()) {
+            // shed load early instead of letting requests pile up
+            parent.error503(httpResponse, bulkhead.getRetryAfter());
+            return;
+        }
+        final ExecutorService executor = httpRequest.isAsyncSupported()
+                ? parent.getAsyncDispatcher().executor(handler)
+                : null;
+        if (executor == null) {
+            final ScuttleRequestImpl request = new ScuttleRequestImpl(
+                    httpRequest, pathInfo, ModuleRouter.offset(route));
+            try {
+                process(handler, request, httpResponse);
+            } finally {
+                leave(bulkhead);
+            }
+        } else {
+            // the container may time the request out and recycle it while
+            // the module is still at work, hence the module gets a copy
+            final ScuttleRequestImpl request = new ScuttleRequestImpl(
+                    DetachedHttpRequest.copy(httpRequest), pathInfo,
+                    ModuleRouter.offset(route));
+            dispatch(executor, bulkhead, handler, request, httpRequest,
+                    httpResponse);
+        }
+    }
+
+    private static void leave(final Bulkhead bulkhead) {
+        if (bulkhead != null) {
+            bulkhead.leave();
+        }
+    }
+
+    /**
+     * Processes a request on the executor of an asynchronous module, see
+     * {@link Asynchronous}. The container thread returns immediately.
+     */
+    private void dispatch(
+            final ExecutorService executor,
+            final Bulkhead bulkhead,
+            final ScuttleModule handler,
+            final ScuttleRequestImpl request,
+            final HttpServletRequest httpRequest,
+            final HttpServletResponse httpResponse) {
+        final AsyncContext context = httpRequest.startAsync();
+        final AsyncCompletion completion = new AsyncCompletion(parent, context,
+                httpResponse);
+        context.addListener(completion);
+        context.setTimeout(parent.getAsyncDispatcher().timeout(handler));
         try {
-            final ScuttleModule handler = parent.modules.get(pathInfo[0]);
-            final ScuttleRequest request = new ScuttleRequestImpl(
-                    httpRequest, pathInfo[1]);
-            if (handler != null) {
-                try {
-                    parent.tryLogin(request);
-
-                    final long cacheTag = handler.cacheTag(request);
-
-                    final boolean shouldBeCached = cacheTag != 0;
-                    final HttpCachingResponse cachedResponse =
-                            shouldBeCached
-                                    ? parent.getCache().get(handler, cacheTag)
-                                    : null;
-
-                    ScuttleResponse response;
-                    if (shouldBeCached) {
-                        // response should be in the cache or needs to be
-                        // inserted into the cache
-                        if (cachedResponse != null) {
-                            // it is in the cache, go fetch that
-                            response = cachedResponse;
-                        } else {
-                            // it is not in the cache, we need to populate the
-                            // cache.
-                            ScuttleResponse cacheableResponse = null;
-                            // calculate the response first
-                            try {
-                                cacheableResponse = handler.handle(request);
-                                response = cacheableResponse;
-                            } catch (final ScuttleNoPermissionException exc) {
-                                throw exc;
-                            } catch (final Exception exc) {
-                                response = ExceptionUtil.handleException(exc);
-                                httpResponse.setStatus(500);
-                            } finally {
-                                handler.done();
-                            }
-                            // now cache the response by writing it into a
-                            // HttpCachingResponse
-                            if (cacheableResponse != null) {
-                                final HttpCachingResponse cachingResponse = new HttpCachingResponse();
-                                // doResponse does not write to the actual http
-                                // response, but to the cachingResponse.
-                                cacheableResponse.doResponse(
-                                        request.acceptsGzip(), cachingResponse);
-                                cachingResponse.done();
-                                // write the cached response to the cache
-                                parent.getCache().populate(
-                                        handler, cacheTag, cachingResponse);
-                                // the cachingResponse can act as a response too
-                                response = cachingResponse;
-                            } else {
-                                parent.error404(httpResponse);
-                            }
-                        }
-                    } else {
-                        // the response should not be cached, go ahead
-                        try {
-                            response = handler.handle(request);
-                        } catch (final ScuttleNoPermissionException exc) {
-                            throw exc;
-                        } catch (final Exception exc) {
-                            response = ExceptionUtil.handleException(exc);
-                            httpResponse.setStatus(500);
-                        } finally {
-                            handler.done();
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        // the container may have timed the request out
+                        // while it was queued
+                        if (!completion.isExpired()) {
+                            process(handler, request, completion.response());
                         }
+                    } finally {
+                        leave(bulkhead);
+                        completion.done();
                     }
-                    if (response != null) {
-                        response.doResponse(
-                                request.acceptsGzip(),
-                                new HttpScuttleServletResponse(httpResponse));
-                    } else {
-                        parent.error404(httpResponse);
-                    }
+                }
+            });
+        } catch (final RejectedExecutionException exc) {
+            leave(bulkhead);
+            if (completion.claim()) {
+                parent.error503(httpResponse, 1);
+            }
+            completion.done();
+        }
+    }
 
-                } catch (final ScuttleLoginException exc) {
-                    parent.loginError(httpResponse, exc);
-                } catch (final ScuttleNoPermissionException exc) {
-                    parent.error403(httpResponse, exc);
-                } catch (final Exception exc) {
-                    parent.error500(httpResponse, exc);
+    /**
+     * Computes the response of a module and writes it into a
+     * {@link HttpCachingResponse}, which does not write to the actual http
+     * response but can be cached and act as a response itself.
+     */
+    private static HttpCachingResponse render(
+            final ScuttleModule handler,
+            final ScuttleRequest request) throws Exception {
+        final ScuttleResponse cacheableResponse;
+        try {
+            cacheableResponse = handler.handle(request);
+        } finally {
+            handler.done();
+        }
+        if (cacheableResponse == null) {
+            return null;
+        }
+        final HttpCachingResponse cachingResponse = new HttpCachingResponse();
+        // the caching response stores the body in one encoding for all
+        // clients, a gzip compressed body saves compressing it again
+        cacheableResponse.doResponse(true, cachingResponse);
+        cachingResponse.done();
+        return cachingResponse;
+    }
+
+    /**
+     * Creates a loader which computes a response on a background thread, to
+     * refresh a stale response or to warm up the cache (see
+     * {@link CacheWarmer}). It does not log in, as the request has been
+     * processed already (or is a synthetic one), and closes the entity
+     * manager of that thread when done.
+     */
+    ResponseCache.Loader refresher(
+            final ScuttleModule handler,
+            final ScuttleRequest request) {
+        return new ResponseCache.Loader() {
+            @Override
+            public HttpCachingResponse load() throws Exception {
+                try {
+                    return render(handler, request);
                 } finally {
                     parent.closeEntityManager();
                 }
+            }
+
+            @Override
+            public ResponseCache.Loader detach() {
+                return this;
+            }
+        };
+    }
+
+    /**
+     * Determines whether a response can be answered with 304 Not Modified. A
+     * cached response is checked before the module is invoked at all.
+     */
+    private static boolean notModified(
+            final ScuttleRequest request,
+            final ScuttleResponse response) {
+        if (!(response instanceof ConditionalResponse)
+                || request.getRequestMethod() != ScuttleRequest.RequestMethod.GET) {
+            return false;
+        }
+        final ConditionalResponse conditional = (ConditionalResponse) response;
+        return ETags.isNotModified(request,
+                conditional.getETag(request.acceptsGzip()),
+                conditional.getLastModified());
+    }
+
+    /**
+     * Processes a request for the given module on the current thread.
+     * 
+     * The thread local {@link de.fu.mi.scuttle.lib.persistence.EntityManager}
+     * is bound to the current thread by the module (if it needs one) and
+     * closed on the very same thread when the request is done.
+     */
+    private void process(
+            final ScuttleModule handler,
+            final ScuttleRequestImpl request,
+            final HttpServletResponse httpResponse) {
+        try {
+            parent.tryLogin(request);
+
+            final long cacheTag = handler.cacheTag(request);
+
+            final boolean shouldBeCached = cacheTag != 0;
+
+            ScuttleResponse response;
+            if (shouldBeCached) {
+                // the response is either taken from the cache or computed
+                // and inserted into the cache, concurrent misses for the
+                // same response compute it only once
+                try {
+                    response = parent.getCache().get(handler, cacheTag,
+                            new ResponseCache.Loader() {
+                                @Override
+                                public HttpCachingResponse load()
+                                        throws Exception {
+                                    return render(handler, request);
+                                }
+
+                                @Override
+                                public ResponseCache.Loader detach() {
+                                    return refresher(handler, request.detach());
+                                }
+                            });
+                } catch (final ScuttleNoPermissionException
+                        | RejectedExecutionException | TimeoutException exc) {
+                    throw exc;
+                } catch (final Exception exc) {
+                    response = ExceptionUtil.handleException(exc);
+                    httpResponse.setStatus(500);
+                }
             } else {
-                parent.error404(httpResponse);
+                // the response should not be cached, go ahead
+                try {
+                    response = handler.handle(request);
+                } catch (final ScuttleNoPermissionException
+                        | RejectedExecutionException | TimeoutException exc) {
+                    throw exc;
+                } catch (final Exception exc) {
+                    response = ExceptionUtil.handleException(exc);
+                    httpResponse.setStatus(500);
+                } finally {
+                    handler.done();
+                }
             }
+            try {
+                if (response != null && notModified(request, response)) {
+                    httpResponse.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                    ((ConditionalResponse) response).doNotModified(
+                            request.acceptsGzip(),
+                            new HttpScuttleServletResponse(httpResponse));
+                } else if (response != null) {
+                    response.doResponse(
+                            request.acceptsGzip(),
+                            new HttpScuttleServletResponse(httpResponse));
+                } else {
+                    parent.error404(httpResponse);
+                }
+            } finally {
+                // a cached body may be stored off heap, it is held until
+                // it has been written
+                if (response instanceof HttpCachingResponse) {
+                    ((HttpCachingResponse) response).release();
+                }
+            }
+
+        } catch (final ScuttleLoginException exc) {
+            parent.loginError(httpResponse, exc);
+        } catch (final ScuttleNoPermissionException exc) {
+            parent.error403(httpResponse, exc);
+        } catch (final RejectedExecutionException exc) {
+            // a pool the response depends on is busy, for example the one
+            // rendering PDF documents (see PDFRenderService)
+            parent.error503(httpResponse, 1);
+        } catch (final TimeoutException exc) {
+            // a pool the response depends on did not get to it in time, it
+            // is heavily loaded, hence the client should back off for a while
+            parent.error503(httpResponse, 30);
+        } catch (final Exception exc) {
+            parent.error500(httpResponse, exc);
         } finally {
-            parent.modulesRWLock.readLock().unlock();
+            parent.closeEntityManager();
         }
     }
 }
\ No newline at end of file
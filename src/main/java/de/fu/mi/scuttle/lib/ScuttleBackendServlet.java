@@ -1,24 +1,25 @@
 package de.fu.mi.scuttle.lib;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.StringWriter;
-import java.lang.reflect.Constructor;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Properties;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.Set;
 
 import javax.mail.MessagingException;
 import javax.persistence.EntityManagerFactory;
 import javax.persistence.Persistence;
+import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.json.JSONException;
+import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -26,17 +27,22 @@ import com.google.common.base.Strings;
 
 import de.fu.mi.scuttle.lib.ScuttleLoginException.LoginException;
 import de.fu.mi.scuttle.lib.ScuttleNoPermissionException.NoPermissionException;
+import de.fu.mi.scuttle.lib.persistence.ConnectionPoolMetrics;
+import de.fu.mi.scuttle.lib.persistence.EntityChangeListener;
 import de.fu.mi.scuttle.lib.persistence.EntityManager;
 import de.fu.mi.scuttle.lib.persistence.EntityManagerWrapper;
 import de.fu.mi.scuttle.lib.persistence.PersistenceUtil;
 import de.fu.mi.scuttle.lib.util.Mail;
 import de.fu.mi.scuttle.lib.util.MailMessage;
 import de.fu.mi.scuttle.lib.util.MailProtocol;
+import de.fu.mi.scuttle.lib.util.XslTemplates;
+import de.fu.mi.scuttle.lib.util.concurrent.Bulkhead;
 import de.fu.mi.scuttle.lib.web.AbstractScuttleServlet;
-import de.fu.mi.scuttle.lib.web.Crucial;
+import de.fu.mi.scuttle.lib.web.ConcurrencyLimit;
+import de.fu.mi.scuttle.lib.web.ContentEncoding;
 import de.fu.mi.scuttle.lib.web.Deferred;
 import de.fu.mi.scuttle.lib.web.ExceptionUtil;
-import de.fu.mi.scuttle.lib.web.MountPoint;
+import de.fu.mi.scuttle.lib.web.PDFRenderService;
 import de.fu.mi.scuttle.lib.web.ResponseCache;
 import de.fu.mi.scuttle.lib.web.ScuttleRequest;
 import de.fu.mi.scuttle.lib.web.ScuttleServlet;
@@ -52,10 +58,49 @@ public class ScuttleBackendServlet extends AbstractScuttleServlet implements
 
 	private static final long serialVersionUID = -4214133380506978705L;
 
-	final ReadWriteLock modulesRWLock = new ReentrantReadWriteLock();
-	final Map<String, ScuttleModule> modules = new HashMap<>();
-	private Map<Class<? extends ScuttleModule>, ScuttleModule> modulesByClass = new HashMap<>();
-	private ResponseCache cache;
+	/**
+	 * The current snapshot of modules, replaced as a whole on every update.
+	 */
+	private volatile ModuleRegistry registry = ModuleRegistry.EMPTY;
+
+	/**
+	 * Serializes updaters (but never requests) such that no update is lost.
+	 */
+	private final Object updateLock = new Object();
+
+	private volatile ResponseCache cache;
+
+	private final AsyncDispatcher asyncDispatcher = new AsyncDispatcher();
+
+	private final Bulkheads bulkheads = new Bulkheads();
+
+	private LoginThrottle loginThrottle;
+
+	private BatchRequestHandler batchHandler;
+
+	private CacheWarmer cacheWarmer;
+
+	private PrivilegeCache privilegeCache;
+
+	/**
+	 * Notifies the response cache (once there is one) and the privilege cache
+	 * about the entities written through {@link #db()}.
+	 */
+	private final EntityChangeListener changeListener = new EntityChangeListener() {
+		@Override
+		public void entitiesChanged(final Set<String> tags) {
+			try {
+				privilegeCache.entitiesChanged(tags);
+			} finally {
+				final ResponseCache c = cache;
+				if (c != null) {
+					c.entitiesChanged(tags);
+				}
+			}
+		}
+	};
+
+	private Map<String, Long> moduleInitTimes = Collections.emptyMap();
 
 	private volatile EntityManagerFactory emf;
 	private ThreadLocal<EntityManager> em = new ThreadLocal<>();
@@ -97,6 +142,24 @@ public class ScuttleBackendServlet extends AbstractScuttleServlet implements
 		System.setProperty("java.awt.headless", "true");
 
 		super.init();
+		loginThrottle = new LoginThrottle(getConfig().optJSONObject(
+				"loginThrottle"));
+		privilegeCache = new PrivilegeCache(getConfig().optJSONObject(
+				"privilegeCache"));
+		initXslTemplates();
+		if (!ContentEncoding.configure(getConfig().optJSONObject(
+				"compression"))) {
+			reportConfigurationWarning(new ScuttleConfigurationException(
+					new IllegalStateException(
+							"Responses are compressed by the compression "
+									+ "configuration of another servlet")));
+		}
+		if (!PDFRenderService.configure(getConfig().optJSONObject("pdf"))) {
+			reportConfigurationWarning(new ScuttleConfigurationException(
+					new IllegalStateException(
+							"The PDF renderer is shared with another servlet, "
+									+ "its pdf configuration is in effect")));
+		}
 		initPersistence();
 		//intiConfigFromDatabase();
 		initModules();
@@ -113,7 +176,41 @@ public class ScuttleBackendServlet extends AbstractScuttleServlet implements
 			}
 			requestHandler = new BrokenConfigRequestHandler();
 		} else {
-			requestHandler = new RequestHandlerImpl(this);
+			batchHandler = new BatchRequestHandler(this, getConfig()
+					.optJSONObject("batch"));
+			final RequestHandlerImpl handler = new RequestHandlerImpl(this);
+			requestHandler = handler;
+			initWarmUp(handler);
+		}
+	}
+
+	/**
+	 * Configures the cache of compiled style sheets, see {@link XslTemplates}.
+	 * Style sheets are reloaded when they change in debug builds, unless
+	 * configured otherwise.
+	 */
+	private void initXslTemplates() {
+		final JSONObject config = getConfig().optJSONObject("xslTemplates");
+		final JSONObject c = config == null ? new JSONObject() : config;
+		final boolean debug = getMeta() != null && getMeta().isDebugBuild();
+		if (!XslTemplates.configure(c.optLong("maxEntries", 64),
+				c.optBoolean("reload", debug))) {
+			reportConfigurationWarning(new ScuttleConfigurationException(
+					new IllegalStateException(
+							"The style sheet cache is shared with another servlet, "
+									+ "its xslTemplates configuration is in effect")));
+		}
+	}
+
+	/**
+	 * Starts warming up the response cache, see {@link CacheWarmer}. Returns
+	 * only once the warm-up is done if it is configured to be awaited.
+	 */
+	private void initWarmUp(final RequestHandlerImpl handler) {
+		final JSONObject config = getConfig().optJSONObject("warmUp");
+		if (config == null || config.optBoolean("enabled", true)) {
+			cacheWarmer = new CacheWarmer(this, handler, config);
+			cacheWarmer.start(registry.modules());
 		}
 	}
 
@@ -134,7 +231,8 @@ public class ScuttleBackendServlet extends AbstractScuttleServlet implements
 		}
 
 		final Properties properties = PersistenceUtil.getProperties(jdbcDriver,
-				jdbcUser, jdbcPassword, jdbcUrl);
+				jdbcUser, jdbcPassword, jdbcUrl,
+				getConfig().optJSONObject("connectionPool"));
 
 		EntityManager em = null;
 		try {
@@ -185,88 +283,64 @@ public class ScuttleBackendServlet extends AbstractScuttleServlet implements
 	 * Initializes all modules, see {@link ScuttleModule}.
 	 */
 	private void initModules() {
-		String modules = getInitParameter("scuttleHandlers");
+		String handlers = getInitParameter("scuttleHandlers");
 
-		if (modules == null) {
-			modules = "";
+		if (handlers == null) {
+			handlers = "";
 		}
-		final String[] handlerClasses = modules.split(" *[\n,;]+ *");
+		final List<String[]> handlerList = new ArrayList<>();
+		final String[] handlerClasses = handlers.split(" *[\n,;]+ *");
 		for (final String handlerClass : handlerClasses) {
 			final String[] handler = handlerClass.matches(" *[=:]+ *") ? handlerClass
 					.split(" *[=:]+ *") : new String[] { null, handlerClass };
 
-			String name = handler[0] != null ? handler[0].trim() : null;
+			final String name = handler[0] != null ? handler[0].trim() : null;
 			final String className = handler[1].trim();
-			try {
-				@SuppressWarnings("unchecked")
-				final Class<? extends ScuttleModule> clazz = (Class<? extends ScuttleModule>) Class
-						.forName(className);
-				if (clazz.isAnnotationPresent(Crucial.class)
-						&& clazz.isAnnotationPresent(Deferred.class)) {
-					throw new ScuttleIllDefinedModuleException(clazz,
-							"A module must not declare @Crucial and @Deferred at the same time.");
-				}
-				if (name == null) {
-					if (clazz.isAnnotationPresent(MountPoint.class)) {
-						name = clazz.getAnnotation(MountPoint.class).value();
-					} else {
-						throw new ScuttleIllDefinedModuleException(clazz,
-								"The module does not define a @MountPoint.");
-					}
-				}
-				ScuttleModule h;
-				try {
-					final Constructor<?> c = findConstructor(clazz);
-					h = (ScuttleModule) c.newInstance(this);
-				} catch (final NoSuchMethodException exc) {
-					h = clazz.newInstance();
-				}
-				this.modules.put(name, h);
-				this.modulesByClass.put(clazz, h);
-			} catch (final Exception exc) {
-				reportConfigurationWarning(new ScuttleHandlerInitializationException(
-						exc, name, className));
-			}
-
+			handlerList.add(new String[] { name, className });
 		}
 
-		for (final Entry<String, ScuttleModule> entry : this.modules.entrySet()) {
-			final ScuttleModule module = entry.getValue();
-			if (module.getClass().isAnnotationPresent(Deferred.class)) {
-				try {
-					module.loaded();
-				} catch (final Exception exc) {
-					if (module.getClass().isAnnotationPresent(Crucial.class)) {
-						reportConfigurationProblem(new ScuttleHandlerInitializationException(
-								exc, entry.getKey(), module.getClass()
-										.getName()));
-					} else {
-						reportConfigurationWarning(new ScuttleHandlerInitializationException(
-								exc, entry.getKey(), module.getClass()
-										.getName()));
-					}
-				}
-			}
-		}
-	}
+		final long start = System.currentTimeMillis();
+		final ModuleInitializer initializer = new ModuleInitializer(this,
+				getConfig().optInt("startupThreads", 4));
+		final Map<String, ScuttleModule> modules = initializer
+				.construct(handlerList);
 
-	private Constructor<?> findConstructor(
-			final Class<? extends ScuttleModule> clazz)
-			throws NoSuchMethodException {
-		for (final Constructor<?> c : clazz.getConstructors()) {
-			final Class<?>[] params = c.getParameterTypes();
-			if (params == null || params.length != 1) {
-				continue;
-			}
-			if (params[0].isAssignableFrom(getClass())) {
-				return c;
-			}
+		bulkheads.configure(modules, getConfig());
+		registry = new ModuleRegistry(1, modules);
+
+		// modules may look up each other in loaded(), see @DependsOn
+		initializer.load(modules);
+
+		// reported from here since the lists of problems are not thread safe
+		for (final Exception exc : initializer.getWarnings()) {
+			reportConfigurationWarning(exc);
+		}
+		for (final Exception exc : initializer.getProblems()) {
+			reportConfigurationProblem(exc);
+		}
+		for (final Exception exc : asyncDispatcher.validate(modules)) {
+			reportConfigurationProblem(exc);
 		}
-		throw new NoSuchMethodException();
+		moduleInitTimes = initializer.getTimes();
+		logger.info("Initialized {} modules in {} ms", modules.size(),
+				System.currentTimeMillis() - start);
 	}
 
 	private void initCache() {
-		cache = new ResponseCache(modules.values());
+		final Object tempDirectory = getServletContext().getAttribute(
+				ServletContext.TEMPDIR);
+		cache = new ResponseCache(registry.modules(), getConfig()
+				.optJSONObject("responseCache"), getJobQueue(),
+				tempDirectory instanceof File ? (File) tempDirectory : null);
+	}
+
+	/**
+	 * Retrieve the current snapshot of modules. Never blocks.
+	 * 
+	 * @return The current module registry.
+	 */
+	ModuleRegistry registry() {
+		return registry;
 	}
 
 	void tryLogin(final ScuttleRequest request) throws ScuttleLoginException {
@@ -281,9 +355,12 @@ public class ScuttleBackendServlet extends AbstractScuttleServlet implements
 		if (Strings.isNullOrEmpty(loginPassword)) {
 			throw new ScuttleLoginException(LoginException.NO_PASSWORD_GIVEN);
 		}
-		try {
-			Thread.sleep(1000);
-		} catch (final InterruptedException exc) {
+		final String address = request.getRemoteAddress();
+		final long wait = loginThrottle.attempt(loginName, address);
+		if (wait > 0) {
+			// rejected right away, the client is told when to try again
+			throw new ScuttleLoginException(LoginException.TOO_MANY_ATTEMPTS,
+					(wait + 999) / 1000);
 		}
 		final ScuttleUser user = getMeta().getUser(db(), loginName);
 		if (user == null) {
@@ -293,6 +370,7 @@ public class ScuttleBackendServlet extends AbstractScuttleServlet implements
 			throw new ScuttleLoginException(
 					LoginException.PASSWORDS_DO_NOT_MATCH);
 		}
+		loginThrottle.succeeded(loginName, address);
 		request.getSession().put("username", loginName);
 	}
 
@@ -305,28 +383,148 @@ public class ScuttleBackendServlet extends AbstractScuttleServlet implements
 			throw new ScuttleNoPermissionException(
 					NoPermissionException.NO_SESSION);
 		}
-		final EntityManager em = db();
-		em.clear();
-		final ScuttleUser user = getMeta().getUserWithPrivileges(em, username);
-		if (user == null) {
+		if (!privileges(request, username).has(privilege)) {
 			throw new ScuttleNoPermissionException(
-					NoPermissionException.SESSION_USER_NOT_IN_DATABASE);
+					NoPermissionException.USER_LACKS_PRIVILEGE);
 		}
-		if ("admin".equals(user.getRole())) {
-			return;
+	}
+
+	/**
+	 * Looks up the privileges of a user. A request looks them up at most once,
+	 * otherwise they are taken from the {@link PrivilegeCache} and only read
+	 * from the database if they are not cached.
+	 */
+	private PrivilegeCache.Privileges privileges(final ScuttleRequest request,
+			final String username) throws ScuttleNoPermissionException {
+		final ScuttleRequestImpl requestImpl = request instanceof ScuttleRequestImpl ? (ScuttleRequestImpl) request
+				: null;
+		if (requestImpl != null) {
+			final PrivilegeCache.Privileges memo = requestImpl.getPrivileges();
+			if (memo != null && memo.getUsername().equals(username)) {
+				return memo;
+			}
 		}
-		if (user.getPrivileges().contains(privilege)) {
-			return;
+		PrivilegeCache.Privileges privileges = privilegeCache.get(username);
+		if (privileges == null) {
+			final long generation = privilegeCache.generation();
+			// Use a short lived entity manager, such that the persistence
+			// context of the request is neither consulted nor cleared.
+			final EntityManager em = EntityManagerWrapper.wrap(emf
+					.createEntityManager());
+			try {
+				final ScuttleUser user = getMeta().getUserWithPrivileges(em,
+						username);
+				if (user == null) {
+					throw new ScuttleNoPermissionException(
+							NoPermissionException.SESSION_USER_NOT_IN_DATABASE);
+				}
+				privilegeCache.watch(user);
+				privileges = new PrivilegeCache.Privileges(username, user);
+			} finally {
+				em.close();
+			}
+			privilegeCache.put(privileges, generation);
+		}
+		if (requestImpl != null) {
+			requestImpl.setPrivileges(privileges);
 		}
+		return privileges;
+	}
 
-		throw new ScuttleNoPermissionException(
-				NoPermissionException.USER_LACKS_PRIVILEGE);
+	/**
+	 * Evicts the cached privileges of a user. Writes through {@link #db()}
+	 * invalidate the cache on their own; call this whenever the role or the
+	 * privileges of a user are changed otherwise, else the change takes effect
+	 * only once the cached privileges expire.
+	 * 
+	 * @param loginName
+	 *            The login name of the user or null to evict all users.
+	 */
+	public void invalidatePrivileges(final String loginName) {
+		if (loginName == null) {
+			privilegeCache.invalidateAll();
+		} else {
+			privilegeCache.invalidate(loginName);
+		}
 	}
 
-	@SuppressWarnings("unchecked")
 	@Override
 	public <T extends ScuttleModule> T getModule(final Class<T> clazz) {
-		return (T) modulesByClass.get(clazz);
+		return registry.get(clazz);
+	}
+
+	/**
+	 * Retrieve the dispatcher for asynchronous modules.
+	 * 
+	 * @return The dispatcher.
+	 */
+	AsyncDispatcher getAsyncDispatcher() {
+		return asyncDispatcher;
+	}
+
+	/**
+	 * Retrieve the handler for batch requests.
+	 * 
+	 * @return The batch handler or null if batch requests are not available.
+	 */
+	BatchRequestHandler getBatchHandler() {
+		return batchHandler;
+	}
+
+	/**
+	 * Retrieve live metrics of the JDBC connection pools, configured in the
+	 * <code>connectionPool</code> section of the configuration.
+	 * 
+	 * @return The metrics by pool name (<code>default</code> for writing,
+	 *         <code>read</code> for reading), empty if there is no database.
+	 */
+	public Map<String, ConnectionPoolMetrics> getConnectionPoolMetrics() {
+		return PersistenceUtil.getConnectionPoolMetrics(emf);
+	}
+
+	/**
+	 * Retrieve the bulkhead of a module.
+	 * 
+	 * @return The bulkhead or null if the module is not limited.
+	 */
+	Bulkhead getBulkhead(final ScuttleModule module) {
+		return bulkheads.get(module);
+	}
+
+	/**
+	 * Retrieve the bulkheads of all modules that have a concurrency limit, see
+	 * {@link ConcurrencyLimit}. The counters of the bulkheads are meant for
+	 * monitoring.
+	 * 
+	 * @return The bulkheads by mount point, unmodifiable.
+	 */
+	public Map<String, Bulkhead> getBulkheads() {
+		return bulkheads.byMountPoint();
+	}
+
+	/**
+	 * Retrieve the time it took to initialize every module at startup, that
+	 * is to construct it and, for {@link Deferred} modules, to load it.
+	 * 
+	 * @return The times in milliseconds by mount point, unmodifiable.
+	 */
+	public Map<String, Long> getModuleInitTimes() {
+		return moduleInitTimes;
+	}
+
+	/**
+	 * Waits for the warm-up of the response cache to finish, see
+	 * {@link de.fu.mi.scuttle.lib.web.WarmUp}. Meant for readiness checks of
+	 * the embedding application.
+	 * 
+	 * @param timeout
+	 *            The maximum time to wait in milliseconds.
+	 * @return Whether the warm-up is done (true if it is not enabled).
+	 * @throws InterruptedException
+	 *             If the current thread is interrupted while waiting.
+	 */
+	public boolean awaitWarmUp(final long timeout) throws InterruptedException {
+		return cacheWarmer == null || cacheWarmer.await(timeout);
 	}
 
 	/**
@@ -365,6 +563,19 @@ public class ScuttleBackendServlet extends AbstractScuttleServlet implements
 	@Override
 	public void destroy() {
 		super.destroy();
+		asyncDispatcher.shutdown();
+		if (cache != null) {
+			cache.close();
+		}
+		if (cacheWarmer != null) {
+			cacheWarmer.shutdown();
+		}
+		if (batchHandler != null) {
+			batchHandler.shutdown();
+		}
+		PDFRenderService.shutdown();
+		XslTemplates.release();
+		ContentEncoding.release();
 		emf.close();
 	}
 
@@ -373,11 +584,10 @@ public class ScuttleBackendServlet extends AbstractScuttleServlet implements
 		new Thread(new Runnable() {
 			@Override
 			public void run() {
-				modulesRWLock.writeLock().lock();
-				try {
-					updater.update(modules);
-				} finally {
-					modulesRWLock.writeLock().unlock();
+				synchronized (updateLock) {
+					final ModuleRegistry next = registry.update(updater);
+					bulkheads.configure(next.modules(), getConfig());
+					registry = next;
 				}
 			}
 		}).start();
@@ -399,7 +609,10 @@ public class ScuttleBackendServlet extends AbstractScuttleServlet implements
 	public EntityManager db() {
 		EntityManager e = em.get();
 		if (e == null) {
-			e = EntityManagerWrapper.wrap(emf.createEntityManager());
+			// writes through the entity manager evict the cached responses
+			// which depend on the written entities, and cached privileges
+			e = EntityManagerWrapper.wrap(emf.createEntityManager(),
+					changeListener);
 			em.set(e);
 		}
 		return e;
@@ -486,6 +699,23 @@ public class ScuttleBackendServlet extends AbstractScuttleServlet implements
 		}
 	}
 
+	/**
+	 * Report an HTTP 400 Bad Request Error.
+	 * 
+	 * @param message
+	 *            A message explaining what is wrong with the request, may be
+	 *            null.
+	 */
+	void error400(final HttpServletResponse resp, final String message) {
+		try {
+			ExceptionUtil.error400(resp, message);
+		} catch (final IOException e) {
+			// This really should not happen,
+			// but if it happens, log the error.
+			logger.warn("IOException while handling error400.", e);
+		}
+	}
+
 	/**
 	 * Report an HTTP 403 Forbidden Error.
 	 */
@@ -513,6 +743,22 @@ public class ScuttleBackendServlet extends AbstractScuttleServlet implements
 		}
 	}
 
+	/**
+	 * Report an HTTP 503 Service Unavailable Error.
+	 * 
+	 * @param retryAfterSeconds
+	 *            The value of the Retry-After header.
+	 */
+	void error503(final HttpServletResponse resp, final int retryAfterSeconds) {
+		try {
+			ExceptionUtil.error503(resp, retryAfterSeconds);
+		} catch (final Exception e) {
+			// This really should not happen,
+			// but if it happens, log the error.
+			logger.warn("Exception while handling error503.", e);
+		}
+	}
+
 	/**
 	 * Report a login error.
 	 * 
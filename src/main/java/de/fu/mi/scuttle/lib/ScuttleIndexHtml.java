@@ -9,6 +9,8 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
@@ -19,11 +21,13 @@ import org.slf4j.Logger;
 import com.github.mustachejava.DefaultMustacheFactory;
 import com.github.mustachejava.Mustache;
 import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
 import com.google.common.io.Files;
 
 import de.fu.mi.scuttle.lib.util.MimeTypeUtil;
 import de.fu.mi.scuttle.lib.util.PathUtil;
 import de.fu.mi.scuttle.lib.web.AbstractScuttleServlet;
+import de.fu.mi.scuttle.lib.web.ETags;
 
 /**
  * Serves static content except for index.htm, which is a preprocessed mustache
@@ -65,9 +69,55 @@ public class ScuttleIndexHtml extends AbstractScuttleServlet {
                 "Lade... (JavaScript muss aktiviert sein - ist das der Fall?");
     }
 
-    private static void send(
+    /**
+     * The entity tag of a version of a static file.
+     */
+    private static class FileTag {
+        final long lastModified;
+        final long length;
+        final String etag;
+
+        FileTag(final long lastModified, final long length, final String etag) {
+            this.lastModified = lastModified;
+            this.length = length;
+            this.etag = etag;
+        }
+    }
+
+    /**
+     * The entity tags of the static files, by path. A file is hashed once per
+     * version (i.e. modification time and length).
+     */
+    private final ConcurrentMap<String, FileTag> fileTags = new ConcurrentHashMap<>();
+
+    private FileTag fileTag(final File file) throws IOException {
+        final String key = file.getPath();
+        final long lastModified = file.lastModified();
+        final long length = file.length();
+        final FileTag tag = fileTags.get(key);
+        if (tag != null && tag.lastModified == lastModified
+                && tag.length == length) {
+            return tag;
+        }
+        final FileTag newTag = new FileTag(lastModified, length, '"'
+                + Files.hash(file, Hashing.murmur3_128()).toString() + '"');
+        fileTags.put(key, newTag);
+        return newTag;
+    }
+
+    private void send(
             final File file,
+            final HttpServletRequest req,
             final HttpServletResponse resp) throws IOException {
+        final FileTag tag = fileTag(file);
+        resp.setHeader("ETag", tag.etag);
+        resp.setDateHeader("Last-Modified", tag.lastModified);
+        if (ETags.isNotModified(req.getHeader("If-None-Match"),
+                req.getHeader("If-Modified-Since"), tag.etag,
+                tag.lastModified)) {
+            resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
         final String extension = Files.getFileExtension(file.getPath())
                 .toLowerCase();
         resp.setContentType(MimeTypeUtil
@@ -117,7 +167,7 @@ public class ScuttleIndexHtml extends AbstractScuttleServlet {
         if (pathInfo[0].isEmpty()) {
             resp.sendRedirect(contextPath + startPage);
         } else {
-            handleRequest(path[0], pathInfo, url, resp);
+            handleRequest(path[0], pathInfo, url, req, resp);
         }
     }
 
@@ -125,6 +175,7 @@ public class ScuttleIndexHtml extends AbstractScuttleServlet {
             final String path,
             final String[] pathInfo,
             final String url,
+            final HttpServletRequest req,
             final HttpServletResponse resp) throws IOException {
 
         final File file = getFile(path);
@@ -132,7 +183,7 @@ public class ScuttleIndexHtml extends AbstractScuttleServlet {
         if (!blacklist.contains(pathInfo[0]) && file.exists()
                 && file.isFile() && file.canRead()) {
 
-            send(file, resp);
+            send(file, req, resp);
 
         } else {
 
@@ -10,7 +10,8 @@ public class ScuttleLoginException extends Exception {
     public static enum LoginException {
         NO_PASSWORD_GIVEN,
         PASSWORDS_DO_NOT_MATCH,
-        UNKNOWN_USER
+        UNKNOWN_USER,
+        TOO_MANY_ATTEMPTS
     }
 
     /**
@@ -18,8 +19,28 @@ public class ScuttleLoginException extends Exception {
      */
     private static final long serialVersionUID = 8097559695328736851L;
 
+    private final long retryAfter;
+
     public ScuttleLoginException(LoginException e) {
+        this(e, 0);
+    }
+
+    /**
+     * @param retryAfter
+     *            The number of seconds after which the client may try again.
+     */
+    public ScuttleLoginException(LoginException e, long retryAfter) {
         super(e.toString());
+        this.retryAfter = retryAfter;
+    }
+
+    /**
+     * The number of seconds after which the client may try again.
+     * 
+     * @return The number of seconds or 0 if there is no such restriction.
+     */
+    public long getRetryAfter() {
+        return retryAfter;
     }
 
 }
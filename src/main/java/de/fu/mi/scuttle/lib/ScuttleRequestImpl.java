@@ -1,16 +1,12 @@
 package de.fu.mi.scuttle.lib;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.List;
 
 import javax.servlet.http.HttpServletRequest;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-
+import de.fu.mi.scuttle.lib.web.ContentEncoding;
 import de.fu.mi.scuttle.lib.web.ConversionException;
-import de.fu.mi.scuttle.lib.web.Converter;
+import de.fu.mi.scuttle.lib.web.Converters;
 import de.fu.mi.scuttle.lib.web.ScuttleRequest;
 import de.fu.mi.scuttle.lib.web.ScuttleSession;
 
@@ -23,61 +19,25 @@ import de.fu.mi.scuttle.lib.web.ScuttleSession;
 class ScuttleRequestImpl implements ScuttleRequest {
 
     private final HttpServletRequest req;
-    private final String path;
+    private final String pathInfo;
+    private final int pathOffset;
+    private String path;
     private final ScuttleSessionImpl session;
+    private PrivilegeCache.Privileges privileges;
 
-    private final Map<Class<?>, Converter<?>> converters = new HashMap<>();
-
-    {
-        converters.put(Long.class, new Converter<Long>() {
-            @Override
-            public Long convert(String value) throws ConversionException {
-                try {
-                    return Long.valueOf(value);
-                } catch (Exception exc) {
-                    throw new ConversionException(exc);
-                }
-            }
-        });
-
-        converters.put(Integer.class, new Converter<Integer>() {
-            @Override
-            public Integer convert(String value) throws ConversionException {
-                try {
-                    return Integer.valueOf(value);
-                } catch (Exception exc) {
-                    throw new ConversionException(exc);
-                }
-            }
-        });
-
-        converters.put(JSONObject.class, new Converter<JSONObject>() {
-            @Override
-            public JSONObject convert(String value) throws ConversionException {
-                try {
-                    return new JSONObject(value);
-                } catch (JSONException e) {
-                    throw new ConversionException(e);
-                }
-            }
-        });
-
-        converters.put(JSONArray.class, new Converter<JSONArray>() {
-            @Override
-            public JSONArray convert(String value) throws ConversionException {
-                try {
-                    return new JSONArray(value);
-                } catch (JSONException e) {
-                    throw new ConversionException(e);
-                }
-            }
-        });
-
+    protected ScuttleRequestImpl(HttpServletRequest req, String path) {
+        this(req, path, 0);
     }
 
-    protected ScuttleRequestImpl(HttpServletRequest req, String path) {
+    /**
+     * Creates a request whose path is the suffix of the given path info,
+     * starting at the given offset. The suffix is only extracted if the module
+     * actually asks for it.
+     */
+    ScuttleRequestImpl(HttpServletRequest req, String pathInfo, int pathOffset) {
         this.req = req;
-        this.path = path;
+        this.pathInfo = pathInfo == null ? "" : pathInfo;
+        this.pathOffset = pathOffset;
         this.session = new ScuttleSessionImpl(req.getSession());
     }
 
@@ -96,27 +56,28 @@ class ScuttleRequestImpl implements ScuttleRequest {
             return defaultValue;
         }
         try {
-            if (!converters.containsKey(defaultValue.getClass())) {
-                throw new ConversionException("No converter for "
-                        + defaultValue.getClass().toString());
-            }
-            return (T) converters.get(defaultValue.getClass()).convert(value);
+            return Converters.convert(value,
+                    (Class<T>) defaultValue.getClass());
         } catch (ConversionException exc) {
             return defaultValue;
         }
     }
 
-    @SuppressWarnings("unchecked")
     public <T> T get(String name, Class<T> clazz) throws ConversionException {
-        if (!converters.containsKey(clazz)) {
-            throw new ConversionException("No converter for "
-                    + clazz.toString());
-        }
-        return (T) converters.get(clazz).convert(req.getParameter(name));
+        return Converters.convert(req.getParameter(name), clazz);
+    }
+
+    @Override
+    public <T> List<T> getList(String name, Class<T> clazz)
+            throws ConversionException {
+        return Converters.convertList(req.getParameter(name), clazz);
     }
 
     @Override
     public String getPath() {
+        if (path == null) {
+            path = pathInfo.substring(pathOffset);
+        }
         return path;
     }
 
@@ -130,9 +91,14 @@ class ScuttleRequestImpl implements ScuttleRequest {
         return req.getHeader(name);
     }
 
+    @Override
+    public String getRemoteAddress() {
+        return req.getRemoteAddr();
+    }
+
     @Override
     public boolean acceptsGzip() {
-        return String.valueOf(getHeader("Accept-Encoding")).indexOf("gzip") >= 0;
+        return ContentEncoding.acceptsGzip(getHeader("Accept-Encoding"));
     }
 
     @Override
@@ -148,4 +114,26 @@ class ScuttleRequestImpl implements ScuttleRequest {
         return RequestMethod.UNKNOWN;
     }
 
+    /**
+     * Copies this request, such that it can be handled after the http request
+     * is done.
+     * 
+     * @return A request with the same parameters, headers, path, and session.
+     */
+    ScuttleRequest detach() {
+        return new DetachedRequest(req, getPath(), getRequestMethod(), session);
+    }
+
+    /**
+     * The privileges which have been looked up for this request, such that
+     * they are looked up at most once per request.
+     */
+    PrivilegeCache.Privileges getPrivileges() {
+        return privileges;
+    }
+
+    void setPrivileges(PrivilegeCache.Privileges privileges) {
+        this.privileges = privileges;
+    }
+
 }
@@ -0,0 +1,56 @@
+package de.fu.mi.scuttle.lib.modules;
+
+import java.util.Map.Entry;
+
+import org.json.JSONObject;
+
+import de.fu.mi.scuttle.lib.ScuttleBackendServlet;
+import de.fu.mi.scuttle.lib.web.AbstractScuttleModule;
+import de.fu.mi.scuttle.lib.web.JSONResponse;
+import de.fu.mi.scuttle.lib.web.MountPoint;
+import de.fu.mi.scuttle.lib.web.ResponseCache;
+import de.fu.mi.scuttle.lib.web.ResponseCacheStats;
+import de.fu.mi.scuttle.lib.web.ScuttleRequest;
+import de.fu.mi.scuttle.lib.web.ScuttleResponse;
+
+/**
+ * Reports the statistics of the response cache as JSON, see
+ * {@link ResponseCache#getStats()}. Requires the privilege
+ * <code>cache-stats</code> (which administrators have anyway).
+ *
+ * <pre>
+ * { "bytes": 1048576, "maxBytes": 67108864, "offHeapBytes": 0,
+ *   "offHeapAllocatedBytes": 0, "diskEntries": 0,
+ *   "modules": { "courses": { "entries": 12, "hits": 840, "misses": 12, ... } } }
+ * </pre>
+ */
+@MountPoint("cache-stats")
+public class CacheStats extends AbstractScuttleModule<ScuttleBackendServlet> {
+
+    public static final String PRIVILEGE = "cache-stats";
+
+    public CacheStats(final ScuttleBackendServlet parent) {
+        super(parent);
+    }
+
+    @Override
+    public ScuttleResponse handle(final ScuttleRequest req) throws Exception {
+        parent().check(req, PRIVILEGE);
+
+        final ResponseCache cache = parent().getCache();
+        final JSONObject json = new JSONObject();
+        json.put("bytes", cache.getBytes());
+        json.put("maxBytes", cache.getMaxBytes());
+        json.put("offHeapBytes", cache.getOffHeapBytes());
+        json.put("offHeapAllocatedBytes", cache.getOffHeapAllocatedBytes());
+        json.put("diskEntries", cache.getDiskSize());
+
+        final JSONObject modules = new JSONObject();
+        for (final Entry<String, ResponseCacheStats> entry : cache.getStats()
+                .entrySet()) {
+            modules.put(entry.getKey(), entry.getValue().toJSON());
+        }
+        json.put("modules", modules);
+        return new JSONResponse(json);
+    }
+}
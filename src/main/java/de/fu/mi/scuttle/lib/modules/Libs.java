@@ -10,10 +10,11 @@ import java.util.Arrays;
 import com.google.common.base.Charsets;
 import com.google.common.io.Files;
 
-import de.fu.mi.scuttle.lib.util.UtilityMethods;
 import de.fu.mi.scuttle.lib.util.YuiCompressor;
 import de.fu.mi.scuttle.lib.web.AbstractScuttleModule;
+import de.fu.mi.scuttle.lib.web.ContentEncoding;
 import de.fu.mi.scuttle.lib.web.Crucial;
+import de.fu.mi.scuttle.lib.web.ETags;
 import de.fu.mi.scuttle.lib.web.MountPoint;
 import de.fu.mi.scuttle.lib.web.PlainResponse;
 import de.fu.mi.scuttle.lib.web.ScuttleRequest;
@@ -32,6 +33,7 @@ public class Libs extends AbstractScuttleModule<ScuttleServlet> {
 
 	private byte[] bytes;
 	private byte[] bytesCompressed;
+	private String etag;
 
 	public Libs(final ScuttleServlet parent) throws Exception {
 		super(parent);
@@ -74,7 +76,9 @@ public class Libs extends AbstractScuttleModule<ScuttleServlet> {
 		} else {
 			bytes = concatenatedScripts.getBytes(Charsets.UTF_8);
 		}
-		bytesCompressed = UtilityMethods.gzipCompress(bytes);
+		bytesCompressed = ContentEncoding.gzip(bytes,
+					"application/javascript");
+		etag = ETags.of(bytes);
 	}
 
 	@Override
@@ -84,12 +88,16 @@ public class Libs extends AbstractScuttleModule<ScuttleServlet> {
 					pair("Content-Encoding", "gzip"),
 					pair("Content-Type",
 							"application/javascript; charset=UTF-8"),
-					pair("Cache-Control", "public")));
+					pair("Cache-Control", "public"),
+					pair("ETag", ETags.variant(etag, true)),
+					pair("Vary", "Accept-Encoding")));
 		} else {
 			return new PlainResponse(bytes, map(
 					pair("Content-Type",
 							"application/javascript; charset=UTF-8"),
-					pair("Cache-Control", "public")));
+					pair("Cache-Control", "public"),
+					pair("ETag", etag),
+					pair("Vary", "Accept-Encoding")));
 		}
 	}
 }
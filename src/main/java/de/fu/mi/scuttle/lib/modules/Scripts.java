@@ -22,10 +22,11 @@ import com.google.common.base.Charsets;
 import com.google.common.io.Files;
 
 import de.fu.mi.scuttle.lib.util.Pair;
-import de.fu.mi.scuttle.lib.util.UtilityMethods;
 import de.fu.mi.scuttle.lib.util.YuiCompressor;
 import de.fu.mi.scuttle.lib.web.AbstractScuttleModule;
+import de.fu.mi.scuttle.lib.web.ContentEncoding;
 import de.fu.mi.scuttle.lib.web.Crucial;
+import de.fu.mi.scuttle.lib.web.ETags;
 import de.fu.mi.scuttle.lib.web.MountPoint;
 import de.fu.mi.scuttle.lib.web.PlainResponse;
 import de.fu.mi.scuttle.lib.web.ScuttleRequest;
@@ -56,6 +57,7 @@ public class Scripts extends AbstractScuttleModule<ScuttleServlet> {
 		private final File moduleDir;
 		private byte[] bytes;
 		private byte[] bytesCompressed;
+		private String etag;
 
 		public ScriptData(final File moduleDir) throws IOException {
 			this.moduleDir = moduleDir;
@@ -78,6 +80,14 @@ public class Scripts extends AbstractScuttleModule<ScuttleServlet> {
 			return bytesCompressed;
 		}
 
+		/**
+		 * The entity tag of the bytes loaded last, use it after
+		 * {@link #getBytes()} or {@link #getBytesCompressed()}.
+		 */
+		public String getETag() {
+			return etag;
+		}
+
 		private Pair<File[], Integer> findFiles() {
 			final String[] moduleFiles = moduleDir.list(new FilenameFilter() {
 				@Override
@@ -131,7 +141,9 @@ public class Scripts extends AbstractScuttleModule<ScuttleServlet> {
 			} else {
 				bytes = script.getBytes(Charsets.UTF_8);
 			}
-			bytesCompressed = UtilityMethods.gzipCompress(bytes);
+			bytesCompressed = ContentEncoding.gzip(bytes,
+					"application/javascript");
+			etag = ETags.of(bytes);
 		}
 	}
 
@@ -178,12 +190,16 @@ public class Scripts extends AbstractScuttleModule<ScuttleServlet> {
 						pair("Content-Encoding", "gzip"),
 						pair("Content-Type",
 								"application/javascript; charset=utf-8"),
-						pair("Cache-Control", cacheControl)));
+						pair("Cache-Control", cacheControl),
+						pair("ETag", ETags.variant(data.getETag(), true)),
+						pair("Vary", "Accept-Encoding")));
 			} else {
 				return new PlainResponse(data.getBytes(), map(
 						pair("Content-Type",
 								"application/javascript; charset=utf-8"),
-						pair("Cache-Control", cacheControl)));
+						pair("Cache-Control", cacheControl),
+						pair("ETag", data.getETag()),
+						pair("Vary", "Accept-Encoding")));
 			}
 		}
 	}
@@ -23,10 +23,11 @@ import com.google.common.base.Charsets;
 import com.google.common.base.Strings;
 import com.google.common.io.Files;
 
-import de.fu.mi.scuttle.lib.util.UtilityMethods;
 import de.fu.mi.scuttle.lib.util.YuiCompressor;
 import de.fu.mi.scuttle.lib.web.AbstractScuttleModule;
+import de.fu.mi.scuttle.lib.web.ContentEncoding;
 import de.fu.mi.scuttle.lib.web.Crucial;
+import de.fu.mi.scuttle.lib.web.ETags;
 import de.fu.mi.scuttle.lib.web.MountPoint;
 import de.fu.mi.scuttle.lib.web.PlainResponse;
 import de.fu.mi.scuttle.lib.web.ScuttleRequest;
@@ -39,6 +40,7 @@ public class Styles extends AbstractScuttleModule<ScuttleServlet> {
 
     private byte[] bytes;
     private byte[] bytesCompressed;
+    private String etag;
 
     public Styles(final ScuttleServlet parent) throws Exception {
         super(parent);
@@ -125,7 +127,8 @@ public class Styles extends AbstractScuttleModule<ScuttleServlet> {
         } else {
             bytes = stylesheet.getBytes(Charsets.UTF_8);
         }
-        bytesCompressed = UtilityMethods.gzipCompress(bytes);
+        bytesCompressed = ContentEncoding.gzip(bytes, "text/css");
+        etag = ETags.of(bytes);
     }
 
     String compileLess(final String less) throws ScriptException,
@@ -171,11 +174,15 @@ public class Styles extends AbstractScuttleModule<ScuttleServlet> {
             return new PlainResponse(bytesCompressed, map(
                     pair("Content-Encoding", "gzip"),
                     pair("Content-Type", "text/css; charset=UTF-8"),
-                    pair("Cache-Control", "public")));
+                    pair("Cache-Control", "public"),
+                    pair("ETag", ETags.variant(etag, true)),
+                    pair("Vary", "Accept-Encoding")));
         } else {
             return new PlainResponse(bytes, map(
                     pair("Content-Type", "text/css; charset=UTF-8"),
-                    pair("Cache-Control", "public")));
+                    pair("Cache-Control", "public"),
+                    pair("ETag", etag),
+                    pair("Vary", "Accept-Encoding")));
         }
     }
 
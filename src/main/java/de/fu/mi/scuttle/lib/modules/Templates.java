@@ -16,9 +16,10 @@ import org.json.JSONObject;
 import com.google.common.base.Charsets;
 import com.google.common.io.Files;
 
-import de.fu.mi.scuttle.lib.util.UtilityMethods;
 import de.fu.mi.scuttle.lib.web.AbstractScuttleModule;
+import de.fu.mi.scuttle.lib.web.ContentEncoding;
 import de.fu.mi.scuttle.lib.web.Crucial;
+import de.fu.mi.scuttle.lib.web.ETags;
 import de.fu.mi.scuttle.lib.web.JSONResponse;
 import de.fu.mi.scuttle.lib.web.MountPoint;
 import de.fu.mi.scuttle.lib.web.PlainResponse;
@@ -41,6 +42,7 @@ public class Templates extends AbstractScuttleModule<ScuttleServlet> {
         private final File dir;
         private byte[] bytes;
         private byte[] bytesCompressed;
+        private String etag;
 
         public TemplatesData(final File dir) throws Exception {
             this.dir = dir;
@@ -88,7 +90,8 @@ public class Templates extends AbstractScuttleModule<ScuttleServlet> {
             templatesData.write(dataWriter);
             dataWriter.close();
             bytes = data.toByteArray();
-            bytesCompressed = UtilityMethods.gzipCompress(bytes);
+            bytesCompressed = ContentEncoding.gzip(bytes, "application/json");
+            etag = ETags.of(bytes);
         }
 
         public byte[] getBytes() throws Exception {
@@ -104,6 +107,14 @@ public class Templates extends AbstractScuttleModule<ScuttleServlet> {
             }
             return bytesCompressed;
         }
+
+        /**
+         * The entity tag of the bytes loaded last, use it after
+         * {@link #getBytes()} or {@link #getBytesCompressed()}.
+         */
+        public String getETag() {
+            return etag;
+        }
     }
 
     private final JSONObject emptyData = new JSONObject() {
@@ -152,12 +163,16 @@ public class Templates extends AbstractScuttleModule<ScuttleServlet> {
                         pair("Content-Encoding", "gzip"),
                         pair("Content-Type", "application/json"),
                         pair("Cache-Control", parent().getMeta().isDebugBuild()
-                                ? "no-cache" : "public")));
+                                ? "no-cache" : "public"),
+                        pair("ETag", ETags.variant(data.getETag(), true)),
+                        pair("Vary", "Accept-Encoding")));
             } else {
                 return new PlainResponse(data.getBytes(), map(
                         pair("Content-Type", "application/json"),
                         pair("Cache-Control", parent().getMeta().isDebugBuild()
-                                ? "no-cache" : "public")));
+                                ? "no-cache" : "public"),
+                        pair("ETag", data.getETag()),
+                        pair("Vary", "Accept-Encoding")));
             }
         }
     }
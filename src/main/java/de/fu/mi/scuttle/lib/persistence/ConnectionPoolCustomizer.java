@@ -0,0 +1,69 @@
+package de.fu.mi.scuttle.lib.persistence;
+
+import org.eclipse.persistence.config.SessionCustomizer;
+import org.eclipse.persistence.sessions.DatabaseLogin;
+import org.eclipse.persistence.sessions.Session;
+import org.eclipse.persistence.sessions.server.ConnectionPool;
+import org.eclipse.persistence.sessions.server.ReadConnectionPool;
+import org.eclipse.persistence.sessions.server.ServerSession;
+
+/**
+ * Replaces the internal connection pools of EclipseLink by pools that record
+ * {@link ConnectionPoolMetrics} and configures connection validation.
+ * 
+ * The sizes of the pools are configured by EclipseLink before this customizer
+ * runs, they are carried over. This customizer is registered by
+ * {@link PersistenceUtil#getProperties(String, String, String, String, org.json.JSONObject)}
+ * and replaces any session customizer given in the persistence unit.
+ */
+public class ConnectionPoolCustomizer implements SessionCustomizer {
+
+    /**
+     * The SQL statement used to check whether a connection is still alive.
+     */
+    public static final String PING_SQL = "scuttle.connection-pool.ping-sql";
+
+    /**
+     * Whether connections are validated (using the ping SQL) when an error
+     * occurs. If they are, dead connections are discarded and the query is
+     * retried.
+     */
+    public static final String VALIDATE_ON_ERROR = "scuttle.connection-pool.validate-on-error";
+
+    @Override
+    public void customize(final Session session) throws Exception {
+        final Object pingSql = session.getProperty(PING_SQL);
+        final Object validateOnError = session.getProperty(VALIDATE_ON_ERROR);
+        final DatabaseLogin login = session.getLogin();
+        if (login != null) {
+            if (pingSql != null) {
+                login.setPingSQL(pingSql.toString());
+            }
+            if (validateOnError != null) {
+                login.setConnectionHealthValidatedOnError(Boolean
+                        .parseBoolean(validateOnError.toString()));
+            }
+        }
+
+        if (!(session instanceof ServerSession)) {
+            return;
+        }
+        final ServerSession server = (ServerSession) session;
+        final ConnectionPool defaultPool = server.getDefaultConnectionPool();
+        if (defaultPool != null && defaultPool.getClass() == ConnectionPool.class) {
+            server.addConnectionPool(new InstrumentedConnectionPool(
+                    defaultPool, server));
+        }
+        final ConnectionPool readPool = server.getReadConnectionPool();
+        if (readPool != null) {
+            if (readPool.getClass() == ReadConnectionPool.class) {
+                server.setReadConnectionPool(new InstrumentedReadConnectionPool(
+                        readPool, server));
+            } else if (readPool.getClass() == ConnectionPool.class) {
+                // an exclusive read pool
+                server.setReadConnectionPool(new InstrumentedConnectionPool(
+                        readPool, server));
+            }
+        }
+    }
+}
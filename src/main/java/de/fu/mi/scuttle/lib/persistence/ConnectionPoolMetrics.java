@@ -0,0 +1,181 @@
+package de.fu.mi.scuttle.lib.persistence;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.eclipse.persistence.sessions.server.ConnectionPool;
+
+/**
+ * Live metrics of a JDBC connection pool of EclipseLink, see
+ * {@link ConnectionPoolCustomizer}.
+ * 
+ * Besides the current number of active, idle and waiting connections, the
+ * time it takes to acquire a connection is recorded in a histogram with fixed
+ * buckets, see {@link #getLatencyBuckets()}.
+ */
+public final class ConnectionPoolMetrics {
+
+    private static final long[] BUCKETS = { 1, 2, 5, 10, 20, 50, 100, 200,
+            500, 1000, 2000, 5000, Long.MAX_VALUE };
+
+    private final ConnectionPool pool;
+
+    private final AtomicInteger waiting = new AtomicInteger();
+
+    private final AtomicLong acquired = new AtomicLong();
+
+    private final AtomicLong failed = new AtomicLong();
+
+    private final AtomicLong totalNanos = new AtomicLong();
+
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    private final AtomicLongArray histogram = new AtomicLongArray(
+            BUCKETS.length);
+
+    ConnectionPoolMetrics(final ConnectionPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Marks the begin of an acquisition.
+     * 
+     * @return The start time to be passed to {@link #acquired(long, boolean)}.
+     */
+    long acquiring() {
+        waiting.incrementAndGet();
+        return System.nanoTime();
+    }
+
+    /**
+     * Marks the end of an acquisition.
+     * 
+     * @param start
+     *            The value returned by {@link #acquiring()}.
+     * @param success
+     *            Whether a connection was acquired.
+     */
+    void acquired(final long start, final boolean success) {
+        final long nanos = System.nanoTime() - start;
+        waiting.decrementAndGet();
+        if (!success) {
+            failed.incrementAndGet();
+            return;
+        }
+        acquired.incrementAndGet();
+        totalNanos.addAndGet(nanos);
+        long max;
+        while (nanos > (max = maxNanos.get())
+                && !maxNanos.compareAndSet(max, nanos)) {
+            // retry
+        }
+        final long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+        int bucket = 0;
+        while (millis >= BUCKETS[bucket]) {
+            bucket++;
+        }
+        histogram.incrementAndGet(bucket);
+    }
+
+    /**
+     * The name of the pool, <code>default</code> for the pool that is used
+     * for writing and <code>read</code> for the pool that is used for reading.
+     */
+    public String getName() {
+        return pool.getName();
+    }
+
+    public int getMinConnections() {
+        return pool.getMinNumberOfConnections();
+    }
+
+    public int getMaxConnections() {
+        return pool.getMaxNumberOfConnections();
+    }
+
+    /**
+     * The number of connections that are currently in use.
+     */
+    public int getActive() {
+        synchronized (pool) {
+            return pool.getTotalNumberOfConnections()
+                    - pool.getConnectionsAvailable().size();
+        }
+    }
+
+    /**
+     * The number of open connections that are currently not in use.
+     */
+    public int getIdle() {
+        synchronized (pool) {
+            return pool.getConnectionsAvailable().size();
+        }
+    }
+
+    /**
+     * The number of threads that are currently acquiring a connection.
+     */
+    public int getWaiting() {
+        return waiting.get();
+    }
+
+    /**
+     * The number of connections acquired so far.
+     */
+    public long getAcquired() {
+        return acquired.get();
+    }
+
+    /**
+     * The number of acquisitions that failed, usually because the wait
+     * timeout expired.
+     */
+    public long getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * The mean time it took to acquire a connection, in milliseconds.
+     */
+    public double getMeanLatency() {
+        final long count = acquired.get();
+        return count == 0 ? 0 : totalNanos.get() / 1e6 / count;
+    }
+
+    /**
+     * The longest time it took to acquire a connection, in milliseconds.
+     */
+    public double getMaxLatency() {
+        return maxNanos.get() / 1e6;
+    }
+
+    /**
+     * The exclusive upper bounds of the buckets of the latency histogram, in
+     * milliseconds. The last bucket is unbounded ({@link Long#MAX_VALUE}).
+     */
+    public long[] getLatencyBuckets() {
+        return BUCKETS.clone();
+    }
+
+    /**
+     * The number of acquisitions per bucket, see {@link #getLatencyBuckets()}.
+     */
+    public long[] getLatencyHistogram() {
+        final long[] counts = new long[BUCKETS.length];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = histogram.get(i);
+        }
+        return counts;
+    }
+
+    @Override
+    public String toString() {
+        return getName() + "[active=" + getActive() + ", idle=" + getIdle()
+                + ", waiting=" + getWaiting() + ", acquired=" + getAcquired()
+                + ", failed=" + getFailed() + ", histogram="
+                + Arrays.toString(getLatencyHistogram()) + "]";
+    }
+}
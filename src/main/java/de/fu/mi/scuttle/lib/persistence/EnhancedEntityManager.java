@@ -1,7 +1,10 @@
 package de.fu.mi.scuttle.lib.persistence;
 
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 
 import javax.persistence.EntityGraph;
@@ -22,10 +25,89 @@ import org.eclipse.persistence.config.ResultType;
 
 class EnhancedEntityManager implements EntityManager {
 
+    /**
+     * Publishes the recorded changes when it is committed and discards them
+     * when it is rolled back.
+     */
+    private final class ObservedTransaction implements EntityTransaction {
+
+        private final EntityTransaction transaction;
+
+        ObservedTransaction(final EntityTransaction transaction) {
+            this.transaction = transaction;
+        }
+
+        @Override
+        public void begin() {
+            transaction.begin();
+        }
+
+        @Override
+        public void commit() {
+            try {
+                transaction.commit();
+            } catch (final RuntimeException exc) {
+                changes.clear();
+                throw exc;
+            }
+            publishChanges();
+        }
+
+        @Override
+        public void rollback() {
+            changes.clear();
+            transaction.rollback();
+        }
+
+        @Override
+        public void setRollbackOnly() {
+            transaction.setRollbackOnly();
+        }
+
+        @Override
+        public boolean getRollbackOnly() {
+            return transaction.getRollbackOnly();
+        }
+
+        @Override
+        public boolean isActive() {
+            return transaction.isActive();
+        }
+    }
+
     private final javax.persistence.EntityManager em;
 
+    private final EntityChangeListener listener;
+
+    /**
+     * The tags of the entities written since the last commit, only recorded
+     * if there is a listener.
+     */
+    private final Set<String> changes = new HashSet<>();
+
     public EnhancedEntityManager(final javax.persistence.EntityManager em) {
+        this(em, null);
+    }
+
+    public EnhancedEntityManager(final javax.persistence.EntityManager em,
+            final EntityChangeListener listener) {
         this.em = em;
+        this.listener = listener;
+    }
+
+    private void recordChange(final Object entity) {
+        if (listener != null && entity != null) {
+            EntityTags.addChanged(changes, entity);
+        }
+    }
+
+    private void publishChanges() {
+        if (listener != null && !changes.isEmpty()) {
+            final Set<String> tags = Collections
+                    .unmodifiableSet(new HashSet<>(changes));
+            changes.clear();
+            listener.entitiesChanged(tags);
+        }
     }
 
     @Override
@@ -163,7 +245,10 @@ class EnhancedEntityManager implements EntityManager {
 
     @Override
     public EntityTransaction getTransaction() {
-        return em.getTransaction();
+        if (listener == null) {
+            return em.getTransaction();
+        }
+        return new ObservedTransaction(em.getTransaction());
     }
 
     @Override
@@ -193,6 +278,7 @@ class EnhancedEntityManager implements EntityManager {
 
     @Override
     public <T> T merge(final T object) {
+        recordChange(object);
         return em.merge(object);
     }
 
@@ -231,6 +317,7 @@ class EnhancedEntityManager implements EntityManager {
             timeObject.setLastModificationTime(System.currentTimeMillis());
         }
 
+        recordChange(object);
         final EntityTransaction transaction = getTransaction();
         boolean commitTransaction = false;
         if (!transaction.isActive()) {
@@ -252,6 +339,7 @@ class EnhancedEntityManager implements EntityManager {
             t.begin();
         }
         for (final Object object : objects) {
+            recordChange(object);
             em.remove(object);
         }
         if (t != null) {
@@ -282,6 +370,7 @@ class EnhancedEntityManager implements EntityManager {
 
     @Override
     public void remove(final Object arg0) {
+        recordChange(arg0);
         final EntityTransaction transaction = getTransaction();
         boolean commitTransaction = false;
         if (!transaction.isActive()) {
@@ -613,15 +702,19 @@ class EnhancedEntityManager implements EntityManager {
 
     @Override
     public int removeAll(final Class<?> entityClass) {
-        final boolean isActive = em.getTransaction().isActive();
+        if (listener != null) {
+            EntityTags.addChanged(changes, entityClass, em.getMetamodel());
+        }
+        final EntityTransaction transaction = getTransaction();
+        final boolean isActive = transaction.isActive();
         if (!isActive) {
-            em.getTransaction().begin();
+            transaction.begin();
         }
         final CriteriaBuilder b = em.getCriteriaBuilder();
         final int count = em.createQuery(b.createCriteriaDelete(entityClass))
                 .executeUpdate();
         if (!isActive) {
-            em.getTransaction().commit();
+            transaction.commit();
         }
         return count;
     }
@@ -0,0 +1,22 @@
+package de.fu.mi.scuttle.lib.persistence;
+
+import java.util.Set;
+
+/**
+ * Is notified about the entities which have been written through an
+ * {@link EntityManager}, see {@link EntityManagerWrapper#wrap(
+ * javax.persistence.EntityManager, EntityChangeListener)}.
+ * 
+ * The changes are identified by tags, see {@link EntityTags}.
+ */
+public interface EntityChangeListener {
+
+    /**
+     * Invoked after a transaction which persisted, merged or removed entities
+     * has been committed, on the thread which committed it.
+     * 
+     * @param tags
+     *            The tags of the changed entities and their classes.
+     */
+    void entitiesChanged(Set<String> tags);
+}
@@ -28,4 +28,25 @@ public class EntityManagerWrapper {
         return new EnhancedEntityManager(em);
     }
 
+    /**
+     * Wraps a javax.persistence.EntityManager into an {@link EntityManager}
+     * which notifies the given listener about the entities that have been
+     * persisted, merged or removed through it, once the transaction which
+     * wrote them has been committed.
+     * 
+     * Changes which are made to managed entities without invoking any of
+     * these methods (i.e. by merely modifying them within a transaction) and
+     * changes made through queries are not noticed.
+     * 
+     * @param em
+     *            The javax.persistence.EntityManager.
+     * @param listener
+     *            The listener, may be null.
+     * @return A net.scravy.persistence.EntityManager.
+     */
+    public static EntityManager wrap(javax.persistence.EntityManager em,
+            EntityChangeListener listener) {
+        return new EnhancedEntityManager(em, listener);
+    }
+
 }
@@ -0,0 +1,82 @@
+package de.fu.mi.scuttle.lib.persistence;
+
+import java.util.Set;
+
+import javax.persistence.metamodel.EntityType;
+import javax.persistence.metamodel.Metamodel;
+
+/**
+ * Tags which identify entities and entity classes, for tracking what depends
+ * on them, see {@link EntityChangeListener}.
+ * 
+ * A change of an entity is tagged with the tag of the entity (if it is a
+ * {@link UuidEntity}) and the tags of its class and all of its superclasses,
+ * since everything that lists the entities of a class is affected by it.
+ */
+public final class EntityTags {
+
+    private EntityTags() {
+        // static utility
+    }
+
+    /**
+     * Retrieve the tag of an entity class, which is affected by every change
+     * of an entity of this class or a subclass.
+     * 
+     * @param entityClass
+     *            The entity class.
+     * @return The tag.
+     */
+    public static String of(final Class<?> entityClass) {
+        return "class:" + entityClass.getName();
+    }
+
+    /**
+     * Retrieve the tag of an entity, which is affected by every change of this
+     * very entity.
+     * 
+     * @param entity
+     *            The entity.
+     * @return The tag, or the tag of the class of the entity if it has no
+     *         uuid yet.
+     */
+    public static String of(final UuidEntity<?> entity) {
+        final String uuid = entity.getUuid();
+        return uuid == null ? of(entity.getClass()) : "uuid:" + uuid;
+    }
+
+    /**
+     * Adds the tags affected by a change of the given entity.
+     */
+    static void addChanged(final Set<String> tags, final Object entity) {
+        if (entity instanceof UuidEntity) {
+            final String uuid = ((UuidEntity<?>) entity).getUuid();
+            if (uuid != null) {
+                tags.add("uuid:" + uuid);
+            }
+        }
+        addClasses(tags, entity.getClass());
+    }
+
+    /**
+     * Adds the tags affected by removing all entities of the given class,
+     * that is the tags of the class, its superclasses and its subclasses.
+     */
+    static void addChanged(final Set<String> tags, final Class<?> entityClass,
+            final Metamodel metamodel) {
+        addClasses(tags, entityClass);
+        for (final EntityType<?> type : metamodel.getEntities()) {
+            if (entityClass.isAssignableFrom(type.getJavaType())) {
+                tags.add(of(type.getJavaType()));
+            }
+        }
+    }
+
+    private static void addClasses(final Set<String> tags,
+            final Class<?> entityClass) {
+        for (Class<?> c = entityClass; c != null && c != Object.class; c = c
+                .getSuperclass()) {
+            tags.add(of(c));
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package de.fu.mi.scuttle.lib.persistence;
+
+import org.eclipse.persistence.internal.databaseaccess.Accessor;
+import org.eclipse.persistence.sessions.server.ConnectionPool;
+import org.eclipse.persistence.sessions.server.ServerSession;
+
+/**
+ * An EclipseLink connection pool which records {@link ConnectionPoolMetrics}.
+ */
+class InstrumentedConnectionPool extends ConnectionPool implements
+        InstrumentedPool {
+
+    private final ConnectionPoolMetrics metrics = new ConnectionPoolMetrics(
+            this);
+
+    InstrumentedConnectionPool(final ConnectionPool pool, final ServerSession owner) {
+        super(pool.getName(), pool.getLogin(), pool
+                .getInitialNumberOfConnections(), pool
+                .getMinNumberOfConnections(), pool.getMaxNumberOfConnections(),
+                owner);
+        setWaitTimeout(pool.getWaitTimeout());
+        setFailoverConnectionPools(pool.getFailoverConnectionPools());
+    }
+
+    @Override
+    public ConnectionPoolMetrics getMetrics() {
+        return metrics;
+    }
+
+    @Override
+    public Accessor acquireConnection() {
+        // not synchronized, such that threads blocking on the pool count as
+        // waiting
+        final long start = metrics.acquiring();
+        boolean success = false;
+        try {
+            final Accessor accessor = super.acquireConnection();
+            success = true;
+            return accessor;
+        } finally {
+            metrics.acquired(start, success);
+        }
+    }
+}
@@ -0,0 +1,9 @@
+package de.fu.mi.scuttle.lib.persistence;
+
+/**
+ * A connection pool which records {@link ConnectionPoolMetrics}.
+ */
+interface InstrumentedPool {
+
+    ConnectionPoolMetrics getMetrics();
+}
@@ -0,0 +1,44 @@
+package de.fu.mi.scuttle.lib.persistence;
+
+import org.eclipse.persistence.internal.databaseaccess.Accessor;
+import org.eclipse.persistence.sessions.server.ConnectionPool;
+import org.eclipse.persistence.sessions.server.ReadConnectionPool;
+import org.eclipse.persistence.sessions.server.ServerSession;
+
+/**
+ * An EclipseLink read connection pool (whose connections are shared) which
+ * records {@link ConnectionPoolMetrics}.
+ */
+class InstrumentedReadConnectionPool extends ReadConnectionPool implements
+        InstrumentedPool {
+
+    private final ConnectionPoolMetrics metrics = new ConnectionPoolMetrics(
+            this);
+
+    InstrumentedReadConnectionPool(final ConnectionPool pool, final ServerSession owner) {
+        super(pool.getName(), pool.getLogin(), pool
+                .getInitialNumberOfConnections(), pool
+                .getMinNumberOfConnections(), pool.getMaxNumberOfConnections(),
+                owner);
+        setWaitTimeout(pool.getWaitTimeout());
+        setFailoverConnectionPools(pool.getFailoverConnectionPools());
+    }
+
+    @Override
+    public ConnectionPoolMetrics getMetrics() {
+        return metrics;
+    }
+
+    @Override
+    public Accessor acquireConnection() {
+        final long start = metrics.acquiring();
+        boolean success = false;
+        try {
+            final Accessor accessor = super.acquireConnection();
+            success = true;
+            return accessor;
+        } finally {
+            metrics.acquired(start, success);
+        }
+    }
+}
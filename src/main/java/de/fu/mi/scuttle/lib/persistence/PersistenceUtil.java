@@ -8,8 +8,10 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.TreeMap;
 
 import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
@@ -18,7 +20,14 @@ import javax.persistence.Table;
 import javax.persistence.metamodel.EntityType;
 import javax.persistence.metamodel.Metamodel;
 
+import org.json.JSONObject;
+
+import org.eclipse.persistence.config.PersistenceUnitProperties;
+import org.eclipse.persistence.jpa.JpaHelper;
 import org.eclipse.persistence.sessions.DatabaseSession;
+import org.eclipse.persistence.sessions.server.ConnectionPool;
+import org.eclipse.persistence.sessions.server.Server;
+import org.eclipse.persistence.sessions.server.ServerSession;
 import org.eclipse.persistence.tools.schemaframework.SchemaManager;
 
 /**
@@ -182,4 +191,109 @@ public class PersistenceUtil {
 
         return properties;
     }
+
+    /**
+     * Like {@link #getProperties(String, String, String, String)}, but also
+     * configures the internal connection pools of EclipseLink.
+     * 
+     * The configuration may contain the sections <code>write</code> (the
+     * default pool) and <code>read</code>, each with the optional keys
+     * <code>initial</code>, <code>min</code>, <code>max</code> (numbers of
+     * connections), <code>wait</code> (the acquisition timeout in
+     * milliseconds) and, for the read pool, <code>shared</code>. Furthermore
+     * <code>pingSql</code> and <code>validateOnError</code> configure the
+     * validation of connections and <code>metrics</code> (true by default)
+     * enables the {@link ConnectionPoolMetrics}, see
+     * {@link #getConnectionPoolMetrics(EntityManagerFactory)}.
+     * 
+     * @param pool
+     *            The pool configuration, may be null.
+     */
+    public static Properties getProperties(final String jdbcDriver,
+            final String jdbcUser, final String jdbcPassword,
+            final String jdbcUrl, final JSONObject pool) {
+
+        final Properties properties = getProperties(jdbcDriver, jdbcUser,
+                jdbcPassword, jdbcUrl);
+        if (pool == null) {
+            return properties;
+        }
+        setPoolProperties(properties, PersistenceUnitProperties.CONNECTION_POOL
+                + "default.", pool.optJSONObject("write"));
+        setPoolProperties(properties,
+                PersistenceUnitProperties.CONNECTION_POOL_READ,
+                pool.optJSONObject("read"));
+
+        boolean customize = pool.optBoolean("metrics", true);
+        if (pool.has("pingSql")) {
+            properties.setProperty(ConnectionPoolCustomizer.PING_SQL,
+                    pool.optString("pingSql"));
+            customize = true;
+        }
+        if (pool.has("validateOnError")) {
+            properties.setProperty(ConnectionPoolCustomizer.VALIDATE_ON_ERROR,
+                    String.valueOf(pool.optBoolean("validateOnError")));
+            customize = true;
+        }
+        if (customize) {
+            properties.setProperty(
+                    PersistenceUnitProperties.SESSION_CUSTOMIZER,
+                    ConnectionPoolCustomizer.class.getName());
+        }
+        return properties;
+    }
+
+    private static void setPoolProperties(final Properties properties,
+            final String prefix, final JSONObject config) {
+        if (config == null) {
+            return;
+        }
+        for (final String key : new String[] {
+                PersistenceUnitProperties.CONNECTION_POOL_INITIAL,
+                PersistenceUnitProperties.CONNECTION_POOL_MIN,
+                PersistenceUnitProperties.CONNECTION_POOL_MAX,
+                PersistenceUnitProperties.CONNECTION_POOL_WAIT,
+                PersistenceUnitProperties.CONNECTION_POOL_SHARED }) {
+            if (config.has(key)) {
+                properties.setProperty(prefix + key,
+                        String.valueOf(config.opt(key)));
+            }
+        }
+    }
+
+    /**
+     * Retrieves the metrics of the connection pools, see
+     * {@link ConnectionPoolMetrics}.
+     * 
+     * @param emf
+     *            An EclipseLink EntityManagerFactory whose properties were
+     *            created by
+     *            {@link #getProperties(String, String, String, String, JSONObject)}
+     *            .
+     * @return The metrics by pool name, empty if the pools are not
+     *         instrumented.
+     */
+    public static Map<String, ConnectionPoolMetrics> getConnectionPoolMetrics(
+            final EntityManagerFactory emf) {
+        final Map<String, ConnectionPoolMetrics> metrics = new TreeMap<>();
+        if (emf == null || !JpaHelper.isEclipseLink(emf)) {
+            return metrics;
+        }
+        final Server server = JpaHelper.getServerSession(emf);
+        if (!(server instanceof ServerSession)) {
+            return metrics;
+        }
+        final ServerSession session = (ServerSession) server;
+        final List<ConnectionPool> pools = new ArrayList<>(session
+                .getConnectionPools().values());
+        pools.add(session.getReadConnectionPool());
+        for (final ConnectionPool pool : pools) {
+            if (pool instanceof InstrumentedPool) {
+                metrics.put(pool.getName(),
+                        ((InstrumentedPool) pool).getMetrics());
+            }
+        }
+        return metrics;
+    }
+
 }
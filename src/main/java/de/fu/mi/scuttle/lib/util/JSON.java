@@ -3,6 +3,7 @@ package de.fu.mi.scuttle.lib.util;
 import java.io.StringWriter;
 
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.Source;
 import javax.xml.transform.TransformerException;
 
 import org.json.JSONException;
@@ -36,6 +37,19 @@ public final class JSON {
         return JsonToXml.jsonToDomDocument(object);
     }
 
+    /**
+     * Creates a source for a transformation of the XML representation of a
+     * JSON object, without building a DOM Document (see
+     * {@link JsonXmlReader}).
+     * 
+     * @param object
+     *            The object.
+     * @return The source.
+     */
+    public static Source toSource(final JSONObject object) {
+        return JsonXmlReader.source(object);
+    }
+
     public static String toXML(final JSONObject object)
             throws ParserConfigurationException, JSONException,
             TransformerException {
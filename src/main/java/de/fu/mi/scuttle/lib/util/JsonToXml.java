@@ -148,7 +148,7 @@ public class JsonToXml {
         }
     }
 
-    private static String sanitize(final String value) {
+    static String sanitize(final String value) {
         return value
                 .replaceAll(
                         "["
@@ -0,0 +1,348 @@
+package de.fu.mi.scuttle.lib.util;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import javax.xml.transform.sax.SAXSource;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.DTDHandler;
+import org.xml.sax.EntityResolver;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.DefaultHandler;
+
+import com.google.common.base.Charsets;
+
+/**
+ * Emits the XML representation of a JSON document as SAX events, without
+ * building a DOM Document first (see {@link JsonToXml}). The events describe
+ * the very same document as {@link JsonToXml#jsonToDomDocument(JSONObject)}:
+ * the elements <code>object</code>, <code>array</code>, <code>string</code>,
+ * <code>number</code>, <code>bool</code> and <code>null</code>, the members
+ * of an object carry their name in the attribute <code>key</code>.
+ *
+ * The reader either walks a {@link JSONObject} or {@link JSONArray} which is
+ * in memory already, or reads the JSON document from the character (or UTF-8
+ * byte) stream of the {@link InputSource} it is asked to parse, in which case
+ * the memory needed is proportional to the depth of the document, not its
+ * size. Use it as the source of a transformation via {@link #source(JSONObject)}
+ * or {@link #source(Reader)}.
+ */
+public final class JsonXmlReader implements XMLReader {
+
+    private static final String NAMESPACES = "http://xml.org/sax/features/namespaces";
+
+    private static final AttributesImpl NO_ATTRIBUTES = new AttributesImpl();
+
+    /**
+     * The JSON value to walk, or null if the document is read from the input
+     * source.
+     */
+    private final Object json;
+
+    private final Map<String, Boolean> features = new HashMap<>();
+
+    private final Map<String, Object> properties = new HashMap<>();
+
+    private ContentHandler contentHandler = new DefaultHandler();
+
+    private DTDHandler dtdHandler;
+
+    private EntityResolver entityResolver;
+
+    private ErrorHandler errorHandler;
+
+    /**
+     * Creates a reader which reads the JSON document from the input source.
+     */
+    public JsonXmlReader() {
+        this(null);
+    }
+
+    /**
+     * Creates a reader which walks the given JSON value and ignores the input
+     * source.
+     *
+     * @param json
+     *            A {@link JSONObject} or a {@link JSONArray}.
+     */
+    public JsonXmlReader(final Object json) {
+        this.json = json;
+        features.put(NAMESPACES, true);
+    }
+
+    /**
+     * Creates a source for a transformation from a JSON object.
+     *
+     * @param object
+     *            The object.
+     * @return The source.
+     */
+    public static SAXSource source(final JSONObject object) {
+        return new SAXSource(new JsonXmlReader(object), new InputSource());
+    }
+
+    /**
+     * Creates a source for a transformation which reads a JSON document from
+     * a stream.
+     *
+     * @param json
+     *            The JSON document.
+     * @return The source.
+     */
+    public static SAXSource source(final Reader json) {
+        return new SAXSource(new JsonXmlReader(), new InputSource(json));
+    }
+
+    /**
+     * Writes the JSON value this reader walks as JSON text.
+     *
+     * @param writer
+     *            The writer.
+     * @throws JSONException
+     *             If the value could not be written.
+     * @throws IllegalStateException
+     *             If the reader reads the document from the input source.
+     */
+    public void write(final Writer writer) throws JSONException {
+        if (json instanceof JSONObject) {
+            ((JSONObject) json).write(writer);
+        } else if (json instanceof JSONArray) {
+            ((JSONArray) json).write(writer);
+        } else {
+            throw new IllegalStateException("No JSON value to write");
+        }
+    }
+
+    @Override
+    public void parse(final InputSource input) throws IOException,
+            SAXException {
+        contentHandler.startDocument();
+        try {
+            if (json != null) {
+                value(null, json);
+            } else {
+                final Reader reader;
+                if (input.getCharacterStream() != null) {
+                    reader = input.getCharacterStream();
+                } else if (input.getByteStream() != null) {
+                    reader = new InputStreamReader(input.getByteStream(),
+                            Charsets.UTF_8);
+                } else {
+                    throw new SAXException("Neither a character stream nor "
+                            + "a byte stream given to read JSON from");
+                }
+                value(null, new JSONTokener(reader));
+            }
+        } catch (final JSONException exc) {
+            throw new SAXException(exc);
+        }
+        contentHandler.endDocument();
+    }
+
+    @Override
+    public void parse(final String systemId) throws IOException, SAXException {
+        parse(new InputSource(systemId));
+    }
+
+    /**
+     * Emits a value of a JSON object or array which is in memory.
+     */
+    @SuppressWarnings("unchecked")
+    private void value(final String key, final Object value)
+            throws SAXException, JSONException {
+        if (value instanceof JSONObject) {
+            final JSONObject object = (JSONObject) value;
+            start("object", key);
+            for (final Iterator<String> it = object.keys(); it.hasNext();) {
+                final String k = it.next();
+                value(k, object.get(k));
+            }
+            end("object");
+        } else if (value instanceof JSONArray) {
+            final JSONArray array = (JSONArray) value;
+            start("array", key);
+            for (int i = 0; i < array.length(); i++) {
+                value(null, array.get(i));
+            }
+            end("array");
+        } else {
+            primitive(key, value);
+        }
+    }
+
+    /**
+     * Reads a value from a JSON document and emits it right away. Only the
+     * primitive values are materialized.
+     */
+    private void value(final String key, final JSONTokener tokener)
+            throws SAXException, JSONException {
+        char c = tokener.nextClean();
+        switch (c) {
+        case '{':
+            start("object", key);
+            if (tokener.nextClean() != '}') {
+                tokener.back();
+                for (;;) {
+                    c = tokener.nextClean();
+                    if (c != '"' && c != '\'') {
+                        throw tokener.syntaxError("Expected a key");
+                    }
+                    final String k = tokener.nextString(c);
+                    if (tokener.nextClean() != ':') {
+                        throw tokener.syntaxError("Expected a ':' after a key");
+                    }
+                    value(k, tokener);
+                    c = tokener.nextClean();
+                    if (c == '}') {
+                        break;
+                    } else if (c != ',') {
+                        throw tokener.syntaxError("Expected a ',' or '}'");
+                    }
+                }
+            }
+            end("object");
+            break;
+        case '[':
+            start("array", key);
+            if (tokener.nextClean() != ']') {
+                tokener.back();
+                for (;;) {
+                    value(null, tokener);
+                    c = tokener.nextClean();
+                    if (c == ']') {
+                        break;
+                    } else if (c != ',') {
+                        throw tokener.syntaxError("Expected a ',' or ']'");
+                    }
+                }
+            }
+            end("array");
+            break;
+        case '"':
+        case '\'':
+            primitive(key, tokener.nextString(c));
+            break;
+        default:
+            tokener.back();
+            primitive(key, tokener.nextValue());
+        }
+    }
+
+    private void primitive(final String key, final Object value)
+            throws SAXException {
+        if (value == JSONObject.NULL || value == null) {
+            start("null", key);
+            end("null");
+        } else if (value instanceof Integer || value instanceof Long
+                || value instanceof BigInteger || value instanceof Float
+                || value instanceof Double || value instanceof BigDecimal) {
+            text("number", key, String.valueOf(value));
+        } else if (value instanceof Boolean) {
+            text("bool", key, (Boolean) value ? "true" : "false");
+        } else {
+            text("string", key, JsonToXml.sanitize(String.valueOf(value)));
+        }
+    }
+
+    private void text(final String name, final String key, final String text)
+            throws SAXException {
+        start(name, key);
+        contentHandler.characters(text.toCharArray(), 0, text.length());
+        end(name);
+    }
+
+    private void start(final String name, final String key)
+            throws SAXException {
+        final AttributesImpl attributes;
+        if (key == null) {
+            attributes = NO_ATTRIBUTES;
+        } else {
+            attributes = new AttributesImpl();
+            attributes.addAttribute("", "key", "key", "CDATA", key);
+        }
+        contentHandler.startElement("", name, name, attributes);
+    }
+
+    private void end(final String name) throws SAXException {
+        contentHandler.endElement("", name, name);
+    }
+
+    @Override
+    public boolean getFeature(final String name) {
+        final Boolean value = features.get(name);
+        return value != null && value;
+    }
+
+    @Override
+    public void setFeature(final String name, final boolean value) {
+        // the events are the same regardless of the features
+        features.put(name, value);
+    }
+
+    @Override
+    public Object getProperty(final String name) {
+        return properties.get(name);
+    }
+
+    @Override
+    public void setProperty(final String name, final Object value) {
+        // there are no comments or DTDs to report to a lexical handler
+        properties.put(name, value);
+    }
+
+    @Override
+    public void setEntityResolver(final EntityResolver resolver) {
+        this.entityResolver = resolver;
+    }
+
+    @Override
+    public EntityResolver getEntityResolver() {
+        return entityResolver;
+    }
+
+    @Override
+    public void setDTDHandler(final DTDHandler handler) {
+        this.dtdHandler = handler;
+    }
+
+    @Override
+    public DTDHandler getDTDHandler() {
+        return dtdHandler;
+    }
+
+    @Override
+    public void setContentHandler(final ContentHandler handler) {
+        this.contentHandler = handler;
+    }
+
+    @Override
+    public ContentHandler getContentHandler() {
+        return contentHandler;
+    }
+
+    @Override
+    public void setErrorHandler(final ErrorHandler handler) {
+        this.errorHandler = handler;
+    }
+
+    @Override
+    public ErrorHandler getErrorHandler() {
+        return errorHandler;
+    }
+}
@@ -0,0 +1,154 @@
+package de.fu.mi.scuttle.lib.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * A gzip compressing output stream, like
+ * {@link java.util.zip.GZIPOutputStream}, which takes its {@link Deflater}
+ * from a pool and returns it when it is closed.
+ *
+ * Every Deflater holds a sizable chunk of native memory (the zlib state),
+ * which is only freed by {@link Deflater#end()} or the finalizer. Creating one
+ * per response churns native memory and defers freeing it to the garbage
+ * collector, hence the Deflaters are reset and reused instead. The stream must
+ * be closed to return its Deflater, a stream which is not closed merely leaves
+ * its Deflater to the garbage collector.
+ */
+public final class PooledGzipOutputStream extends DeflaterOutputStream {
+
+    private static final int GZIP_MAGIC = 0x8b1f;
+
+    private static final byte[] HEADER = {
+            (byte) GZIP_MAGIC, // magic number
+            (byte) (GZIP_MAGIC >> 8), // magic number
+            Deflater.DEFLATED, // compression method
+            0, // flags
+            0, 0, 0, 0, // modification time
+            0, // extra flags
+            0 // operating system
+    };
+
+    private static final BlockingQueue<Deflater> pool = new ArrayBlockingQueue<>(
+            Math.max(4, 2 * Runtime.getRuntime().availableProcessors()));
+
+    private final CRC32 crc = new CRC32();
+
+    private boolean finished = false;
+
+    private boolean closed = false;
+
+    /**
+     * Creates a gzip stream and writes the gzip header.
+     *
+     * @param out
+     *            The stream the compressed data is written to.
+     * @param level
+     *            The compression level, 0-9 or
+     *            {@link Deflater#DEFAULT_COMPRESSION}.
+     * @throws IOException
+     *             If the header could not be written.
+     */
+    public PooledGzipOutputStream(final OutputStream out, final int level)
+            throws IOException {
+        super(out, acquire(level), 8192);
+        out.write(HEADER);
+    }
+
+    private static Deflater acquire(final int level) {
+        final Deflater deflater = pool.poll();
+        if (deflater == null) {
+            // the gzip header and trailer are written by the stream
+            return new Deflater(level, true);
+        }
+        deflater.setLevel(level);
+        return deflater;
+    }
+
+    private static void release(final Deflater deflater) {
+        deflater.reset();
+        if (!pool.offer(deflater)) {
+            deflater.end();
+        }
+    }
+
+    @Override
+    public void write(final byte[] bytes, final int offset, final int length)
+            throws IOException {
+        if (closed) {
+            // the Deflater may be in use by another stream already
+            throw new IOException("Stream closed");
+        }
+        super.write(bytes, offset, length);
+        crc.update(bytes, offset, length);
+    }
+
+    /**
+     * Writes the remaining compressed data and the gzip trailer without
+     * closing the underlying stream. The Deflater is returned to the pool
+     * when the stream is closed.
+     */
+    @Override
+    public void finish() throws IOException {
+        if (!finished && !closed) {
+            finished = true;
+            super.finish();
+            final long length = def.getBytesRead();
+            final byte[] trailer = new byte[8];
+            writeInt(trailer, 0, (int) crc.getValue());
+            writeInt(trailer, 4, (int) length);
+            out.write(trailer);
+        }
+    }
+
+    private static void writeInt(final byte[] bytes, final int offset,
+            final int value) {
+        // little endian
+        bytes[offset] = (byte) value;
+        bytes[offset + 1] = (byte) (value >> 8);
+        bytes[offset + 2] = (byte) (value >> 16);
+        bytes[offset + 3] = (byte) (value >> 24);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!closed) {
+            try {
+                finish();
+            } finally {
+                closed = true;
+                release(def);
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * Compresses a byte array.
+     *
+     * @param bytes
+     *            The bytes.
+     * @param level
+     *            The compression level, 0-9 or
+     *            {@link Deflater#DEFAULT_COMPRESSION}.
+     * @return The gzip compressed bytes.
+     */
+    public static byte[] compress(final byte[] bytes, final int level) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(
+                64, bytes.length / 2));
+        try (final PooledGzipOutputStream gzip = new PooledGzipOutputStream(
+                out, level)) {
+            gzip.write(bytes);
+        } catch (final IOException exc) {
+            // a ByteArrayOutputStream does not throw
+            throw new IllegalStateException(exc);
+        }
+        return out.toByteArray();
+    }
+}
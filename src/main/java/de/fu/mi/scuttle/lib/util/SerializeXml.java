@@ -5,9 +5,9 @@ import java.io.OutputStream;
 import java.io.StringWriter;
 
 import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Templates;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
 
@@ -24,18 +24,10 @@ import org.w3c.dom.Document;
  */
 public class SerializeXml {
 
-    private final static ThreadLocal<TransformerFactory> transformerFactory = new ThreadLocal<TransformerFactory>() {
-        @Override
-        protected TransformerFactory initialValue() {
-            return TransformerFactory.newInstance();
-        }
-    };
-
     public static String domDocumentToString(final Document doc,
             final boolean xmlDeclaration)
             throws TransformerException {
-        final Transformer transformer = transformerFactory.get()
-                .newTransformer();
+        final Transformer transformer = XslTemplates.identity();
         transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION,
                 xmlDeclaration ? "no" : "yes");
         final StringWriter writer = new StringWriter();
@@ -46,8 +38,7 @@ public class SerializeXml {
     public static byte[] domDocumentToByteArray(final Document doc,
             final boolean xmlDeclaration)
             throws TransformerException {
-        final Transformer transformer = transformerFactory.get()
-                .newTransformer();
+        final Transformer transformer = XslTemplates.identity();
         transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION,
                 xmlDeclaration ? "no" : "yes");
         final ByteArrayOutputStream out = new ByteArrayOutputStream();
@@ -59,10 +50,30 @@ public class SerializeXml {
             final OutputStream out,
             final boolean xmlDeclaration)
             throws TransformerException {
-        final Transformer transformer = transformerFactory.get()
-                .newTransformer();
+        final Transformer transformer = XslTemplates.identity();
         transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION,
                 xmlDeclaration ? "no" : "yes");
         transformer.transform(new DOMSource(doc), new StreamResult(out));
     }
+
+    /**
+     * Transforms a DOM document with a compiled style sheet and writes the
+     * result to a stream.
+     * 
+     * @param doc
+     *            The document.
+     * @param stylesheet
+     *            The style sheet, see {@link XslTemplates}.
+     * @param out
+     *            The output stream.
+     * @throws TransformerException
+     *             If an error occurred while transforming.
+     */
+    public static void transformToStream(final Document doc,
+            final Templates stylesheet,
+            final OutputStream out)
+            throws TransformerException {
+        stylesheet.newTransformer().transform(new DOMSource(doc),
+                new StreamResult(out));
+    }
 }
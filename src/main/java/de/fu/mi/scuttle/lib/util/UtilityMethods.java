@@ -1,19 +1,15 @@
 package de.fu.mi.scuttle.lib.util;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.zip.GZIPOutputStream;
+import java.util.zip.Deflater;
 
 import com.google.common.base.Function;
-import com.google.common.io.ByteStreams;
 
 /**
  * Utility methods for basic tasks, like creating a {@link Pair}, creating a
@@ -75,16 +71,8 @@ public class UtilityMethods {
      *             contracts of most OutputStreams say so.
      */
     public static byte[] gzipCompress(final byte[] bytes) throws IOException {
-
-        final ByteArrayInputStream in = new ByteArrayInputStream(bytes);
-        final ByteArrayOutputStream out = new ByteArrayOutputStream(
-                bytes.length);
-        final OutputStream gzip = new GZIPOutputStream(out);
-        ByteStreams.copy(in, gzip);
-        in.close();
-        gzip.close();
-
-        return out.toByteArray();
+        return PooledGzipOutputStream.compress(bytes,
+                Deflater.DEFAULT_COMPRESSION);
     }
 
     public static <A, B> ArrayList<B> map(final Function<A, B> f,
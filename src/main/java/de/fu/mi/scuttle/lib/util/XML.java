@@ -8,7 +8,10 @@ import java.io.OutputStream;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.Templates;
 import javax.xml.transform.TransformerException;
+import javax.xml.transform.dom.DOMResult;
+import javax.xml.transform.dom.DOMSource;
 
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
@@ -121,4 +124,59 @@ public final class XML {
             throws TransformerException {
         return SerializeXml.domDocumentToByteArray(doc, false);
     }
+
+    /**
+     * Transforms a DOM Document with a compiled XSL-T style sheet and writes
+     * the result to an arbitrary OutputStream.
+     * 
+     * @param doc
+     *            The document.
+     * @param stylesheet
+     *            The style sheet, see {@link XslTemplates}.
+     * @param out
+     *            The output stream.
+     * @throws TransformerException
+     *             If an error occurred while transforming.
+     */
+    public static void toStream(final Document doc, final Templates stylesheet,
+            final OutputStream out) throws TransformerException {
+        SerializeXml.transformToStream(doc, stylesheet, out);
+    }
+
+    /**
+     * Transforms a DOM Document with a compiled XSL-T style sheet into
+     * another DOM Document.
+     * 
+     * @param doc
+     *            The document.
+     * @param stylesheet
+     *            The style sheet, see {@link XslTemplates}.
+     * @return The resulting document.
+     * @throws TransformerException
+     *             If an error occurred while transforming.
+     */
+    public static Document transform(final Document doc,
+            final Templates stylesheet) throws TransformerException {
+        final DOMResult result = new DOMResult();
+        stylesheet.newTransformer().transform(new DOMSource(doc), result);
+        return (Document) result.getNode();
+    }
+
+    /**
+     * Transforms a DOM Document with the XSL-T style sheet from a file, which
+     * is compiled once and cached, see {@link XslTemplates#get(File)}.
+     * 
+     * @param doc
+     *            The document.
+     * @param stylesheet
+     *            The style sheet.
+     * @return The resulting document.
+     * @throws TransformerException
+     *             If the style sheet could not be compiled or an error
+     *             occurred while transforming.
+     */
+    public static Document transform(final Document doc, final File stylesheet)
+            throws TransformerException {
+        return transform(doc, XslTemplates.get(stylesheet));
+    }
 }
@@ -0,0 +1,258 @@
+package de.fu.mi.scuttle.lib.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+import javax.xml.transform.Source;
+import javax.xml.transform.Templates;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.stream.StreamSource;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+/**
+ * A process-wide cache of compiled XSL-T style sheets.
+ *
+ * Parsing and compiling a style sheet is usually far more expensive than
+ * applying it. The compiled {@link Templates} are thread safe, hence they are
+ * compiled once and shared by all requests, every transformation gets a
+ * {@link Transformer} of its own via {@link Templates#newTransformer()}.
+ *
+ * Style sheets from files are cached by their canonical path. If reloading is
+ * enabled (which it is in debug builds, see {@link #configure(long, boolean)})
+ * the modification time and the size of the file are checked on every lookup
+ * and the style sheet is compiled again if it changed. Style sheets from
+ * streams or DOM documents have no identity of their own, they are cached by a
+ * key chosen by the caller, see {@link #get(String, Callable)}.
+ *
+ * The number of cached style sheets is bounded, the least recently used ones
+ * are dropped first.
+ */
+public final class XslTemplates {
+
+    private XslTemplates() {
+    }
+
+    /**
+     * A compiled style sheet and the state of the file it was compiled from.
+     */
+    private static final class Compiled {
+
+        private final Templates templates;
+        private final long lastModified;
+        private final long length;
+
+        Compiled(final Templates templates, final long lastModified,
+                final long length) {
+            this.templates = templates;
+            this.lastModified = lastModified;
+            this.length = length;
+        }
+
+        boolean isCurrent(final File file) {
+            return file.lastModified() == lastModified
+                    && file.length() == length;
+        }
+    }
+
+    /**
+     * TransformerFactory is not guaranteed to be thread safe.
+     */
+    private static final ThreadLocal<TransformerFactory> transformerFactory = new ThreadLocal<TransformerFactory>() {
+        @Override
+        protected TransformerFactory initialValue() {
+            return TransformerFactory.newInstance();
+        }
+    };
+
+    private static volatile Cache<String, Compiled> cache = newCache(64);
+
+    private static volatile boolean reload = false;
+
+    /**
+     * The settings in effect and the number of servlets which configured
+     * them, guarded by the class.
+     */
+    private static long configuredMaxEntries;
+
+    private static int users = 0;
+
+    private static Cache<String, Compiled> newCache(final long maxEntries) {
+        return CacheBuilder.newBuilder()
+                .maximumSize(Math.max(0, maxEntries))
+                .build();
+    }
+
+    /**
+     * Configures the cache on behalf of a servlet. The cache is shared by all
+     * servlets of the process, the first one configures it (dropping all
+     * style sheets cached so far), the others merely use it. Every call must
+     * be matched by a call to {@link #release()}.
+     *
+     * @param maxEntries
+     *            The maximum number of cached style sheets.
+     * @param reload
+     *            Whether style sheets from files are compiled again when the
+     *            file changes.
+     * @return false if the cache has been configured differently by another
+     *         servlet already, whose configuration is in effect.
+     */
+    public static synchronized boolean configure(final long maxEntries,
+            final boolean reload) {
+        if (users++ > 0) {
+            return configuredMaxEntries == maxEntries
+                    && XslTemplates.reload == reload;
+        }
+        XslTemplates.cache = newCache(maxEntries);
+        XslTemplates.reload = reload;
+        XslTemplates.configuredMaxEntries = maxEntries;
+        return true;
+    }
+
+    /**
+     * Releases the cache on behalf of a servlet. Once the last servlet has
+     * released it, the cached style sheets (and the classes compiled for
+     * them) are dropped and the defaults are restored.
+     */
+    public static synchronized void release() {
+        if (users > 0 && --users > 0) {
+            return;
+        }
+        users = 0;
+        XslTemplates.cache = newCache(64);
+        XslTemplates.reload = false;
+    }
+
+    /**
+     * Retrieve the compiled style sheet from a file.
+     *
+     * @param stylesheet
+     *            The file.
+     * @return The compiled style sheet.
+     * @throws TransformerConfigurationException
+     *             If the style sheet could not be read or compiled.
+     */
+    public static Templates get(final File stylesheet)
+            throws TransformerConfigurationException {
+        final File file;
+        try {
+            file = stylesheet.getCanonicalFile();
+        } catch (final IOException exc) {
+            throw new TransformerConfigurationException(exc);
+        }
+        final Cache<String, Compiled> cache = XslTemplates.cache;
+        final String key = "file:" + file.getPath();
+        final Callable<Compiled> loader = new Callable<Compiled>() {
+            @Override
+            public Compiled call() throws Exception {
+                // read the state before compiling, such that a change while
+                // compiling is noticed on the next lookup
+                final long lastModified = file.lastModified();
+                final long length = file.length();
+                return new Compiled(compile(new StreamSource(file)),
+                        lastModified, length);
+            }
+        };
+        Compiled compiled = get(cache, key, loader);
+        if (reload && !compiled.isCurrent(file)) {
+            cache.asMap().remove(key, compiled);
+            compiled = get(cache, key, loader);
+        }
+        return compiled.templates;
+    }
+
+    /**
+     * Retrieve a compiled style sheet by a key of the caller's choice,
+     * compiling it if it is not cached yet. Concurrent lookups of the same key
+     * compile the style sheet only once.
+     *
+     * @param key
+     *            The key, which must identify the style sheet, for example the
+     *            name of the resource it is read from.
+     * @param stylesheet
+     *            Supplies the style sheet if it needs to be compiled.
+     * @return The compiled style sheet.
+     * @throws TransformerConfigurationException
+     *             If the style sheet could not be read or compiled.
+     */
+    public static Templates get(final String key,
+            final Callable<? extends Source> stylesheet)
+            throws TransformerConfigurationException {
+        return get(cache, "key:" + key, new Callable<Compiled>() {
+            @Override
+            public Compiled call() throws Exception {
+                return new Compiled(compile(stylesheet.call()), 0, 0);
+            }
+        }).templates;
+    }
+
+    private static Compiled get(final Cache<String, Compiled> cache,
+            final String key, final Callable<Compiled> loader)
+            throws TransformerConfigurationException {
+        try {
+            return cache.get(key, loader);
+        } catch (final ExecutionException | UncheckedExecutionException exc) {
+            if (exc.getCause() instanceof TransformerConfigurationException) {
+                throw (TransformerConfigurationException) exc.getCause();
+            }
+            throw new TransformerConfigurationException(exc.getCause());
+        }
+    }
+
+    /**
+     * Drops a style sheet which was cached by a key of the caller's choice.
+     *
+     * @param key
+     *            The key as given to {@link #get(String, Callable)}.
+     */
+    public static void invalidate(final String key) {
+        cache.invalidate("key:" + key);
+    }
+
+    /**
+     * Drops all cached style sheets.
+     */
+    public static void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    /**
+     * Compiles a style sheet without caching it.
+     *
+     * @param stylesheet
+     *            The style sheet.
+     * @return The compiled style sheet.
+     * @throws TransformerConfigurationException
+     *             If the style sheet could not be compiled.
+     */
+    public static Templates compile(final Source stylesheet)
+            throws TransformerConfigurationException {
+        final Templates templates = transformerFactory.get().newTemplates(
+                stylesheet);
+        if (templates == null) {
+            // some implementations report errors to the error listener only
+            throw new TransformerConfigurationException(
+                    "Could not compile the style sheet "
+                            + stylesheet.getSystemId());
+        }
+        return templates;
+    }
+
+    /**
+     * Creates a transformer which copies the source to the result unchanged.
+     *
+     * @return The identity transformer.
+     * @throws TransformerConfigurationException
+     *             If the transformer could not be created.
+     */
+    public static Transformer identity()
+            throws TransformerConfigurationException {
+        return transformerFactory.get().newTransformer();
+    }
+}
@@ -0,0 +1,166 @@
+package de.fu.mi.scuttle.lib.util.concurrent;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the number of concurrent executions of some piece of code.
+ * 
+ * At most <code>maxConcurrent</code> callers are admitted at the same time, at
+ * most <code>maxQueued</code> further callers may wait (for at most
+ * <code>maxWait</code> milliseconds) to be admitted. Everybody else is
+ * rejected immediately. A bulkhead keeps counters of what happened, which are
+ * meant for monitoring.
+ * 
+ * <pre>
+ * if (bulkhead.tryEnter()) {
+ *     try {
+ *         doWork();
+ *     } finally {
+ *         bulkhead.leave();
+ *     }
+ * } else {
+ *     reject();
+ * }
+ * </pre>
+ */
+public class Bulkhead {
+
+    private final int maxConcurrent;
+    private final int maxQueued;
+    private final long maxWait;
+    private final int retryAfter;
+
+    private final Semaphore permits;
+
+    private final AtomicInteger waiting = new AtomicInteger();
+
+    private final AtomicLong admitted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong timedOut = new AtomicLong();
+
+    /**
+     * Creates a new bulkhead.
+     * 
+     * @param maxConcurrent
+     *            The maximum number of concurrently admitted callers.
+     * @param maxQueued
+     *            The maximum number of callers waiting to be admitted.
+     * @param maxWait
+     *            The maximum time in milliseconds a caller waits to be
+     *            admitted.
+     * @param retryAfter
+     *            A hint for rejected callers when to try again, in seconds.
+     */
+    public Bulkhead(
+            final int maxConcurrent,
+            final int maxQueued,
+            final long maxWait,
+            final int retryAfter) {
+        if (maxConcurrent < 1) {
+            throw new IllegalArgumentException("maxConcurrent < 1");
+        }
+        this.maxConcurrent = maxConcurrent;
+        this.maxQueued = Math.max(0, maxQueued);
+        this.maxWait = Math.max(0, maxWait);
+        this.retryAfter = Math.max(1, retryAfter);
+        this.permits = new Semaphore(maxConcurrent, true);
+    }
+
+    /**
+     * Tries to enter this bulkhead. If this method returns true, the caller
+     * must invoke {@link #leave()} when done.
+     * 
+     * @return Whether the caller was admitted or not.
+     */
+    public boolean tryEnter() {
+        if (permits.tryAcquire()) {
+            admitted.incrementAndGet();
+            return true;
+        }
+        if (waiting.incrementAndGet() > maxQueued) {
+            waiting.decrementAndGet();
+            rejected.incrementAndGet();
+            return false;
+        }
+        try {
+            if (permits.tryAcquire(maxWait, TimeUnit.MILLISECONDS)) {
+                admitted.incrementAndGet();
+                return true;
+            }
+            timedOut.incrementAndGet();
+        } catch (final InterruptedException exc) {
+            Thread.currentThread().interrupt();
+        } finally {
+            waiting.decrementAndGet();
+        }
+        rejected.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Leaves this bulkhead, admitting the next caller.
+     */
+    public void leave() {
+        permits.release();
+    }
+
+    public int getMaxConcurrent() {
+        return maxConcurrent;
+    }
+
+    public int getMaxQueued() {
+        return maxQueued;
+    }
+
+    public long getMaxWait() {
+        return maxWait;
+    }
+
+    /**
+     * A hint for rejected callers when to try again.
+     * 
+     * @return The number of seconds to wait before trying again.
+     */
+    public int getRetryAfter() {
+        return retryAfter;
+    }
+
+    /**
+     * The number of callers currently admitted.
+     */
+    public int getActive() {
+        return maxConcurrent - permits.availablePermits();
+    }
+
+    /**
+     * The number of callers currently waiting to be admitted.
+     */
+    public int getWaiting() {
+        return waiting.get();
+    }
+
+    /**
+     * The total number of callers admitted so far.
+     */
+    public long getAdmitted() {
+        return admitted.get();
+    }
+
+    /**
+     * The total number of callers rejected so far (including those which
+     * timed out).
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * The total number of callers rejected after waiting so far.
+     */
+    public long getTimedOut() {
+        return timedOut.get();
+    }
+}
@@ -0,0 +1,72 @@
+package de.fu.mi.scuttle.lib.util.concurrent;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter which many threads can increment concurrently without contending
+ * on a single memory location.
+ *
+ * The count is spread over a number of cells (one per stripe, each on a cache
+ * line of its own). A thread always updates the cell its id maps to, reading
+ * the counter sums up all cells. Hence updates are cheap, reads are not, and
+ * a read that runs concurrently with updates is not an atomic snapshot. This
+ * is meant for statistics which are updated on hot paths and read rarely.
+ */
+public class StripedCounter {
+
+    /**
+     * The distance between two cells in longs, such that every cell is on a
+     * cache line of its own.
+     */
+    private static final int PADDING = 8;
+
+    private static final int STRIPES = stripes();
+
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPES
+            * PADDING);
+
+    private static int stripes() {
+        final int processors = Runtime.getRuntime().availableProcessors();
+        int stripes = 1;
+        while (stripes < 2 * processors && stripes < 64) {
+            stripes <<= 1;
+        }
+        return stripes;
+    }
+
+    private static int cell() {
+        // spread the (usually consecutive) thread ids over the stripes
+        final long id = Thread.currentThread().getId() * 0x9E3779B97F4A7C15L;
+        return (int) (id >>> 32) & (STRIPES - 1);
+    }
+
+    /**
+     * Increments the counter by one.
+     */
+    public void increment() {
+        add(1);
+    }
+
+    /**
+     * Adds to the counter.
+     *
+     * @param delta
+     *            The value to add, may be negative.
+     */
+    public void add(final long delta) {
+        cells.getAndAdd(cell() * PADDING, delta);
+    }
+
+    /**
+     * Retrieve the current value of the counter.
+     *
+     * @return The sum of all cells.
+     */
+    public long sum() {
+        long sum = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            sum += cells.get(i * PADDING);
+        }
+        return sum;
+    }
+}
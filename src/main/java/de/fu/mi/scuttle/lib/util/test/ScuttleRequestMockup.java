@@ -1,5 +1,8 @@
 package de.fu.mi.scuttle.lib.util.test;
 
+import java.util.Collections;
+import java.util.List;
+
 import de.fu.mi.scuttle.lib.web.ConversionException;
 import de.fu.mi.scuttle.lib.web.ScuttleRequest;
 import de.fu.mi.scuttle.lib.web.ScuttleSession;
@@ -16,6 +19,11 @@ public class ScuttleRequestMockup implements ScuttleRequest {
         return null;
     }
 
+    @Override
+    public String getRemoteAddress() {
+        return "127.0.0.1";
+    }
+
     @Override
     public String get(String name) {
         return null;
@@ -31,6 +39,12 @@ public class ScuttleRequestMockup implements ScuttleRequest {
         return null;
     }
 
+    @Override
+    public <T> List<T> getList(String name, Class<T> clazz)
+            throws ConversionException {
+        return Collections.emptyList();
+    }
+
     @Override
     public String getPath() {
         return "";
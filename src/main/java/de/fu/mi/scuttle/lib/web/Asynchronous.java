@@ -0,0 +1,48 @@
+package de.fu.mi.scuttle.lib.web;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+import de.fu.mi.scuttle.lib.ScuttleModule;
+
+/**
+ * Marks a module for asynchronous dispatch.
+ * 
+ * Requests to a {@link ScuttleModule} annotated with this annotation are not
+ * processed on the thread of the servlet container. Instead the request is
+ * put into asynchronous mode and {@link ScuttleModule#handle(ScuttleRequest)}
+ * as well as writing the response happen on a bounded executor that is
+ * exclusive to the module. Slow modules (like those that render PDF documents)
+ * can therefor not exhaust the connector pool of the container. If the
+ * executor of the module is saturated the request is answered with
+ * <code>503 Service Unavailable</code>.
+ * 
+ * Asynchronous dispatch requires the servlet to be declared with
+ * <code>&lt;async-supported&gt;true&lt;/async-supported&gt;</code>, otherwise
+ * requests are processed synchronously as usual.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface Asynchronous {
+
+    /**
+     * The number of threads processing requests for the module.
+     */
+    int threads() default 4;
+
+    /**
+     * The number of requests which may wait for a thread, further requests
+     * are rejected.
+     */
+    int queueSize() default 32;
+
+    /**
+     * The timeout of an asynchronous request in milliseconds, 0 means no
+     * timeout.
+     */
+    long timeout() default 60000;
+}
@@ -0,0 +1,33 @@
+package de.fu.mi.scuttle.lib.web;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+import de.fu.mi.scuttle.lib.ScuttleModule;
+
+/**
+ * Declares the version of the responses of a {@link ScuttleModule}, such that
+ * its cached responses may survive a restart.
+ *
+ * Responses of modules annotated with this annotation are also written to the
+ * disk tier of the {@link ResponseCache} (if it is enabled) and reloaded from
+ * there after a restart. Bump the version whenever a change of the code
+ * changes the responses, entries of other versions are discarded.
+ *
+ * Responses of modules without this annotation are cached in memory only, as
+ * are responses which depend on entities (see
+ * {@link CacheableResponse#dependsOn(Class...)}).
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface CacheVersion {
+
+    /**
+     * @return The version of the responses.
+     */
+    String value();
+}
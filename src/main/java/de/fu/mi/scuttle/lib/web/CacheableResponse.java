@@ -0,0 +1,125 @@
+package de.fu.mi.scuttle.lib.web;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+import de.fu.mi.scuttle.lib.persistence.EntityTags;
+import de.fu.mi.scuttle.lib.persistence.UuidEntity;
+
+/**
+ * Decorates a response of a module with the time it may be cached for.
+ *
+ * A response without a max-age stays in the {@link ResponseCache} until it is
+ * evicted. A response with a max-age is served from the cache while it is
+ * fresh. After that it is still served for the stale window, while a single
+ * background refresh computes a new response. Once the stale window has passed
+ * too, the response is computed again on the next request.
+ *
+ * The expiry only concerns the server side cache. No Cache-Control header is
+ * sent to the client.
+ *
+ * A response may also declare the entities it has been computed from. It is
+ * evicted as soon as one of them is persisted, merged or removed through the
+ * entity manager of the servlet (see
+ * {@link de.fu.mi.scuttle.lib.persistence.EntityChangeListener}). Such
+ * responses are not written to the disk tier of the cache, since changes made
+ * while the application is not running can not be noticed.
+ *
+ * <pre>
+ * return new CacheableResponse(new JSONResponse(result))
+ *         .maxAge(30, TimeUnit.SECONDS)
+ *         .staleWhileRevalidate(5, TimeUnit.MINUTES)
+ *         .dependsOn(Course.class);
+ * </pre>
+ */
+public class CacheableResponse implements ScuttleResponse {
+
+    private final ScuttleResponse response;
+
+    private long maxAge = -1;
+
+    private long staleWhileRevalidate = 0;
+
+    private final Collection<String> dependencies = new ArrayList<>();
+
+    /**
+     * @param response
+     *            The actual response.
+     */
+    public CacheableResponse(final ScuttleResponse response) {
+        this.response = response;
+    }
+
+    /**
+     * Sets the time the response is fresh for.
+     *
+     * @param duration
+     *            The duration, a negative duration means forever.
+     * @param unit
+     *            The unit of the duration.
+     * @return this
+     */
+    public CacheableResponse maxAge(final long duration, final TimeUnit unit) {
+        this.maxAge = duration < 0 ? -1 : unit.toNanos(duration);
+        return this;
+    }
+
+    /**
+     * Sets the time the response may still be served for after it has become
+     * stale, while it is being refreshed in the background.
+     *
+     * @param duration
+     *            The duration.
+     * @param unit
+     *            The unit of the duration.
+     * @return this
+     */
+    public CacheableResponse staleWhileRevalidate(final long duration,
+            final TimeUnit unit) {
+        this.staleWhileRevalidate = Math.max(0, unit.toNanos(duration));
+        return this;
+    }
+
+    /**
+     * Declares that the response depends on all entities of the given
+     * classes (including their subclasses), i.e. it is evicted whenever any
+     * of them is written.
+     *
+     * @param entityClasses
+     *            The entity classes.
+     * @return this
+     */
+    public CacheableResponse dependsOn(final Class<?>... entityClasses) {
+        for (final Class<?> entityClass : entityClasses) {
+            dependencies.add(EntityTags.of(entityClass));
+        }
+        return this;
+    }
+
+    /**
+     * Declares that the response depends on the given entities, i.e. it is
+     * evicted whenever one of them is written.
+     *
+     * @param entities
+     *            The entities.
+     * @return this
+     */
+    public CacheableResponse dependsOn(final UuidEntity<?>... entities) {
+        for (final UuidEntity<?> entity : entities) {
+            dependencies.add(EntityTags.of(entity));
+        }
+        return this;
+    }
+
+    @Override
+    public void doResponse(final boolean gzipSupported,
+            final ScuttleServletResponse response) throws Exception {
+        if (response instanceof HttpCachingResponse) {
+            ((HttpCachingResponse) response).expireAfter(maxAge,
+                    staleWhileRevalidate);
+            ((HttpCachingResponse) response).dependOn(dependencies);
+        }
+        this.response.doResponse(gzipSupported, response);
+    }
+}
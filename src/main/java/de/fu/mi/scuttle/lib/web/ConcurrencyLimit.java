@@ -0,0 +1,51 @@
+package de.fu.mi.scuttle.lib.web;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+import de.fu.mi.scuttle.lib.ScuttleModule;
+
+/**
+ * Limits the number of requests a {@link ScuttleModule} processes
+ * concurrently.
+ * 
+ * Requests exceeding the limit wait in a bounded queue, requests which do not
+ * fit into the queue (or wait for too long) are rejected with
+ * <code>503 Service Unavailable</code> and a <code>Retry-After</code> header.
+ * 
+ * The values given here can be overridden in the configuration of the servlet:
+ * 
+ * <pre>
+ * "bulkheads": {
+ *     "mountPoint": { "maxConcurrent": 8, "maxQueued": 16, "maxWait": 500 }
+ * }
+ * </pre>
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface ConcurrencyLimit {
+
+    /**
+     * The maximum number of requests processed concurrently.
+     */
+    int value();
+
+    /**
+     * The maximum number of requests waiting to be processed.
+     */
+    int maxQueued() default 0;
+
+    /**
+     * The maximum time in milliseconds a request waits to be processed.
+     */
+    long maxWait() default 1000;
+
+    /**
+     * The value of the Retry-After header of rejected requests, in seconds.
+     */
+    int retryAfter() default 1;
+}
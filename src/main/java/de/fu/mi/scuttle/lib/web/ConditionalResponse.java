@@ -0,0 +1,41 @@
+package de.fu.mi.scuttle.lib.web;
+
+/**
+ * A response which carries validators, such that a request for it can be
+ * answered with 304 Not Modified if the client has a current copy, see
+ * {@link ETags}.
+ */
+public interface ConditionalResponse extends ScuttleResponse {
+
+    /**
+     * Retrieve the entity tag of the representation that would be served.
+     *
+     * @param gzipSupported
+     *            Whether the client accepts gzip.
+     * @return The quoted entity tag or null if there is none.
+     */
+    String getETag(boolean gzipSupported);
+
+    /**
+     * Retrieve the modification time.
+     *
+     * @return The modification time in milli seconds since the epoch or a
+     *         negative value if it is unknown.
+     */
+    long getLastModified();
+
+    /**
+     * Writes the headers of a 304 Not Modified response, that is the
+     * validators and the headers which control caching. The status is set by
+     * the caller.
+     *
+     * @param gzipSupported
+     *            Whether the client accepts gzip.
+     * @param resp
+     *            The response.
+     * @throws Exception
+     *             Anything might happen.
+     */
+    void doNotModified(boolean gzipSupported, ScuttleServletResponse resp)
+            throws Exception;
+}
@@ -0,0 +1,280 @@
+package de.fu.mi.scuttle.lib.web;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+import org.json.JSONObject;
+
+import de.fu.mi.scuttle.lib.util.PooledGzipOutputStream;
+
+/**
+ * Negotiates the content encoding of responses and compresses them.
+ *
+ * Whether a client accepts gzip is determined from the quality values in its
+ * <code>Accept-Encoding</code> header, such that <code>gzip;q=0</code> is
+ * honoured. The responses are compressed with a level depending on their
+ * content type, and bodies below a minimum size are not compressed at all.
+ * The compressing streams take their {@link Deflater} from a pool, see
+ * {@link PooledGzipOutputStream}. Only gzip is produced: every client which
+ * accepts <code>deflate</code> accepts gzip as well, and responses are cached
+ * in a single encoding (see {@link HttpCachingResponse}).
+ *
+ * The settings are process-wide. The first servlet which starts configures
+ * them from the <code>compression</code> section of its configuration, they
+ * are kept until the last servlet is destroyed:
+ *
+ * <pre>
+ * "compression": {
+ *     "minSize": 256,
+ *     "level": 6,
+ *     "levels": { "text/css": 9, "application/javascript": 9 }
+ * }
+ * </pre>
+ */
+public final class ContentEncoding {
+
+    private ContentEncoding() {
+    }
+
+    private static volatile int minSize = 256;
+
+    private static volatile int defaultLevel = Deflater.DEFAULT_COMPRESSION;
+
+    private static volatile Map<String, Integer> levels = Collections
+            .emptyMap();
+
+    /**
+     * The number of servlets which configured the settings, guarded by the
+     * class.
+     */
+    private static int users = 0;
+
+    /**
+     * Configures the compression of responses on behalf of a servlet. Only
+     * the first servlet configures it, every call must be matched by a call
+     * to {@link #release()}.
+     *
+     * @param config
+     *            The <code>compression</code> section of the configuration,
+     *            may be null.
+     * @return false if another servlet has configured the compression
+     *         differently, whose configuration is in effect.
+     */
+    @SuppressWarnings("unchecked")
+    public static synchronized boolean configure(final JSONObject config) {
+        final JSONObject c = config == null ? new JSONObject() : config;
+        final int minSize = Math.max(0, c.optInt("minSize", 256));
+        final int defaultLevel = level(c.optInt("level",
+                Deflater.DEFAULT_COMPRESSION));
+
+        final Map<String, Integer> levels = new HashMap<>();
+        final JSONObject l = c.optJSONObject("levels");
+        if (l != null) {
+            for (final Iterator<String> it = l.keys(); it.hasNext();) {
+                final String type = it.next();
+                levels.put(mediaType(type), level(l.optInt(type,
+                        Deflater.DEFAULT_COMPRESSION)));
+            }
+        }
+
+        if (users++ > 0) {
+            return ContentEncoding.minSize == minSize
+                    && ContentEncoding.defaultLevel == defaultLevel
+                    && ContentEncoding.levels.equals(levels);
+        }
+        ContentEncoding.minSize = minSize;
+        ContentEncoding.defaultLevel = defaultLevel;
+        ContentEncoding.levels = levels;
+        return true;
+    }
+
+    /**
+     * Releases the configuration on behalf of a servlet. Once the last
+     * servlet has released it, the defaults are restored.
+     */
+    public static synchronized void release() {
+        if (users > 0 && --users > 0) {
+            return;
+        }
+        users = 0;
+        minSize = 256;
+        defaultLevel = Deflater.DEFAULT_COMPRESSION;
+        levels = Collections.emptyMap();
+    }
+
+    private static int level(final int level) {
+        return level < 0 || level > 9 ? Deflater.DEFAULT_COMPRESSION : level;
+    }
+
+    /**
+     * Strips the parameters (like the charset) from a content type.
+     */
+    private static String mediaType(final String contentType) {
+        final int semicolon = contentType.indexOf(';');
+        return (semicolon < 0 ? contentType : contentType.substring(0,
+                semicolon)).trim().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Determine whether a client accepts gzip compressed responses.
+     *
+     * @param acceptEncoding
+     *            The value of the <code>Accept-Encoding</code> header, may be
+     *            null.
+     * @return Whether gzip (or <code>x-gzip</code>, or <code>*</code> if gzip
+     *         is not listed) has a quality value above zero.
+     */
+    public static boolean acceptsGzip(final String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        double gzip = -1;
+        double any = -1;
+        for (final String coding : acceptEncoding.split(",")) {
+            final String[] parts = coding.split(";");
+            final String name = parts[0].trim().toLowerCase(Locale.ROOT);
+            double q = 1;
+            for (int i = 1; i < parts.length; i++) {
+                final String param = parts[i].trim();
+                if (param.startsWith("q=") || param.startsWith("Q=")) {
+                    try {
+                        q = Double.parseDouble(param.substring(2).trim());
+                    } catch (final NumberFormatException exc) {
+                        // an invalid quality value is ignored
+                    }
+                }
+            }
+            if ("gzip".equals(name) || "x-gzip".equals(name)) {
+                gzip = Math.max(gzip, q);
+            } else if ("*".equals(name)) {
+                any = q;
+            }
+        }
+        return gzip >= 0 ? gzip > 0 : any > 0;
+    }
+
+    /**
+     * Retrieve the size below which bodies are not compressed.
+     *
+     * @return The size in bytes.
+     */
+    public static int getMinSize() {
+        return minSize;
+    }
+
+    /**
+     * Retrieve the compression level for a content type.
+     *
+     * @param contentType
+     *            The content type, may be null.
+     * @return The level, 0-9 or {@link Deflater#DEFAULT_COMPRESSION}.
+     */
+    public static int getLevel(final String contentType) {
+        if (contentType != null) {
+            final Integer level = levels.get(mediaType(contentType));
+            if (level != null) {
+                return level;
+            }
+        }
+        return defaultLevel;
+    }
+
+    /**
+     * Compresses a body, regardless of its size.
+     *
+     * @param bytes
+     *            The body.
+     * @param contentType
+     *            The content type of the body, may be null.
+     * @return The gzip compressed body.
+     */
+    public static byte[] gzip(final byte[] bytes, final String contentType) {
+        return PooledGzipOutputStream.compress(bytes, getLevel(contentType));
+    }
+
+    /**
+     * Creates a stream which compresses a body written to a response, unless
+     * the body turns out to be smaller than the minimum size. The
+     * <code>Content-Encoding</code> header is set once the body has reached
+     * the minimum size. The stream must be closed.
+     *
+     * @param resp
+     *            The response, whose client accepts gzip.
+     * @param contentType
+     *            The content type of the body, may be null.
+     * @return The stream.
+     */
+    public static OutputStream gzip(final ScuttleServletResponse resp,
+            final String contentType) {
+        return new CompressingOutputStream(resp, minSize,
+                getLevel(contentType));
+    }
+
+    /**
+     * Holds back the beginning of a body until it is known whether it is worth
+     * being compressed.
+     */
+    private static final class CompressingOutputStream extends OutputStream {
+
+        private final ScuttleServletResponse resp;
+        private final int minSize;
+        private final int level;
+
+        private ByteArrayOutputStream buffer;
+        private OutputStream out = null;
+
+        CompressingOutputStream(final ScuttleServletResponse resp,
+                final int minSize, final int level) {
+            this.resp = resp;
+            this.minSize = minSize;
+            this.level = level;
+            this.buffer = new ByteArrayOutputStream(Math.min(minSize, 8192));
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(final byte[] bytes, final int offset,
+                final int length) throws IOException {
+            if (out != null) {
+                out.write(bytes, offset, length);
+                return;
+            }
+            buffer.write(bytes, offset, length);
+            if (buffer.size() >= minSize) {
+                resp.setHeader("Content-Encoding", "gzip");
+                out = new PooledGzipOutputStream(resp.getOutputStream(), level);
+                buffer.writeTo(out);
+                buffer = null;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            // a small body is not committed to either encoding by a flush
+            if (out != null) {
+                out.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (out == null) {
+                out = resp.getOutputStream();
+                buffer.writeTo(out);
+                buffer = null;
+            }
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,344 @@
+package de.fu.mi.scuttle.lib.web;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.joda.time.DateTime;
+import org.joda.time.format.DateTimeFormatter;
+import org.joda.time.format.ISODateTimeFormat;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * The process wide registry of {@link Converter}s which are used to convert
+ * request parameters, see {@link ScuttleRequest#get(String, Class)}.
+ *
+ * The registry is never modified in place: {@link #register(Class, Converter)}
+ * publishes a new copy, such that looking up a converter is a single
+ * identity map lookup without any locking. Modules may register additional
+ * converters at startup, i.e. in their constructor.
+ *
+ * Converters for enums are created on demand, every enum type is supported
+ * out of the box.
+ */
+public final class Converters {
+
+    private Converters() {
+        // static utility
+    }
+
+    private static final DateTimeFormatter DATE_TIME_PARSER = ISODateTimeFormat
+            .dateTimeParser().withOffsetParsed();
+
+    private static volatile Map<Class<?>, Converter<?>> converters = Collections
+            .emptyMap();
+
+    static {
+        final Converter<Long> longConverter = new Converter<Long>() {
+            @Override
+            public Long convert(final String value) throws ConversionException {
+                try {
+                    return Long.valueOf(value.trim());
+                } catch (final Exception exc) {
+                    throw new ConversionException(exc);
+                }
+            }
+        };
+        register(Long.class, longConverter);
+        register(long.class, longConverter);
+
+        final Converter<Integer> integerConverter = new Converter<Integer>() {
+            @Override
+            public Integer convert(final String value)
+                    throws ConversionException {
+                try {
+                    return Integer.valueOf(value.trim());
+                } catch (final Exception exc) {
+                    throw new ConversionException(exc);
+                }
+            }
+        };
+        register(Integer.class, integerConverter);
+        register(int.class, integerConverter);
+
+        final Converter<Double> doubleConverter = new Converter<Double>() {
+            @Override
+            public Double convert(final String value)
+                    throws ConversionException {
+                try {
+                    return Double.valueOf(value.trim());
+                } catch (final Exception exc) {
+                    throw new ConversionException(exc);
+                }
+            }
+        };
+        register(Double.class, doubleConverter);
+        register(double.class, doubleConverter);
+
+        final Converter<Boolean> booleanConverter = new Converter<Boolean>() {
+            @Override
+            public Boolean convert(final String value)
+                    throws ConversionException {
+                if (value == null) {
+                    throw new ConversionException("null is not a boolean");
+                }
+                switch (value.trim().toLowerCase()) {
+                case "true":
+                case "1":
+                case "yes":
+                case "on":
+                    return Boolean.TRUE;
+                case "false":
+                case "0":
+                case "no":
+                case "off":
+                    return Boolean.FALSE;
+                }
+                throw new ConversionException("Not a boolean: " + value);
+            }
+        };
+        register(Boolean.class, booleanConverter);
+        register(boolean.class, booleanConverter);
+
+        register(String.class, new Converter<String>() {
+            @Override
+            public String convert(final String value)
+                    throws ConversionException {
+                if (value == null) {
+                    throw new ConversionException("null is not a string");
+                }
+                return value;
+            }
+        });
+
+        register(UUID.class, new Converter<UUID>() {
+            @Override
+            public UUID convert(final String value) throws ConversionException {
+                try {
+                    return UUID.fromString(value.trim());
+                } catch (final Exception exc) {
+                    throw new ConversionException(exc);
+                }
+            }
+        });
+
+        register(DateTime.class, new Converter<DateTime>() {
+            @Override
+            public DateTime convert(final String value)
+                    throws ConversionException {
+                return parseDateTime(value);
+            }
+        });
+
+        register(Date.class, new Converter<Date>() {
+            @Override
+            public Date convert(final String value) throws ConversionException {
+                return parseDateTime(value).toDate();
+            }
+        });
+
+        register(JSONObject.class, new Converter<JSONObject>() {
+            @Override
+            public JSONObject convert(final String value)
+                    throws ConversionException {
+                try {
+                    return new JSONObject(value);
+                } catch (final JSONException | RuntimeException exc) {
+                    throw new ConversionException(exc);
+                }
+            }
+        });
+
+        register(JSONArray.class, new Converter<JSONArray>() {
+            @Override
+            public JSONArray convert(final String value)
+                    throws ConversionException {
+                try {
+                    return new JSONArray(value);
+                } catch (final JSONException | RuntimeException exc) {
+                    throw new ConversionException(exc);
+                }
+            }
+        });
+    }
+
+    /**
+     * Parses an ISO 8601 date (like <code>2014-07-19</code> or
+     * <code>2014-07-19T12:30:00+02:00</code>) or a number of milliseconds
+     * since the epoch.
+     */
+    private static DateTime parseDateTime(final String value)
+            throws ConversionException {
+        if (value == null) {
+            throw new ConversionException("null is not a date");
+        }
+        final String trimmed = value.trim();
+        try {
+            if (!trimmed.isEmpty() && isDigits(trimmed)) {
+                return new DateTime(Long.parseLong(trimmed));
+            }
+            return DATE_TIME_PARSER.parseDateTime(trimmed);
+        } catch (final IllegalArgumentException exc) {
+            throw new ConversionException(exc);
+        }
+    }
+
+    private static boolean isDigits(final String value) {
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static final class EnumConverter<E extends Enum<E>> implements
+            Converter<E> {
+
+        private final Class<E> clazz;
+        private final Map<String, E> constants = new HashMap<>();
+
+        EnumConverter(final Class<E> clazz) {
+            this.clazz = clazz;
+            for (final E constant : clazz.getEnumConstants()) {
+                constants.put(constant.name(), constant);
+                final String lowerCase = constant.name().toLowerCase();
+                if (!constants.containsKey(lowerCase)) {
+                    constants.put(lowerCase, constant);
+                }
+            }
+        }
+
+        @Override
+        public E convert(final String value) throws ConversionException {
+            if (value == null) {
+                throw new ConversionException("null is not a "
+                        + clazz.getName());
+            }
+            E constant = constants.get(value);
+            if (constant == null) {
+                constant = constants.get(value.trim().toLowerCase());
+            }
+            if (constant == null) {
+                throw new ConversionException("Not a " + clazz.getName()
+                        + ": " + value);
+            }
+            return constant;
+        }
+    }
+
+    /**
+     * Registers a converter, replacing any converter which was registered
+     * for the same class before.
+     *
+     * @param clazz
+     *            The target type.
+     * @param converter
+     *            The converter.
+     */
+    public static synchronized <X> void register(final Class<X> clazz,
+            final Converter<? extends X> converter) {
+        final Map<Class<?>, Converter<?>> copy = new IdentityHashMap<>(
+                converters);
+        copy.put(clazz, converter);
+        converters = Collections.unmodifiableMap(copy);
+    }
+
+    /**
+     * Retrieve the converter for a type.
+     *
+     * @param clazz
+     *            The target type.
+     * @return The converter or null if there is no converter for the given
+     *         type.
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public static <X> Converter<X> get(final Class<X> clazz) {
+        final Converter<X> converter = (Converter<X>) converters.get(clazz);
+        if (converter != null || !Enum.class.isAssignableFrom(clazz)) {
+            return converter;
+        }
+        // constants with a body are instances of an anonymous subclass
+        final Class enumClass = clazz.isEnum() ? clazz : clazz
+                .getSuperclass();
+        final Converter<X> enumConverter = new EnumConverter(enumClass);
+        register(clazz, enumConverter);
+        return enumConverter;
+    }
+
+    /**
+     * Converts a value.
+     *
+     * @param value
+     *            The string value.
+     * @param clazz
+     *            The target type.
+     * @return The converted value.
+     * @throws ConversionException
+     *             If there is no converter for the given type or if the value
+     *             could not be converted.
+     */
+    public static <X> X convert(final String value, final Class<X> clazz)
+            throws ConversionException {
+        final Converter<X> converter = get(clazz);
+        if (converter == null) {
+            throw new ConversionException("No converter for " + clazz);
+        }
+        return converter.convert(value);
+    }
+
+    /**
+     * Converts a comma separated list of values. Empty items are skipped,
+     * whitespace around the items is ignored.
+     *
+     * @param value
+     *            The comma separated values, may be null.
+     * @param clazz
+     *            The type of the items.
+     * @return The converted items, an empty list if the value is null or
+     *         empty.
+     * @throws ConversionException
+     *             If there is no converter for the given type or if an item
+     *             could not be converted.
+     */
+    public static <X> List<X> convertList(final String value,
+            final Class<X> clazz) throws ConversionException {
+        final Converter<X> converter = get(clazz);
+        if (converter == null) {
+            throw new ConversionException("No converter for " + clazz);
+        }
+        if (value == null || value.isEmpty()) {
+            return Collections.emptyList();
+        }
+        final List<X> items = new ArrayList<>();
+        final int length = value.length();
+        int start = 0;
+        while (start <= length) {
+            int end = value.indexOf(',', start);
+            if (end < 0) {
+                end = length;
+            }
+            int from = start;
+            int to = end;
+            while (from < to && Character.isWhitespace(value.charAt(from))) {
+                from++;
+            }
+            while (to > from && Character.isWhitespace(value.charAt(to - 1))) {
+                to--;
+            }
+            if (from < to) {
+                items.add(converter.convert(value.substring(from, to)));
+            }
+            start = end + 1;
+        }
+        return items;
+    }
+}
@@ -0,0 +1,30 @@
+package de.fu.mi.scuttle.lib.web;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+import de.fu.mi.scuttle.lib.ScuttleModule;
+
+/**
+ * Declares the modules a module depends on.
+ * 
+ * Modules are constructed concurrently at startup, hence a constructor must
+ * not rely on any other module. The {@link ScuttleModule#loaded()} method of
+ * a {@link Deferred} module however is invoked only after the
+ * {@link ScuttleModule#loaded()} methods of all the modules it depends on
+ * have returned. Dependencies which are not loaded by the servlet are
+ * ignored, cyclic dependencies are reported as configuration problems.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface DependsOn {
+
+    /**
+     * The classes of the modules this module depends on.
+     */
+    Class<? extends ScuttleModule>[] value();
+}
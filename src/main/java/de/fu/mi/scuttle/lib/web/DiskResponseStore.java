@@ -0,0 +1,697 @@
+package de.fu.mi.scuttle.lib.web;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.io.CountingInputStream;
+
+/**
+ * The disk tier of the {@link ResponseCache}, which keeps cached responses
+ * across restarts.
+ *
+ * Responses are appended to a segment file, their locations are appended to
+ * a compact index file. Both are written by a single background thread, such
+ * that requests never wait for the disk. Reads go through memory mappings
+ * of the complete chunks of the segment file. When the segment file reaches its maximum size, a new
+ * generation of files is started and the old one is deleted (which drops all
+ * entries, there is no compaction).
+ *
+ * The index is reloaded in the background when the store is created. Until
+ * then every lookup is a miss. Entries are keyed by mount point and cache
+ * tag, only modules annotated with {@link CacheVersion} take part. Entries of
+ * a version different from the current version of their module are
+ * discarded when the index is reloaded.
+ *
+ * The configuration (the <code>disk</code> section of the
+ * <code>responseCache</code>) has the keys <code>enabled</code>,
+ * <code>directory</code> (the private temporary directory of the web
+ * application by default), <code>maxBytes</code> (the maximum size of a
+ * segment file) and <code>queueSize</code> (the number of pending writes,
+ * further writes are dropped). The directory is accessible to its owner
+ * only.
+ */
+final class DiskResponseStore {
+
+    private static final byte PUT = 'P';
+
+    private static final byte CLEAR = 'C';
+
+    /**
+     * The size of the chunks of a segment file which are mapped into memory.
+     */
+    private static final int CHUNK_BYTES = 64 << 20;
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    /**
+     * A segment file and its index.
+     */
+    private static final class Generation {
+
+        final long number;
+
+        final File dataFile;
+
+        final File indexFile;
+
+        final RandomAccessFile data;
+
+        final DataOutputStream index;
+
+        /** Only written by the writer thread. */
+        volatile long size;
+
+        /**
+         * The mappings of the complete chunks of the segment file, by their
+         * number. Chunks are mapped once, when they are read first.
+         */
+        final ConcurrentMap<Long, MappedByteBuffer> chunks = new ConcurrentHashMap<>();
+
+        Generation(final File directory, final long number,
+                final long indexLength) throws IOException {
+            this.number = number;
+            this.dataFile = new File(directory, "responses." + number + ".dat");
+            this.indexFile = new File(directory, "responses." + number
+                    + ".idx");
+            this.data = new RandomAccessFile(dataFile, "rw");
+            this.size = data.length();
+            if (indexFile.length() > indexLength) {
+                // cut off a partially written record
+                try (RandomAccessFile file = new RandomAccessFile(indexFile,
+                        "rw")) {
+                    file.setLength(indexLength);
+                }
+            }
+            this.index = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(indexFile, true)));
+        }
+
+        /**
+         * Reads a record through the mapping of the chunk which contains it.
+         * A record which spans two chunks or which is located in the last,
+         * incomplete chunk is read from the file instead, such that the file
+         * is never mapped again as it grows.
+         */
+        ByteBuffer read(final long offset, final int length)
+                throws IOException {
+            final long chunk = offset / CHUNK_BYTES;
+            final long start = chunk * CHUNK_BYTES;
+            if (offset + length > start + CHUNK_BYTES
+                    || start + CHUNK_BYTES > size) {
+                final ByteBuffer buffer = ByteBuffer.allocate(length);
+                while (buffer.hasRemaining()) {
+                    if (data.getChannel().read(buffer,
+                            offset + buffer.position()) < 0) {
+                        throw new EOFException();
+                    }
+                }
+                buffer.flip();
+                return buffer;
+            }
+            MappedByteBuffer mapping = chunks.get(chunk);
+            if (mapping == null) {
+                mapping = data.getChannel().map(MapMode.READ_ONLY, start,
+                        CHUNK_BYTES);
+                final MappedByteBuffer existing = chunks.putIfAbsent(chunk,
+                        mapping);
+                if (existing != null) {
+                    mapping = existing;
+                }
+            }
+            final ByteBuffer view = mapping.duplicate();
+            view.limit((int) (offset - start) + length).position(
+                    (int) (offset - start));
+            return view.slice();
+        }
+
+        void close() {
+            try {
+                index.close();
+            } catch (final IOException exc) {
+                // nothing left to do
+            }
+            try {
+                data.close();
+            } catch (final IOException exc) {
+                // nothing left to do
+            }
+        }
+
+        void delete() {
+            // the mappings are released once no reader uses them any more
+            chunks.clear();
+            close();
+            dataFile.delete();
+            indexFile.delete();
+        }
+    }
+
+    private static final class Location {
+
+        final Generation generation;
+
+        final long offset;
+
+        final int length;
+
+        Location(final Generation generation, final long offset,
+                final int length) {
+            this.generation = generation;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private final File directory;
+
+    private final long maxBytes;
+
+    /**
+     * The current versions, by mount point.
+     */
+    private final Map<String, String> versions;
+
+    private final ConcurrentMap<String, Location> index = new ConcurrentHashMap<>();
+
+    private final ThreadPoolExecutor writer;
+
+    /** Only accessed by the writer thread. */
+    private Generation generation;
+
+    private volatile boolean loaded = false;
+
+    /**
+     * Incremented whenever entries are cleared, guarded by this. Writes which
+     * were submitted before are dropped.
+     */
+    private long epoch = 0;
+
+    /**
+     * The clears which have not been written to the index yet. They do not
+     * depend on the queue of the writer, which drops tasks when it is full.
+     */
+    private final ConcurrentLinkedQueue<String> pendingClears = new ConcurrentLinkedQueue<>();
+
+    private final AtomicBoolean pendingClearAll = new AtomicBoolean();
+
+    private final Runnable drain = new Runnable() {
+        @Override
+        public void run() {
+            drainClears();
+        }
+    };
+
+    private DiskResponseStore(final File directory, final JSONObject config,
+            final Map<String, String> versions) {
+        this.directory = directory;
+        this.maxBytes = Math.min(Integer.MAX_VALUE,
+                config.optLong("maxBytes", 1L << 30));
+        this.versions = versions;
+        this.writer = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(Math.max(1,
+                        config.optInt("queueSize", 256))),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable runnable) {
+                        final Thread thread = new Thread(runnable,
+                                "scuttle-response-cache-disk");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                }, new ThreadPoolExecutor.DiscardPolicy());
+        writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                load();
+            }
+        });
+    }
+
+    /**
+     * Creates a store if it is enabled in the given configuration.
+     *
+     * @param config
+     *            The <code>disk</code> section of the configuration, may be
+     *            null.
+     * @param versions
+     *            The versions of the modules which take part, by mount point.
+     * @param tempDirectory
+     *            The private temporary directory of the web application
+     *            (<code>javax.servlet.context.tempdir</code>), which holds the
+     *            store unless a directory is configured. May be null.
+     * @return The store or null if it is not enabled, or if there is neither
+     *         a configured directory nor a temporary directory.
+     */
+    static DiskResponseStore create(final JSONObject config,
+            final Map<String, String> versions, final File tempDirectory) {
+        if (config == null || !config.optBoolean("enabled", false)
+                || versions.isEmpty()) {
+            return null;
+        }
+        final String configured = config.optString("directory", "");
+        if (configured.isEmpty() && tempDirectory == null) {
+            // a shared directory like java.io.tmpdir could be planted with
+            // responses which would be served after a restart
+            LoggerFactory.getLogger(DiskResponseStore.class).warn(
+                    "The disk tier of the response cache needs a directory, "
+                            + "it is disabled");
+            return null;
+        }
+        return new DiskResponseStore(configured.isEmpty() ? new File(
+                tempDirectory, "scuttle-response-cache") : new File(configured),
+                config, versions);
+    }
+
+    /**
+     * Creates the directory of the store accessible to its owner only, or
+     * restricts an existing directory to its owner. A directory which can not
+     * be restricted (it belongs to someone else) is not used, since its
+     * contents can not be trusted.
+     *
+     * @return Whether the directory may be used.
+     */
+    private boolean prepareDirectory() {
+        final Path path = directory.toPath();
+        final boolean posix = Files.getFileAttributeView(
+                path.getParent() == null ? path : path.getParent(),
+                PosixFileAttributeView.class) != null;
+        final Set<PosixFilePermission> ownerOnly = PosixFilePermissions
+                .fromString("rwx------");
+        try {
+            if (!Files.isDirectory(path)) {
+                if (posix) {
+                    Files.createDirectories(path,
+                            PosixFilePermissions.asFileAttribute(ownerOnly));
+                } else {
+                    Files.createDirectories(path);
+                }
+            }
+            if (posix) {
+                Files.setPosixFilePermissions(path, ownerOnly);
+            } else {
+                final File file = path.toFile();
+                file.setReadable(false, false);
+                file.setWritable(false, false);
+                file.setExecutable(false, false);
+                file.setReadable(true, true);
+                file.setWritable(true, true);
+                file.setExecutable(true, true);
+            }
+            return true;
+        } catch (final IOException | SecurityException
+                | UnsupportedOperationException exc) {
+            logger.warn("Can not set up the response cache directory "
+                    + directory, exc);
+            return false;
+        }
+    }
+
+    private static String key(final String mountPoint, final long cacheTag) {
+        return mountPoint + '\n' + cacheTag;
+    }
+
+    /**
+     * Opens the newest generation and reads its index, deletes all older
+     * generations. Runs on the writer thread.
+     */
+    private void load() {
+        if (!prepareDirectory()) {
+            writer.shutdown();
+            return;
+        }
+        final File[] files = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(final File dir, final String name) {
+                return name.matches("responses\\.\\d+\\.(dat|idx)");
+            }
+        });
+        long newest = -1;
+        for (final File file : files) {
+            newest = Math.max(newest, number(file));
+        }
+        for (final File file : files) {
+            if (number(file) != newest) {
+                file.delete();
+            }
+        }
+        try {
+            if (newest < 0) {
+                generation = new Generation(directory, 0, 0);
+            } else {
+                final Map<String, long[]> entries = new HashMap<>();
+                final long indexLength = readIndex(newest, entries);
+                generation = new Generation(directory, newest, indexLength);
+                for (final Map.Entry<String, long[]> entry : entries
+                        .entrySet()) {
+                    final long[] location = entry.getValue();
+                    index.put(entry.getKey(), new Location(generation,
+                            location[0], (int) location[1]));
+                }
+            }
+            logger.info("Reloaded {} cached responses from {}", index.size(),
+                    directory);
+            loaded = true;
+            drainClears();
+        } catch (final IOException exc) {
+            logger.warn("Can not reload the cached responses, starting over",
+                    exc);
+            index.clear();
+            rotate();
+            loaded = generation != null;
+            drainClears();
+        }
+    }
+
+    private static long number(final File file) {
+        final String name = file.getName();
+        return Long.parseLong(name.substring(10, name.length() - 4));
+    }
+
+    /**
+     * Reads the index of a generation.
+     *
+     * @param entries
+     *            Receives the offset and length of every current entry, by
+     *            key.
+     * @return The length of the index up to the last complete record.
+     */
+    private long readIndex(final long number, final Map<String, long[]> entries)
+            throws IOException {
+        final File indexFile = new File(directory, "responses." + number
+                + ".idx");
+        final long dataLength = new File(directory, "responses." + number
+                + ".dat").length();
+        if (!indexFile.exists()) {
+            return 0;
+        }
+        long complete = 0;
+        try (CountingInputStream counting = new CountingInputStream(
+                new BufferedInputStream(new FileInputStream(indexFile)));
+                DataInputStream in = new DataInputStream(counting)) {
+            for (;;) {
+                final int type = in.read();
+                if (type < 0) {
+                    break;
+                }
+                if (type == PUT) {
+                    final String mountPoint = in.readUTF();
+                    final String version = in.readUTF();
+                    final long cacheTag = in.readLong();
+                    final long offset = in.readLong();
+                    final int length = in.readInt();
+                    if (version.equals(versions.get(mountPoint))
+                            && offset + length <= dataLength) {
+                        entries.put(key(mountPoint, cacheTag), new long[] {
+                                offset, length });
+                    }
+                } else if (type == CLEAR) {
+                    removeAll(entries.keySet(), in.readUTF());
+                } else {
+                    throw new IOException("Corrupt index " + indexFile);
+                }
+                complete = counting.getCount();
+            }
+        } catch (final EOFException exc) {
+            // the last record has not been written completely
+        }
+        return complete;
+    }
+
+    private static void removeAll(final Collection<String> keys,
+            final String mountPoint) {
+        final String prefix = mountPoint + '\n';
+        for (final Iterator<String> it = keys.iterator(); it.hasNext();) {
+            if (it.next().startsWith(prefix)) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Starts a new generation and deletes the current one. Runs on the writer
+     * thread.
+     */
+    private void rotate() {
+        final Generation previous = generation;
+        try {
+            generation = new Generation(directory, previous == null ? 0
+                    : previous.number + 1, 0);
+        } catch (final IOException exc) {
+            logger.warn("Can not create a new response cache segment", exc);
+            generation = null;
+            writer.shutdown();
+        }
+        if (previous != null) {
+            previous.delete();
+        }
+    }
+
+    /**
+     * Looks up a response. Never waits for the disk tier to be reloaded.
+     *
+     * @return The response or null if it is not stored.
+     */
+    HttpCachingResponse get(final String mountPoint, final long cacheTag) {
+        if (!loaded) {
+            return null;
+        }
+        final String key = key(mountPoint, cacheTag);
+        final Location location = index.get(key);
+        if (location == null) {
+            return null;
+        }
+        try {
+            final ByteBuffer buffer = location.generation.read(
+                    location.offset, location.length);
+            return HttpCachingResponse.readFrom(new DataInputStream(
+                    new InputStream() {
+                        @Override
+                        public int read() {
+                            return buffer.hasRemaining() ? buffer.get() & 0xff
+                                    : -1;
+                        }
+
+                        @Override
+                        public int read(final byte[] b, final int off,
+                                final int len) {
+                            if (!buffer.hasRemaining()) {
+                                return -1;
+                            }
+                            final int n = Math.min(len, buffer.remaining());
+                            buffer.get(b, off, n);
+                            return n;
+                        }
+                    }));
+        } catch (final IOException | RuntimeException exc) {
+            // the generation has been rotated meanwhile or is broken
+            index.remove(key, location);
+            return null;
+        }
+    }
+
+    /**
+     * Writes a response in the background. The write is dropped if the queue
+     * of pending writes is full.
+     *
+     * @param response
+     *            The response, which must be done and on the heap.
+     */
+    void put(final String mountPoint, final long cacheTag,
+            final HttpCachingResponse response) {
+        final long submitted;
+        synchronized (this) {
+            submitted = epoch;
+        }
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                drainClears();
+                if (!loaded || generation == null) {
+                    return;
+                }
+                try {
+                    write(mountPoint, cacheTag, response, submitted);
+                } catch (final IOException exc) {
+                    logger.warn(
+                            "Can not write a cached response, starting over",
+                            exc);
+                    clearAll();
+                }
+            }
+        });
+    }
+
+    private void write(final String mountPoint, final long cacheTag,
+            final HttpCachingResponse response, final long submitted)
+            throws IOException {
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(buffer)) {
+            response.writeTo(out);
+        }
+        final byte[] record = buffer.toByteArray();
+        if (record.length > maxBytes) {
+            return;
+        }
+        synchronized (this) {
+            if (submitted != epoch) {
+                return;
+            }
+        }
+        if (generation.size + record.length > maxBytes) {
+            index.clear();
+            rotate();
+            if (generation == null) {
+                return;
+            }
+        }
+        final Generation current = generation;
+        final long offset = current.size;
+        current.data.getChannel().write(ByteBuffer.wrap(record), offset);
+        current.size += record.length;
+        current.index.writeByte(PUT);
+        current.index.writeUTF(mountPoint);
+        current.index.writeUTF(versions.get(mountPoint));
+        current.index.writeLong(cacheTag);
+        current.index.writeLong(offset);
+        current.index.writeInt(record.length);
+        current.index.flush();
+        synchronized (this) {
+            if (submitted == epoch) {
+                index.put(key(mountPoint, cacheTag), new Location(current,
+                        offset, record.length));
+            }
+        }
+    }
+
+    /**
+     * Removes the responses of a module, they are not reloaded after a
+     * restart either.
+     */
+    void clear(final String mountPoint) {
+        synchronized (this) {
+            epoch++;
+            removeAll(index.keySet(), mountPoint);
+        }
+        pendingClears.add(mountPoint);
+        execute(drain);
+    }
+
+    /**
+     * Removes all responses.
+     */
+    void clearAll() {
+        synchronized (this) {
+            epoch++;
+            index.clear();
+        }
+        pendingClearAll.set(true);
+        execute(drain);
+    }
+
+    /**
+     * Writes the pending clears to the index. Runs on the writer thread (or
+     * after it has terminated).
+     */
+    private void drainClears() {
+        if (!loaded) {
+            // the index is not there yet, load() drains when it is done
+            return;
+        }
+        if (pendingClearAll.getAndSet(false)) {
+            pendingClears.clear();
+            index.clear();
+            if (generation != null) {
+                rotate();
+            }
+            return;
+        }
+        for (String mountPoint; (mountPoint = pendingClears.poll()) != null;) {
+            // entries of the module may have been reloaded meanwhile
+            removeAll(index.keySet(), mountPoint);
+            if (generation == null) {
+                continue;
+            }
+            try {
+                generation.index.writeByte(CLEAR);
+                generation.index.writeUTF(mountPoint);
+                generation.index.flush();
+            } catch (final IOException exc) {
+                logger.warn("Can not clear cached responses, starting over",
+                        exc);
+                pendingClearAll.set(true);
+                drainClears();
+                return;
+            }
+        }
+    }
+
+    private void execute(final Runnable task) {
+        try {
+            writer.execute(task);
+        } catch (final RejectedExecutionException exc) {
+            // shut down
+        }
+    }
+
+    /**
+     * Retrieve the number of stored responses.
+     */
+    int size() {
+        return index.size();
+    }
+
+    /**
+     * Finishes the pending writes and closes the files.
+     */
+    void close() {
+        writer.shutdown();
+        try {
+            writer.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (final InterruptedException exc) {
+            Thread.currentThread().interrupt();
+        }
+        if (writer.isTerminated()) {
+            drainClears();
+            if (generation != null) {
+                generation.close();
+            }
+        }
+    }
+}
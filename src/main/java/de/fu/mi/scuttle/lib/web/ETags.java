@@ -0,0 +1,143 @@
+package de.fu.mi.scuttle.lib.web;
+
+import java.util.Locale;
+
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
+
+import com.google.common.hash.Hashing;
+
+/**
+ * Utilities for conditional requests: strong entity tags computed from the
+ * content and the evaluation of <code>If-None-Match</code> and
+ * <code>If-Modified-Since</code>.
+ *
+ * Entity tags are meant to be computed once when the bytes of a response are
+ * materialized (i.e. when a response is cached or an asset is built), not per
+ * request.
+ */
+public final class ETags {
+
+    private ETags() {
+        // static utility
+    }
+
+    private static final String GZIP_SUFFIX = "-gz";
+
+    private static final DateTimeFormatter HTTP_DATE = DateTimeFormat
+            .forPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'").withZoneUTC()
+            .withLocale(Locale.US);
+
+    /**
+     * Computes a strong entity tag from the content.
+     *
+     * @param bytes
+     *            The content.
+     * @return The quoted entity tag.
+     */
+    public static String of(final byte[] bytes) {
+        return '"' + Hashing.murmur3_128().hashBytes(bytes).toString() + '"';
+    }
+
+    /**
+     * Derives the entity tag of the gzip compressed representation from the
+     * entity tag of the identity representation. Strong entity tags must
+     * differ between representations.
+     *
+     * @param etag
+     *            The quoted entity tag of the identity representation.
+     * @param gzip
+     *            Whether the gzip compressed representation is served.
+     * @return The quoted entity tag of the representation.
+     */
+    public static String variant(final String etag, final boolean gzip) {
+        if (!gzip || etag == null) {
+            return etag;
+        }
+        return etag.substring(0, etag.length() - 1) + GZIP_SUFFIX + '"';
+    }
+
+    /**
+     * Formats a point in time as an http date.
+     *
+     * @param millis
+     *            The point in time in milli seconds since the epoch.
+     * @return The date, like <code>Sun, 06 Nov 1994 08:49:37 GMT</code>.
+     */
+    public static String formatDate(final long millis) {
+        return HTTP_DATE.print(millis);
+    }
+
+    /**
+     * Determines whether the client has a current copy of a response.
+     *
+     * @param request
+     *            The request.
+     * @param etag
+     *            The entity tag of the response or null if it has none.
+     * @param lastModified
+     *            The modification time of the response in milli seconds or
+     *            a negative value if it is unknown.
+     * @return Whether the response can be answered with 304 Not Modified.
+     */
+    public static boolean isNotModified(final ScuttleRequest request,
+            final String etag, final long lastModified) {
+        return isNotModified(request.getHeader("If-None-Match"),
+                request.getHeader("If-Modified-Since"), etag, lastModified);
+    }
+
+    /**
+     * Determines whether the client has a current copy of a response.
+     * <code>If-None-Match</code> takes precedence over
+     * <code>If-Modified-Since</code>, the latter is ignored if the former is
+     * given.
+     *
+     * @param ifNoneMatch
+     *            The value of the <code>If-None-Match</code> header or null.
+     * @param ifModifiedSince
+     *            The value of the <code>If-Modified-Since</code> header or
+     *            null.
+     * @param etag
+     *            The entity tag of the response or null if it has none.
+     * @param lastModified
+     *            The modification time of the response in milli seconds or
+     *            a negative value if it is unknown.
+     * @return Whether the response can be answered with 304 Not Modified.
+     */
+    public static boolean isNotModified(final String ifNoneMatch,
+            final String ifModifiedSince, final String etag,
+            final long lastModified) {
+        if (ifNoneMatch != null) {
+            return etag != null && matches(ifNoneMatch, etag);
+        }
+        if (ifModifiedSince != null && lastModified >= 0) {
+            try {
+                final long since = HTTP_DATE.parseMillis(ifModifiedSince
+                        .trim());
+                return lastModified / 1000 <= since / 1000;
+            } catch (final IllegalArgumentException exc) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Weak comparison of an entity tag with a list of entity tags, as
+     * required for <code>If-None-Match</code>.
+     */
+    private static boolean matches(final String ifNoneMatch, final String etag) {
+        final String opaque = opaque(etag);
+        for (final String candidate : ifNoneMatch.split(",")) {
+            final String trimmed = candidate.trim();
+            if (trimmed.equals("*") || opaque(trimmed).equals(opaque)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String opaque(final String etag) {
+        return etag.startsWith("W/") ? etag.substring(2) : etag;
+    }
+}
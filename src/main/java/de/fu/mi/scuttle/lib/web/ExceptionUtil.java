@@ -142,6 +142,20 @@ public class ExceptionUtil {
         }
     }
 
+    public static void error400(
+            final HttpServletResponse resp,
+            final String message) throws IOException {
+        resp.setContentType("text/plain");
+        resp.setStatus(400);
+        try (Writer writer = resp.getWriter()) {
+            writer.write("400 Bad Request");
+            if (message != null) {
+                writer.write("\n");
+                writer.write(message);
+            }
+        }
+    }
+
     public static void error403(
             final HttpServletResponse resp,
             final ScuttleNoPermissionException exc) throws IOException {
@@ -161,6 +175,17 @@ public class ExceptionUtil {
         }
     }
 
+    public static void error503(
+            final HttpServletResponse resp,
+            final int retryAfterSeconds) throws IOException {
+        resp.setContentType("text/plain");
+        resp.setStatus(503);
+        resp.setHeader("Retry-After", String.valueOf(retryAfterSeconds));
+        try (Writer writer = resp.getWriter()) {
+            writer.write("503 Service Unavailable");
+        }
+    }
+
     public static void loginError(
             final HttpServletResponse resp,
             final ScuttleLoginException exc) throws IOException, JSONException {
@@ -169,6 +194,10 @@ public class ExceptionUtil {
 
         message.put("loginError", exc.getMessage());
         message.put("success", false);
+        if (exc.getRetryAfter() > 0) {
+            resp.setHeader("Retry-After", String.valueOf(exc.getRetryAfter()));
+            message.put("retryAfter", exc.getRetryAfter());
+        }
 
         try (Writer writer = resp.getWriter()) {
             message.write(writer);
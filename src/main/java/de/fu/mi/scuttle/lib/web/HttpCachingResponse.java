@@ -2,34 +2,359 @@ package de.fu.mi.scuttle.lib.web;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 import java.util.TreeMap;
+import java.util.zip.GZIPInputStream;
 
 import com.google.common.io.ByteStreams;
 
+/**
+ * A response which is recorded in memory, such that it can be cached and be
+ * replayed to any number of clients.
+ * 
+ * The body is stored in a single, canonical encoding: if the module produced
+ * a gzip compressed body it is kept as is, otherwise it is compressed once
+ * when the response is {@link #done()} (unless it is tiny or does not get any
+ * smaller). The compressed body is served unchanged to clients which accept
+ * gzip and is decompressed on the fly for all other clients. Such responses
+ * carry <code>Vary: Accept-Encoding</code>. Hence the module may render the
+ * response for either encoding, the cached response can be served to every
+ * client.
+ * 
+ * The entity tag is computed from the stored body once, when the response is
+ * done, see {@link ETags}.
+ * 
+ * The {@link ResponseCache} may keep the body outside of the heap, see
+ * {@link #moveOffHeap(OffHeapStore)}. Such a response must be
+ * {@link #retain() retained} while it is being served.
+ * 
+ * A response may depend on entities, see {@link #dependOn(Collection)}. It is
+ * evicted from the cache when one of them is written.
+ */
 public class HttpCachingResponse implements ScuttleServletResponse,
-        ScuttleResponse {
+        ConditionalResponse {
 
     private ByteArrayOutputStream out = new ByteArrayOutputStream();
     private Writer writer;
     private String characterEncoding = null;
-    private Map<String, String> headers = new TreeMap<>();
+
+    private Map<String, String> headers = new TreeMap<>(
+            String.CASE_INSENSITIVE_ORDER);
     private String contentType = null;
     private byte[] bytes = null;
+    private long maxAge = -1;
+    private long staleWhileRevalidate = 0;
+    private long created;
+    private boolean gzipped = false;
+    private String etag = null;
+    private long lastModified = -1;
+    private OffHeapBody offHeap = null;
+    private Set<String> dependencies = Collections.emptySet();
 
-    public void done() {
-        if (bytes == null) {
+    public HttpCachingResponse() {
+        // the response is recorded, then done()
+    }
+
+    /**
+     * Copies a response which is done, except for its body.
+     */
+    private HttpCachingResponse(final HttpCachingResponse response,
+            final OffHeapBody offHeap) {
+        this.out = null;
+        this.characterEncoding = response.characterEncoding;
+        this.headers = response.headers;
+        this.contentType = response.contentType;
+        this.maxAge = response.maxAge;
+        this.staleWhileRevalidate = response.staleWhileRevalidate;
+        this.created = response.created;
+        this.gzipped = response.gzipped;
+        this.etag = response.etag;
+        this.lastModified = response.lastModified;
+        this.dependencies = response.dependencies;
+        this.offHeap = offHeap;
+    }
+
+    public void done() throws IOException {
+        if (out != null) {
+            if (writer != null) {
+                writer.flush();
+            }
             bytes = out.toByteArray();
             out = null;
+            canonicalize();
+            etag = ETags.of(bytes);
+            lastModified = System.currentTimeMillis();
+            created = System.nanoTime();
+        }
+    }
+
+    /**
+     * Brings the body into its canonical encoding, see the class comment.
+     * The length and encoding headers are set when the response is served.
+     */
+    private void canonicalize() throws IOException {
+        headers.remove("Content-Length");
+        headers.remove("ETag");
+        headers.remove("Last-Modified");
+        final String encoding = headers.get("Content-Encoding");
+        if (encoding == null) {
+            // bodies smaller than the minimum size are not worth being
+            // compressed, see ContentEncoding
+            if (bytes.length >= ContentEncoding.getMinSize()) {
+                final byte[] compressed = ContentEncoding.gzip(bytes,
+                        contentType != null ? contentType : headers
+                                .get("Content-Type"));
+                if (compressed.length < bytes.length) {
+                    bytes = compressed;
+                    gzipped = true;
+                }
+            }
+        } else if ("gzip".equalsIgnoreCase(encoding.trim())) {
+            headers.remove("Content-Encoding");
+            gzipped = true;
+        }
+        if (gzipped) {
+            final String vary = headers.get("Vary");
+            if (vary == null || vary.trim().isEmpty()) {
+                headers.put("Vary", "Accept-Encoding");
+            } else if (!containsToken(vary, "Accept-Encoding")
+                    && !containsToken(vary, "*")) {
+                headers.put("Vary", vary + ", Accept-Encoding");
+            }
+        }
+    }
+
+    /**
+     * Determine whether a comma separated header value contains the given
+     * token, ignoring case.
+     */
+    private static boolean containsToken(final String value,
+            final String token) {
+        for (final String element : value.split(",")) {
+            if (element.trim().equalsIgnoreCase(token)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Determine whether the body is stored gzip compressed, in which case
+     * the encoding is negotiated with every client.
+     * 
+     * @return Whether the stored body is gzip compressed.
+     */
+    public boolean isGzipped() {
+        return gzipped;
+    }
+
+    /**
+     * Sets the time this response may be cached for, see
+     * {@link CacheableResponse}.
+     * 
+     * @param maxAge
+     *            The time this response is fresh for in nano seconds, a
+     *            negative value means forever.
+     * @param staleWhileRevalidate
+     *            The time this response may be served for after it has become
+     *            stale, in nano seconds.
+     */
+    public void expireAfter(final long maxAge, final long staleWhileRevalidate) {
+        this.maxAge = maxAge;
+        this.staleWhileRevalidate = staleWhileRevalidate;
+    }
+
+    /**
+     * Determine whether this response expires at all.
+     * 
+     * @return Whether a max-age has been set.
+     */
+    public boolean expires() {
+        return maxAge >= 0;
+    }
+
+    /**
+     * Retrieve the point in time this response becomes stale, as of
+     * {@link System#nanoTime()}. Only meaningful if {@link #expires()}.
+     * 
+     * @return The time in nano seconds.
+     */
+    public long getStaleAt() {
+        return created + maxAge;
+    }
+
+    /**
+     * Retrieve the point in time this response may no longer be served, as
+     * of {@link System#nanoTime()}. Only meaningful if {@link #expires()}.
+     * 
+     * @return The time in nano seconds.
+     */
+    public long getExpiresAt() {
+        return created + maxAge + staleWhileRevalidate;
+    }
+
+    /**
+     * Declares that this response depends on the given entities, see
+     * {@link CacheableResponse#dependsOn(Class...)}.
+     * 
+     * @param tags
+     *            The tags of the entities, see
+     *            {@link de.fu.mi.scuttle.lib.persistence.EntityTags}.
+     */
+    public void dependOn(final Collection<String> tags) {
+        if (!tags.isEmpty()) {
+            final Set<String> dependencies = new HashSet<>(this.dependencies);
+            dependencies.addAll(tags);
+            this.dependencies = Collections.unmodifiableSet(dependencies);
         }
     }
 
+    /**
+     * Retrieve the tags of the entities this response depends on.
+     * 
+     * @return The tags, unmodifiable, empty if the response does not depend
+     *         on any entities.
+     */
+    public Set<String> getDependencies() {
+        return dependencies;
+    }
+
+    /**
+     * Retrieve the (approximate) amount of memory this response occupies,
+     * that is the body and the headers.
+     * 
+     * @return The size in bytes.
+     */
+    public long getSize() {
+        long size = 64 + length();
+        for (final Entry<String, String> header : headers.entrySet()) {
+            size += 2 * (header.getKey().length() + header.getValue().length());
+        }
+        if (contentType != null) {
+            size += 2 * contentType.length();
+        }
+        return size;
+    }
+
+    private int length() {
+        if (bytes != null) {
+            return bytes.length;
+        }
+        return offHeap == null ? 0 : offHeap.length();
+    }
+
+    /**
+     * Copies this response into a response whose body is stored in the given
+     * store. The copy holds one reference to the body, which is released by
+     * {@link #release()}.
+     * 
+     * @param store
+     *            The store.
+     * @return The copy or this response if the body is not stored (because it
+     *         is too small or the store is full).
+     */
+    HttpCachingResponse moveOffHeap(final OffHeapStore store) {
+        if (bytes == null) {
+            return this;
+        }
+        final OffHeapBody body = store.store(bytes);
+        if (body == null) {
+            return this;
+        }
+        return new HttpCachingResponse(this, body);
+    }
+
+    /**
+     * Acquires a reference to the body, such that it is not freed while the
+     * response is served. Does nothing if the body is on the heap.
+     * 
+     * @return false if the body has been freed already.
+     */
+    public boolean retain() {
+        return offHeap == null || offHeap.retain();
+    }
+
+    /**
+     * Releases a reference acquired by {@link #retain()}. Does nothing if the
+     * body is on the heap.
+     */
+    public void release() {
+        if (offHeap != null) {
+            offHeap.release();
+        }
+    }
+
+    /**
+     * Serializes a response which is done and whose body is on the heap, see
+     * {@link DiskResponseStore}. Points in time are converted to wall clock
+     * time, such that the response can be read by another process.
+     */
+    void writeTo(final DataOutput out) throws IOException {
+        writeNullable(out, characterEncoding);
+        writeNullable(out, contentType);
+        out.writeInt(headers.size());
+        for (final Entry<String, String> header : headers.entrySet()) {
+            out.writeUTF(header.getKey());
+            out.writeUTF(header.getValue());
+        }
+        out.writeBoolean(gzipped);
+        writeNullable(out, etag);
+        out.writeLong(lastModified);
+        out.writeLong(maxAge);
+        out.writeLong(staleWhileRevalidate);
+        out.writeLong(System.currentTimeMillis()
+                - (System.nanoTime() - created) / 1000000);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Deserializes a response written by {@link #writeTo(DataOutput)}.
+     */
+    static HttpCachingResponse readFrom(final DataInput in) throws IOException {
+        final HttpCachingResponse response = new HttpCachingResponse();
+        response.out = null;
+        response.characterEncoding = readNullable(in);
+        response.contentType = readNullable(in);
+        for (int i = in.readInt(); i > 0; i--) {
+            response.headers.put(in.readUTF(), in.readUTF());
+        }
+        response.gzipped = in.readBoolean();
+        response.etag = readNullable(in);
+        response.lastModified = in.readLong();
+        response.maxAge = in.readLong();
+        response.staleWhileRevalidate = in.readLong();
+        response.created = System.nanoTime()
+                - (System.currentTimeMillis() - in.readLong()) * 1000000;
+        response.bytes = new byte[in.readInt()];
+        in.readFully(response.bytes);
+        return response;
+    }
+
+    private static void writeNullable(final DataOutput out, final String value)
+            throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readNullable(final DataInput in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
     @Override
     public ScuttleServletResponse setCharacterEncoding(final String string) {
         characterEncoding = string;
@@ -62,10 +387,42 @@ public class HttpCachingResponse implements ScuttleServletResponse,
         return this;
     }
 
+    @Override
+    public String getETag(final boolean gzipSupported) {
+        return ETags.variant(etag, gzipped && gzipSupported);
+    }
+
+    @Override
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    @Override
+    public void doNotModified(final boolean gzipSupported,
+            final ScuttleServletResponse response) {
+        writeValidators(gzipSupported, response);
+        for (final String name : new String[] { "Cache-Control", "Expires",
+                "Vary" }) {
+            final String value = headers.get(name);
+            if (value != null) {
+                response.setHeader(name, value);
+            }
+        }
+    }
+
+    private void writeValidators(final boolean gzipSupported,
+            final ScuttleServletResponse response) {
+        if (etag != null) {
+            response.setHeader("ETag", getETag(gzipSupported));
+            response.setHeader("Last-Modified",
+                    ETags.formatDate(lastModified));
+        }
+    }
+
     @Override
     public void doResponse(final boolean gzipSupported,
             final ScuttleServletResponse response) throws IOException {
-        if (bytes == null) {
+        if (bytes == null && offHeap == null) {
             throw new RuntimeException(
                     "Empty cached response - are you sure you invoked done() after the initial response was done?");
         }
@@ -79,7 +436,32 @@ public class HttpCachingResponse implements ScuttleServletResponse,
         for (final Entry<String, String> header : headers.entrySet()) {
             response.setHeader(header.getKey(), header.getValue());
         }
-        final InputStream in = new ByteArrayInputStream(bytes);
-        ByteStreams.copy(in, response.getOutputStream());
+        writeValidators(gzipSupported, response);
+        if (!retain()) {
+            throw new IllegalStateException(
+                    "The body of the cached response has been freed.");
+        }
+        try {
+            if (gzipped && !gzipSupported) {
+                // the identity variant is not stored, it is rarely asked for
+                try (final InputStream in = new GZIPInputStream(
+                        bytes != null ? new ByteArrayInputStream(bytes)
+                                : offHeap.newInputStream())) {
+                    ByteStreams.copy(in, response.getOutputStream());
+                }
+                return;
+            }
+            if (gzipped) {
+                response.setHeader("Content-Encoding", "gzip");
+            }
+            response.setHeader("Content-Length", String.valueOf(length()));
+            if (bytes != null) {
+                response.getOutputStream().write(bytes);
+            } else {
+                offHeap.writeTo(response.getOutputStream());
+            }
+        } finally {
+            release();
+        }
     }
 }
@@ -4,7 +4,6 @@ import java.io.OutputStreamWriter;
 import java.io.Writer;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.zip.GZIPOutputStream;
 
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -67,13 +66,12 @@ public class JSONResponse implements ScuttleResponse {
         final boolean gzip = this.gzip && gzipSupported;
         resp.setCharacterEncoding("UTF-8");
         resp.setHeader("Content-Type", "application/json; charset=UTF-8");
+        // the encoding header is set by the stream, small bodies are not
+        // compressed
         final Writer w = gzip ?
                 new OutputStreamWriter(
-                        new GZIPOutputStream(resp.getOutputStream()),
+                        ContentEncoding.gzip(resp, "application/json"),
                         Charsets.UTF_8) : resp.getWriter();
-        if (gzip) {
-            resp.setHeader("Content-Encoding", "gzip");
-        }
         try {
             getJsonObject().write(w);
         } finally {
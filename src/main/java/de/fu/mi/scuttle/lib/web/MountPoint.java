@@ -10,8 +10,10 @@ import de.fu.mi.scuttle.lib.ScuttleModule;
 /**
  * Defines the path at which a {@link ScuttleModule} is to be mounted.
  * 
- * This may not be a subpath (i.e. it may not contain a slash), since the module
- * structure is pretty flat (which is intended).
+ * The mount point may be a nested path like <code>api/v2/users</code>. A
+ * request is routed to the module with the longest mount point that is a
+ * prefix of the requested path (compared segment-wise), the remaining path is
+ * available via {@link ScuttleRequest#getPath()}.
  * 
  * @author Julian Fleischer
  * @since 2011-11-16
@@ -0,0 +1,128 @@
+package de.fu.mi.scuttle.lib.web;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A body in the {@link OffHeapStore}.
+ *
+ * The body is reference counted: the cache holds one reference which it
+ * releases when the entry is evicted, every request which serves the body
+ * holds another one while it is writing. The blocks are given back to the
+ * store once the last reference is released, such that the eviction of an
+ * entry can not pull the bytes out from under a slow client.
+ */
+final class OffHeapBody {
+
+    private final OffHeapStore store;
+
+    private final ByteBuffer[] blocks;
+
+    private final int length;
+
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    OffHeapBody(final OffHeapStore store, final ByteBuffer[] blocks,
+            final int length) {
+        this.store = store;
+        this.blocks = blocks;
+        this.length = length;
+    }
+
+    int length() {
+        return length;
+    }
+
+    /**
+     * Acquires a reference.
+     *
+     * @return false if the body has been freed already.
+     */
+    boolean retain() {
+        for (;;) {
+            final int count = references.get();
+            if (count == 0) {
+                return false;
+            }
+            if (references.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
+    }
+
+    void release() {
+        if (references.decrementAndGet() == 0) {
+            store.free(blocks);
+        }
+    }
+
+    /**
+     * Writes the body directly from the off heap blocks, the caller must hold
+     * a reference.
+     */
+    void writeTo(final OutputStream out) throws IOException {
+        final WritableByteChannel channel = Channels.newChannel(out);
+        int remaining = length;
+        for (final ByteBuffer block : blocks) {
+            final ByteBuffer view = block.duplicate();
+            view.clear().limit(Math.min(remaining, view.capacity()));
+            remaining -= view.limit();
+            while (view.hasRemaining()) {
+                channel.write(view);
+            }
+        }
+    }
+
+    /**
+     * Reads the body, the caller must hold a reference until the stream is
+     * closed.
+     */
+    InputStream newInputStream() {
+        return new InputStream() {
+
+            private int block = 0;
+
+            private int position = 0;
+
+            private int remaining = length;
+
+            @Override
+            public int read() throws IOException {
+                final byte[] b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+            }
+
+            @Override
+            public int read(final byte[] b, final int off, final int len) {
+                if (remaining == 0) {
+                    return -1;
+                }
+                if (len == 0) {
+                    return 0;
+                }
+                final ByteBuffer view = blocks[block].duplicate();
+                view.clear().position(position);
+                final int n = Math.min(len,
+                        Math.min(remaining, view.remaining()));
+                view.get(b, off, n);
+                position += n;
+                remaining -= n;
+                if (position == view.capacity()) {
+                    block++;
+                    position = 0;
+                }
+                return n;
+            }
+
+            @Override
+            public int available() {
+                return remaining;
+            }
+        };
+    }
+}
@@ -0,0 +1,141 @@
+package de.fu.mi.scuttle.lib.web;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONObject;
+
+/**
+ * Stores the bodies of cached responses outside of the java heap, such that
+ * a large cache does not inflate the old generation.
+ *
+ * Memory is allocated from the operating system in slabs of direct byte
+ * buffers, which are never given back. A slab is divided into blocks of equal
+ * size, a body occupies as many blocks as it needs (such that only the last
+ * block of a body is partially wasted). Freed blocks are reused. If the
+ * capacity is exhausted, bodies are not stored, they stay on the heap then.
+ *
+ * The configuration (the <code>offHeap</code> section of the
+ * <code>responseCache</code>) has the keys <code>enabled</code>,
+ * <code>maxBytes</code> (the capacity), <code>slabSize</code>,
+ * <code>blockSize</code> and <code>minBodySize</code> (smaller bodies are
+ * not worth it and stay on the heap).
+ */
+final class OffHeapStore {
+
+    private final long maxBytes;
+
+    private final int slabSize;
+
+    private final int blockSize;
+
+    private final int minBodySize;
+
+    /** Guarded by this. */
+    private final ArrayDeque<ByteBuffer> freeBlocks = new ArrayDeque<>();
+
+    /** Guarded by this. */
+    private long allocatedBytes = 0;
+
+    private final AtomicLong usedBytes = new AtomicLong();
+
+    OffHeapStore(final JSONObject config) {
+        this.blockSize = Math.max(512, config.optInt("blockSize", 8192));
+        this.slabSize = Math.max(blockSize, config.optInt("slabSize",
+                4 << 20) / blockSize * blockSize);
+        this.maxBytes = config.optLong("maxBytes", 256L << 20);
+        this.minBodySize = config.optInt("minBodySize", 4096);
+    }
+
+    /**
+     * Creates a store if it is enabled in the given configuration.
+     *
+     * @param config
+     *            The <code>offHeap</code> section of the configuration, may
+     *            be null.
+     * @return The store or null if it is not enabled.
+     */
+    static OffHeapStore create(final JSONObject config) {
+        if (config == null || !config.optBoolean("enabled", false)) {
+            return null;
+        }
+        return new OffHeapStore(config);
+    }
+
+    /**
+     * Copies a body into the store.
+     *
+     * @param bytes
+     *            The body.
+     * @return The stored body or null if it is too small to be worth it or if
+     *         the store is full.
+     */
+    OffHeapBody store(final byte[] bytes) {
+        if (bytes.length < minBodySize) {
+            return null;
+        }
+        final ByteBuffer[] blocks = allocate((bytes.length + blockSize - 1)
+                / blockSize);
+        if (blocks == null) {
+            return null;
+        }
+        int offset = 0;
+        for (final ByteBuffer block : blocks) {
+            final int length = Math.min(blockSize, bytes.length - offset);
+            block.clear();
+            block.put(bytes, offset, length);
+            offset += length;
+        }
+        return new OffHeapBody(this, blocks, bytes.length);
+    }
+
+    private synchronized ByteBuffer[] allocate(final int count) {
+        while (freeBlocks.size() < count) {
+            if (allocatedBytes + slabSize > maxBytes) {
+                return null;
+            }
+            final ByteBuffer slab = ByteBuffer.allocateDirect(slabSize);
+            for (int position = 0; position < slabSize; position += blockSize) {
+                slab.limit(position + blockSize).position(position);
+                freeBlocks.add(slab.slice());
+            }
+            allocatedBytes += slabSize;
+        }
+        final ByteBuffer[] blocks = new ByteBuffer[count];
+        for (int i = 0; i < count; i++) {
+            blocks[i] = freeBlocks.poll();
+        }
+        usedBytes.addAndGet((long) count * blockSize);
+        return blocks;
+    }
+
+    /**
+     * Gives the blocks of a body back, invoked when the last reference to the
+     * body is released.
+     */
+    synchronized void free(final ByteBuffer[] blocks) {
+        for (final ByteBuffer block : blocks) {
+            freeBlocks.add(block);
+        }
+        usedBytes.addAndGet(-(long) blocks.length * blockSize);
+    }
+
+    /**
+     * @return The bytes occupied by stored bodies (in whole blocks).
+     */
+    long usedBytes() {
+        return usedBytes.get();
+    }
+
+    /**
+     * @return The bytes allocated from the operating system.
+     */
+    synchronized long allocatedBytes() {
+        return allocatedBytes;
+    }
+
+    long maxBytes() {
+        return maxBytes;
+    }
+}
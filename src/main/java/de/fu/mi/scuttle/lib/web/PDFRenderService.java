@@ -0,0 +1,320 @@
+package de.fu.mi.scuttle.lib.web;
+
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.xml.transform.Source;
+import javax.xml.transform.Templates;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.sax.SAXResult;
+import javax.xml.transform.stream.StreamSource;
+
+import org.apache.fop.apps.Fop;
+import org.apache.fop.apps.FopFactory;
+import org.apache.xmlgraphics.util.MimeConstants;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.google.common.util.concurrent.ExecutionError;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import de.fu.mi.scuttle.lib.util.XslTemplates;
+
+/**
+ * Renders the documents of {@link PDFResponse}s on a pool of its own.
+ *
+ * Rendering with FOP is heavy on CPU and memory. The pool has a fixed number
+ * of threads (the number of cores by default) and a bounded queue, a render
+ * which does not fit into the queue is rejected right away with a
+ * {@link RejectedExecutionException}, which the servlet answers with
+ * <code>503 Service Unavailable</code>, just like a render which does not
+ * finish within the configured timeout (a {@link TimeoutException}). All
+ * renders share a single {@link FopFactory}, which is warmed up by rendering
+ * an empty document when the service is created.
+ *
+ * Renders are identified by a key, a hash of the source document and the
+ * style sheet (see {@link PDFResponse}). Concurrent renders of the same key
+ * are carried out only once, and the resulting documents are cached for a
+ * while, such that downloading the same document again costs nothing.
+ *
+ * There is one service per process, shared by all servlets. It is configured
+ * by the first servlet which starts (a servlet whose configuration differs is
+ * told so, see {@link #configure(JSONObject)}) and shut down when the last one
+ * is destroyed. It is configured from the <code>pdf</code> section of the
+ * configuration with the keys
+ * <code>threads</code> (0 for the number of cores), <code>queueSize</code>,
+ * <code>timeout</code> (how long a request waits for its document at most,
+ * in milliseconds), <code>cacheBytes</code> and <code>cacheTtl</code> (in
+ * milliseconds).
+ */
+public final class PDFRenderService {
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private static final String EMPTY_DOCUMENT = "<fo:root xmlns:fo=\"http://www.w3.org/1999/XSL/Format\">"
+            + "<fo:layout-master-set><fo:simple-page-master master-name=\"page\">"
+            + "<fo:region-body/></fo:simple-page-master></fo:layout-master-set>"
+            + "<fo:page-sequence master-reference=\"page\"><fo:flow flow-name=\"xsl-region-body\">"
+            + "<fo:block/></fo:flow></fo:page-sequence></fo:root>";
+
+    private static PDFRenderService instance;
+
+    /**
+     * The number of servlets using the service, guarded by the class.
+     */
+    private static int users = 0;
+
+    private final FopFactory fopFactory = FopFactory.newInstance();
+
+    private final ThreadPoolExecutor executor;
+
+    private final long timeout;
+
+    private final Cache<String, byte[]> documents;
+
+    /**
+     * The effective settings, for telling whether two configurations agree.
+     */
+    private final List<Long> settings;
+
+    private PDFRenderService(final List<Long> settings) {
+        this.settings = settings;
+        final int threads = settings.get(0).intValue();
+        final int queueSize = settings.get(1).intValue();
+        this.timeout = settings.get(2);
+        final long cacheBytes = settings.get(3);
+        final long cacheTtl = settings.get(4);
+
+        final AtomicInteger count = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 0,
+                TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(
+                        queueSize),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable runnable) {
+                        final Thread thread = new Thread(runnable,
+                                "scuttle-pdf-" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+
+        this.documents = CacheBuilder.newBuilder()
+                .maximumWeight(cacheBytes)
+                .weigher(new Weigher<String, byte[]>() {
+                    @Override
+                    public int weigh(final String key, final byte[] document) {
+                        return document.length;
+                    }
+                })
+                .expireAfterWrite(cacheTtl, TimeUnit.MILLISECONDS)
+                .build();
+    }
+
+    /**
+     * Reads the settings from the <code>pdf</code> section of the
+     * configuration: the number of threads, the size of the queue, the
+     * timeout, the size of the cache and the time to live of cached
+     * documents.
+     */
+    private static List<Long> settings(final JSONObject config) {
+        final JSONObject c = config == null ? new JSONObject() : config;
+        final int threads = c.optInt("threads", 0);
+        return Arrays.<Long> asList(
+                (long) (threads > 0 ? threads : Runtime.getRuntime()
+                        .availableProcessors()),
+                (long) Math.max(1, c.optInt("queueSize", 16)),
+                Math.max(0, c.optLong("timeout", 60000)),
+                Math.max(0, c.optLong("cacheBytes", 16777216)),
+                Math.max(0, c.optLong("cacheTtl", 600000)));
+    }
+
+    /**
+     * Sets up the service for a servlet. The first servlet sets it up, the
+     * others share it. Every call must be matched by a call to
+     * {@link #shutdown()}.
+     *
+     * @param config
+     *            The <code>pdf</code> section of the configuration, may be
+     *            null.
+     * @return false if the service was set up by another servlet with a
+     *         different configuration, which is in effect.
+     */
+    public static synchronized boolean configure(final JSONObject config) {
+        final List<Long> settings = settings(config);
+        if (users++ > 0 && instance != null) {
+            return instance.settings.equals(settings);
+        }
+        if (instance != null) {
+            // set up with the defaults by a lookup before
+            instance.stop();
+        }
+        instance = new PDFRenderService(settings);
+        instance.warmUp();
+        return true;
+    }
+
+    /**
+     * Retrieve the service, setting it up with the default configuration if
+     * it has not been configured.
+     *
+     * @return The service.
+     */
+    public static synchronized PDFRenderService get() {
+        if (instance == null) {
+            instance = new PDFRenderService(settings(null));
+        }
+        return instance;
+    }
+
+    /**
+     * Releases the service on behalf of a servlet. It is shut down once the
+     * last servlet has released it, renders which have not been started yet
+     * are abandoned.
+     */
+    public static synchronized void shutdown() {
+        if (users > 0 && --users > 0) {
+            return;
+        }
+        if (instance != null) {
+            instance.stop();
+            instance = null;
+        }
+    }
+
+    private void stop() {
+        executor.shutdownNow();
+        documents.invalidateAll();
+    }
+
+    /**
+     * Renders an empty document, which sets up the FopFactory (the fonts in
+     * particular) before the first request needs it.
+     */
+    private void warmUp() {
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        renderNow(new StreamSource(new StringReader(
+                                EMPTY_DOCUMENT)), null);
+                    } catch (final Exception exc) {
+                        logger.warn("Could not warm up the PDF renderer", exc);
+                    }
+                }
+            });
+        } catch (final RejectedExecutionException exc) {
+            // shut down already
+        }
+    }
+
+    /**
+     * Renders a PDF document, or takes it from the cache.
+     *
+     * @param key
+     *            Identifies the document, that is the source and the style
+     *            sheet. The document is neither cached nor shared with
+     *            concurrent renders if this is null.
+     * @param source
+     *            The source document, which is transformed into an XSL-FO
+     *            document.
+     * @param stylesheet
+     *            The style sheet, or null if the source is an XSL-FO document
+     *            already.
+     * @return The PDF document.
+     * @throws RejectedExecutionException
+     *             If the render queue is full.
+     * @throws TimeoutException
+     *             If the document was not rendered in time.
+     * @throws Exception
+     *             If the document could not be rendered.
+     */
+    public byte[] render(final String key, final Source source,
+            final Templates stylesheet) throws Exception {
+        final Callable<byte[]> render = new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws Exception {
+                return submit(source, stylesheet);
+            }
+        };
+        if (key == null) {
+            return render.call();
+        }
+        try {
+            return documents.get(key, render);
+        } catch (final ExecutionException | UncheckedExecutionException
+                | ExecutionError exc) {
+            throw unwrap(exc.getCause());
+        }
+    }
+
+    private byte[] submit(final Source source, final Templates stylesheet)
+            throws Exception {
+        final Future<byte[]> future = executor.submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws Exception {
+                return renderNow(source, stylesheet);
+            }
+        });
+        try {
+            return future.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (final ExecutionException exc) {
+            throw unwrap(exc.getCause());
+        } catch (final TimeoutException | InterruptedException exc) {
+            future.cancel(true);
+            if (exc instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            throw exc;
+        }
+    }
+
+    private byte[] renderNow(final Source source, final Templates stylesheet)
+            throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final Fop fop = fopFactory.newFop(MimeConstants.MIME_PDF, out);
+        final Transformer transformer = stylesheet == null
+                ? XslTemplates.identity()
+                : stylesheet.newTransformer();
+        transformer.transform(source, new SAXResult(fop.getDefaultHandler()));
+        return out.toByteArray();
+    }
+
+    private static Exception unwrap(final Throwable cause) {
+        if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        return (Exception) cause;
+    }
+
+    /**
+     * The number of renders waiting for a thread.
+     */
+    public int getQueued() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * The number of renders in progress.
+     */
+    public int getActive() {
+        return executor.getActiveCount();
+    }
+}
@@ -1,26 +1,39 @@
 package de.fu.mi.scuttle.lib.web;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.Result;
 import javax.xml.transform.Source;
-import javax.xml.transform.Transformer;
+import javax.xml.transform.Templates;
 import javax.xml.transform.TransformerConfigurationException;
-import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.TransformerException;
 import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.sax.SAXResult;
+import javax.xml.transform.sax.SAXSource;
 import javax.xml.transform.stream.StreamSource;
 
-import org.apache.fop.apps.Fop;
-import org.apache.fop.apps.FopFactory;
-import org.apache.xmlgraphics.util.MimeConstants;
 import org.json.JSONException;
 import org.w3c.dom.Document;
 
-import de.fu.mi.scuttle.lib.util.JSON;
+import com.google.common.base.Charsets;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.hash.Funnels;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+
+import de.fu.mi.scuttle.lib.util.JsonXmlReader;
+import de.fu.mi.scuttle.lib.util.XML;
+import de.fu.mi.scuttle.lib.util.XslTemplates;
 
 /**
  * A PDF response, generated from an XSL-FO document.
@@ -33,23 +46,55 @@ import de.fu.mi.scuttle.lib.util.JSON;
  * "http://stackoverflow.com/questions/1012437/uses-of-content-disposition-in-an-http-response-header"
  * >stackoverflow</a>.
  * 
+ * Style sheets are compiled once and taken from the {@link XslTemplates} cache
+ * afterwards, style sheets given as a {@link File} by their path, style
+ * sheets given as a stream or a DOM document by their hash. Rendered
+ * documents are identified by the compiled style sheet they were rendered
+ * with, hence a style sheet which is compiled again never hits a document
+ * rendered with its previous version.
+ * 
+ * A {@link JSONResponse} is handed to the style sheet in the XML
+ * representation of {@link de.fu.mi.scuttle.lib.util.JsonToXml}, which is
+ * streamed from the JSON object by a {@link JsonXmlReader} instead of being
+ * built as a DOM Document.
+ * 
+ * The document is rendered by the {@link PDFRenderService}, which renders a
+ * limited number of documents at a time and caches them by a hash of the
+ * source document and the style sheet. If the service is busy the request is
+ * rejected with <code>503 Service Unavailable</code>.
+ * 
  * @author Julian Fleischer
  * @since 2013-11-09
  */
 public class PDFResponse implements ScuttleResponse {
 
-    private static final ThreadLocal<FopFactory> fopFactory = new ThreadLocal<FopFactory>() {
-        @Override
-        protected FopFactory initialValue() {
-            return FopFactory.newInstance();
-        }
-    };
+    /**
+     * Assigns an id to every compiled style sheet, which identifies it as
+     * long as it is in use.
+     */
+    private static final LoadingCache<Templates, Long> templatesIds = CacheBuilder
+            .newBuilder().weakKeys().build(new CacheLoader<Templates, Long>() {
+                private final AtomicLong next = new AtomicLong();
+
+                @Override
+                public Long load(final Templates templates) {
+                    return next.incrementAndGet();
+                }
+            });
 
     private final String filename;
     private final Source source;
 
-    private final TransformerFactory factory = TransformerFactory.newInstance();
-    private final Transformer transformer;
+    /**
+     * The compiled style sheet, null if the source is an XSL-FO document.
+     */
+    private final Templates stylesheet;
+
+    /**
+     * Identifies the style sheet, which is part of the key of the rendered
+     * document, see {@link PDFRenderService}.
+     */
+    private final String stylesheetKey;
 
     /**
      * Creates a PDF Response that is generated from a {@link JSONResponse}.
@@ -63,8 +108,8 @@ public class PDFResponse implements ScuttleResponse {
      *             If the transformer could not be set up properly (for example
      *             if the stylesheet contains an error).
      * @throws ParserConfigurationException
-     *             If the parser used to create the intermediate XML DOM
-     *             encounters an error.
+     *             Not thrown anymore, the XML representation of the JSON
+     *             response is streamed (see {@link JsonXmlReader}).
      * @throws JSONException
      *             If the JSON was errorneous in any way.
      */
@@ -74,11 +119,11 @@ public class PDFResponse implements ScuttleResponse {
             throws TransformerConfigurationException,
             ParserConfigurationException, JSONException {
 
-        final Document xmlDom = JSON.toDocument(response.getJsonObject());
-
         this.filename = null;
-        this.source = new DOMSource(xmlDom);
-        this.transformer = factory.newTransformer(new StreamSource(stylesheet));
+        this.source = JsonXmlReader.source(response.getJsonObject());
+        final byte[] xsl = read(stylesheet);
+        this.stylesheetKey = key(xsl);
+        this.stylesheet = compile(stylesheetKey, xsl);
     }
 
     /**
@@ -93,8 +138,8 @@ public class PDFResponse implements ScuttleResponse {
      *             If the transformer could not be set up properly (for example
      *             if the stylesheet contains an error).
      * @throws ParserConfigurationException
-     *             If the parser used to create the intermediate XML DOM
-     *             encounters an error.
+     *             Not thrown anymore, the XML representation of the JSON
+     *             response is streamed (see {@link JsonXmlReader}).
      * @throws JSONException
      *             If the JSON was errorneous in any way.
      */
@@ -104,11 +149,11 @@ public class PDFResponse implements ScuttleResponse {
             throws TransformerConfigurationException,
             ParserConfigurationException, JSONException {
 
-        final Document xmlDom = JSON.toDocument(response.getJsonObject());
-
         this.filename = null;
-        this.source = new DOMSource(xmlDom);
-        this.transformer = factory.newTransformer(new StreamSource(stylesheet));
+        this.source = JsonXmlReader.source(response.getJsonObject());
+        this.stylesheet = XslTemplates.get(stylesheet);
+        // the style sheet actually used, the file may have changed since
+        this.stylesheetKey = key(this.stylesheet);
     }
 
     /**
@@ -134,7 +179,9 @@ public class PDFResponse implements ScuttleResponse {
             throws TransformerConfigurationException {
         this.filename = filename;
         this.source = new StreamSource(source);
-        this.transformer = factory.newTransformer(new StreamSource(stylesheet));
+        this.stylesheet = XslTemplates.get(stylesheet);
+        // the style sheet actually used, the file may have changed since
+        this.stylesheetKey = key(this.stylesheet);
     }
 
     /**
@@ -160,7 +207,9 @@ public class PDFResponse implements ScuttleResponse {
             throws TransformerConfigurationException {
         this.filename = filename;
         this.source = new DOMSource(source);
-        this.transformer = factory.newTransformer(new StreamSource(stylesheet));
+        this.stylesheet = XslTemplates.get(stylesheet);
+        // the style sheet actually used, the file may have changed since
+        this.stylesheetKey = key(this.stylesheet);
     }
 
     /**
@@ -186,7 +235,9 @@ public class PDFResponse implements ScuttleResponse {
             throws TransformerConfigurationException {
         this.filename = filename;
         this.source = new StreamSource(source);
-        this.transformer = factory.newTransformer(new DOMSource(stylesheet));
+        final byte[] xsl = serialize(stylesheet);
+        this.stylesheetKey = key(xsl);
+        this.stylesheet = compile(stylesheetKey, xsl);
     }
 
     /**
@@ -212,7 +263,9 @@ public class PDFResponse implements ScuttleResponse {
             throws TransformerConfigurationException {
         this.filename = filename;
         this.source = new DOMSource(source);
-        this.transformer = factory.newTransformer(new DOMSource(stylesheet));
+        final byte[] xsl = serialize(stylesheet);
+        this.stylesheetKey = key(xsl);
+        this.stylesheet = compile(stylesheetKey, xsl);
     }
 
     /**
@@ -238,7 +291,9 @@ public class PDFResponse implements ScuttleResponse {
             throws TransformerConfigurationException {
         this.filename = filename;
         this.source = new StreamSource(source);
-        this.transformer = factory.newTransformer(new StreamSource(stylesheet));
+        final byte[] xsl = read(stylesheet);
+        this.stylesheetKey = key(xsl);
+        this.stylesheet = compile(stylesheetKey, xsl);
     }
 
     /**
@@ -264,7 +319,92 @@ public class PDFResponse implements ScuttleResponse {
             throws TransformerConfigurationException {
         this.filename = filename;
         this.source = new DOMSource(source);
-        this.transformer = factory.newTransformer(new StreamSource(stylesheet));
+        final byte[] xsl = read(stylesheet);
+        this.stylesheetKey = key(xsl);
+        this.stylesheet = compile(stylesheetKey, xsl);
+    }
+
+    /**
+     * Creates a PDF Response that is generated from a {@link JSONResponse}.
+     * 
+     * @param response
+     *            The JSON Response.
+     * @param stylesheet
+     *            The compiled stylesheet which is used to transform the XML
+     *            representation of the json response into an XSL-FO, see
+     *            {@link XslTemplates}.
+     * @throws TransformerConfigurationException
+     *             If the transformer could not be set up properly.
+     * @throws ParserConfigurationException
+     *             Not thrown anymore, the XML representation of the JSON
+     *             response is streamed (see {@link JsonXmlReader}).
+     * @throws JSONException
+     *             If the JSON was errorneous in any way.
+     */
+    public PDFResponse(
+            final JSONResponse response,
+            final Templates stylesheet)
+            throws TransformerConfigurationException,
+            ParserConfigurationException, JSONException {
+
+        this.filename = null;
+        this.source = JsonXmlReader.source(response.getJsonObject());
+        this.stylesheetKey = key(stylesheet);
+        this.stylesheet = stylesheet;
+    }
+
+    /**
+     * Creates a PDF Response that is generated using an arbitrary XML document
+     * and a compiled XSL-T style sheet.
+     * 
+     * @param filename
+     *            The filename of the resulting PDF document.
+     * @param source
+     *            The source XML document. This may be an arbitrary XML
+     *            document, i.e. it does not have to an XSL-FO document.
+     * @param stylesheet
+     *            The compiled XSL-T style sheet that is used to transform the
+     *            XML document into an XSL-FO document, see
+     *            {@link XslTemplates}.
+     * @throws TransformerConfigurationException
+     *             If the transformer could not be set up properly.
+     */
+    public PDFResponse(
+            final String filename,
+            final InputStream source,
+            final Templates stylesheet)
+            throws TransformerConfigurationException {
+        this.filename = filename;
+        this.source = new StreamSource(source);
+        this.stylesheetKey = key(stylesheet);
+        this.stylesheet = stylesheet;
+    }
+
+    /**
+     * Creates a PDF Response that is generated using an arbitrary XML document
+     * and a compiled XSL-T style sheet.
+     * 
+     * @param filename
+     *            The filename of the resulting PDF document.
+     * @param source
+     *            The source XML document. This may be an arbitrary XML
+     *            document, i.e. it does not have to an XSL-FO document.
+     * @param stylesheet
+     *            The compiled XSL-T style sheet that is used to transform the
+     *            XML document into an XSL-FO document, see
+     *            {@link XslTemplates}.
+     * @throws TransformerConfigurationException
+     *             If the transformer could not be set up properly.
+     */
+    public PDFResponse(
+            final String filename,
+            final Document source,
+            final Templates stylesheet)
+            throws TransformerConfigurationException {
+        this.filename = filename;
+        this.source = new DOMSource(source);
+        this.stylesheetKey = key(stylesheet);
+        this.stylesheet = stylesheet;
     }
 
     /**
@@ -281,7 +421,8 @@ public class PDFResponse implements ScuttleResponse {
             throws TransformerConfigurationException {
         this.filename = filename;
         this.source = new StreamSource(source);
-        this.transformer = factory.newTransformer();
+        this.stylesheetKey = "fo";
+        this.stylesheet = null;
     }
 
     /**
@@ -298,7 +439,48 @@ public class PDFResponse implements ScuttleResponse {
             throws TransformerConfigurationException {
         this.filename = filename;
         this.source = new DOMSource(source);
-        this.transformer = factory.newTransformer();
+        this.stylesheetKey = "fo";
+        this.stylesheet = null;
+    }
+
+    private static String key(final byte[] stylesheet) {
+        return "xsl:" + Hashing.sha256().hashBytes(stylesheet);
+    }
+
+    private static String key(final Templates stylesheet) {
+        return "templates:" + templatesIds.getUnchecked(stylesheet);
+    }
+
+    private static byte[] read(final InputStream stylesheet)
+            throws TransformerConfigurationException {
+        try {
+            return ByteStreams.toByteArray(stylesheet);
+        } catch (final IOException exc) {
+            throw new TransformerConfigurationException(exc);
+        }
+    }
+
+    private static byte[] serialize(final Document stylesheet)
+            throws TransformerConfigurationException {
+        try {
+            return XML.toByteArray(stylesheet);
+        } catch (final TransformerException exc) {
+            throw new TransformerConfigurationException(exc);
+        }
+    }
+
+    /**
+     * Compiles a style sheet given as a stream or a DOM document, which is
+     * cached by its hash such that it is compiled once only.
+     */
+    private static Templates compile(final String key, final byte[] stylesheet)
+            throws TransformerConfigurationException {
+        return XslTemplates.get(key, new Callable<Source>() {
+            @Override
+            public Source call() {
+                return new StreamSource(new ByteArrayInputStream(stylesheet));
+            }
+        });
     }
 
     @Override
@@ -306,6 +488,35 @@ public class PDFResponse implements ScuttleResponse {
             final boolean gzipSupported,
             final ScuttleServletResponse resp)
             throws Exception {
+        // the source is read before anything is written, such that a
+        // rejected render can still be answered with an error
+        final Hasher key = Hashing.sha256().newHasher()
+                .putString(stylesheetKey, Charsets.UTF_8)
+                .putByte((byte) 0);
+        final Source source;
+        if (this.source instanceof StreamSource) {
+            final byte[] xml = ByteStreams.toByteArray(
+                    ((StreamSource) this.source).getInputStream());
+            key.putBytes(xml);
+            source = new StreamSource(new ByteArrayInputStream(xml));
+        } else if (this.source instanceof SAXSource) {
+            // hash the JSON text as it is written, the XML representation
+            // is never held in memory as a whole
+            try (final Writer writer = new OutputStreamWriter(
+                    Funnels.asOutputStream(key), Charsets.UTF_8)) {
+                ((JsonXmlReader) ((SAXSource) this.source).getXMLReader())
+                        .write(writer);
+            }
+            source = this.source;
+        } else {
+            key.putBytes(XML.toByteArray((Document) ((DOMSource) this.source)
+                    .getNode()));
+            source = this.source;
+        }
+
+        final byte[] pdf = PDFRenderService.get().render(
+                key.hash().toString(), source, stylesheet);
+
         resp.setContentType("application/pdf");
         if (filename != null) {
             resp.setHeader("Content-Disposition",
@@ -313,13 +524,7 @@ public class PDFResponse implements ScuttleResponse {
         }
 
         try (final OutputStream out = resp.getOutputStream()) {
-
-            final Fop fop = fopFactory.get()
-                    .newFop(MimeConstants.MIME_PDF, out);
-
-            final Result result = new SAXResult(fop.getDefaultHandler());
-
-            transformer.transform(source, result);
+            out.write(pdf);
         }
     }
 }
@@ -11,10 +11,14 @@ import com.google.common.base.Charsets;
 /**
  * An object carrying a complete response of bytes.
  * 
+ * Requests for it are answered with 304 Not Modified if the client has a
+ * current copy, provided that an <code>ETag</code> header is set (which
+ * should be computed once using {@link ETags#of(byte[])}, not per request).
+ * 
  * @author Julian Fleischer
  * @since 2013-09-25
  */
-public class PlainResponse implements ScuttleResponse {
+public class PlainResponse implements ConditionalResponse {
 
     private final byte[] data;
     private final Map<String, String> headers = new HashMap<>();
@@ -59,4 +63,27 @@ public class PlainResponse implements ScuttleResponse {
         }
         resp.getOutputStream().write(data);
     }
+
+    @Override
+    public String getETag(final boolean gzipSupported) {
+        return headers.get("ETag");
+    }
+
+    @Override
+    public long getLastModified() {
+        return -1;
+    }
+
+    @Override
+    public void doNotModified(
+            final boolean gzipSupported,
+            final ScuttleServletResponse resp) {
+        for (final String name : new String[] { "ETag", "Cache-Control",
+                "Expires", "Vary" }) {
+            final String value = headers.get(name);
+            if (value != null) {
+                resp.setHeader(name, value);
+            }
+        }
+    }
 }
\ No newline at end of file
@@ -1,82 +1,791 @@
 package de.fu.mi.scuttle.lib.web;
 
+import java.io.File;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.IdentityHashMap;
 import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import de.fu.mi.scuttle.lib.ScuttleModule;
+import de.fu.mi.scuttle.lib.ScuttleNoPermissionException;
+import de.fu.mi.scuttle.lib.persistence.EntityChangeListener;
+import de.fu.mi.scuttle.lib.util.concurrent.AbstractJob;
+import de.fu.mi.scuttle.lib.util.concurrent.JobQueue;
 
 /**
  * Caches responses.
- * 
+ *
+ * The cache is bounded by a global memory budget in bytes (see
+ * {@link HttpCachingResponse#getSize()}) and every module may additionally be
+ * given a quota of its own. The entries of a module are evicted in segmented
+ * LRU order, see {@link ResponseCacheSegment}. If the global budget is
+ * exceeded, entries are evicted from the module which uses the most memory.
+ *
+ * Looking up an entry never takes a lock.
+ *
+ * Responses may expire, see {@link CacheableResponse}. A stale response is
+ * still served within its stale window while it is refreshed in the
+ * background on the job queue of the servlet.
+ *
+ * The bodies of cached responses may be kept outside of the heap, see
+ * {@link OffHeapStore}. A response obtained from the cache must therefore be
+ * {@link HttpCachingResponse#release() released} when it has been served.
+ *
+ * The responses of modules annotated with {@link CacheVersion} may also be
+ * written to disk, such that they survive a restart, see
+ * {@link DiskResponseStore}. They are promoted to memory when they are
+ * requested.
+ *
+ * Responses which depend on entities (see
+ * {@link CacheableResponse#dependsOn(Class...)}) are evicted when one of these
+ * entities is written, see {@link #invalidate(Collection)}. The cache is
+ * notified about written entities as an {@link EntityChangeListener}.
+ *
+ * Every module has its own statistics, see {@link #getStats()}.
+ *
  * @author Julian Fleischer
- * 
+ *
  */
-public class ResponseCache {
+public class ResponseCache implements EntityChangeListener {
 
     static class CacheEntry {
 
+        final long cacheTag;
+
         final HttpCachingResponse response;
 
-        public CacheEntry(final HttpCachingResponse response) {
+        final long weight;
+
+        /**
+         * The queue this entry is in, guarded by the eviction lock of its
+         * segment.
+         */
+        int queue = ResponseCacheSegment.NONE;
+
+        /**
+         * The neighbours of this entry in its queue, guarded by the eviction
+         * lock of its segment.
+         */
+        CacheEntry prev, next;
+
+        /**
+         * Whether something this entry depends on has changed, guarded by the
+         * eviction lock of its segment.
+         */
+        boolean invalidated = false;
+
+        public CacheEntry(final long cacheTag,
+                final HttpCachingResponse response) {
+            this(cacheTag, response, response.getSize());
+        }
+
+        CacheEntry(final long cacheTag, final HttpCachingResponse response,
+                final long weight) {
+            this.cacheTag = cacheTag;
             this.response = response;
+            this.weight = weight;
         }
 
         public HttpCachingResponse get() {
             return response;
         }
+
+        boolean isFresh(final long now) {
+            return !response.expires() || now - response.getStaleAt() < 0;
+        }
+
+        boolean isServable(final long now) {
+            return !response.expires() || now - response.getExpiresAt() < 0;
+        }
+    }
+
+    /**
+     * Computes a response on a cache miss, see
+     * {@link ResponseCache#get(ScuttleModule, long, Loader)}.
+     */
+    public interface Loader {
+
+        /**
+         * Computes the response.
+         * 
+         * @return The response, {@link HttpCachingResponse#done()} must have
+         *         been invoked on it. May be null if there is no response, in
+         *         which case nothing is cached.
+         * @throws Exception
+         *             If the response could not be computed. Nothing is
+         *             cached then.
+         */
+        HttpCachingResponse load() throws Exception;
+
+        /**
+         * Creates a loader which computes the same response, but which can be
+         * invoked on a different thread after the current request is done.
+         * It is used to refresh a stale response in the background. Invoked
+         * on the thread of the request.
+         * 
+         * @return The loader or null if the response can not be refreshed in
+         *         the background, in which case stale responses are not
+         *         served.
+         */
+        Loader detach();
     }
 
-    private final Map<ScuttleModule, ConcurrentMap<Long, CacheEntry>> store;
+    /**
+     * A computation of a response which is in progress. Requests for the same
+     * response wait for it instead of computing the response again.
+     */
+    static final class Flight {
 
+        private final CountDownLatch latch = new CountDownLatch(1);
+
+        private HttpCachingResponse response;
+
+        private Exception exception;
+
+        private boolean abandoned;
+
+        void complete(final HttpCachingResponse response) {
+            this.response = response;
+            latch.countDown();
+        }
+
+        void fail(final Exception exception) {
+            this.exception = exception;
+            latch.countDown();
+        }
+
+        /**
+         * Gives up the computation without a result, waiting requests compute
+         * the response themselves.
+         */
+        void abandon() {
+            this.abandoned = true;
+            latch.countDown();
+        }
+
+        /**
+         * @return Whether a result or exception arrived in time.
+         */
+        boolean await(final long timeout) throws InterruptedException {
+            return latch.await(timeout, TimeUnit.MILLISECONDS) && !abandoned;
+        }
+
+        HttpCachingResponse response() {
+            return response;
+        }
+
+        Exception exception() {
+            return exception;
+        }
+    }
+
+    private final Map<ScuttleModule, ResponseCacheSegment> store;
+
+    /**
+     * The names of the modules in the statistics.
+     */
+    private final Map<ScuttleModule, String> names;
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final long flightTimeout;
+
+    private final JobQueue refreshQueue;
+
+    private final OffHeapStore offHeap;
+
+    private final DiskResponseStore disk;
+
+    /**
+     * The mount points of the modules whose responses are written to disk.
+     */
+    private final Map<ScuttleModule, String> persistent;
+
+    private final long maxBytes;
+
+    private final AtomicLong bytes = new AtomicLong();
+
+    private final ResponseDependencies dependencies = new ResponseDependencies();
+
+    /**
+     * How many of the most recent invalidations are remembered, see
+     * {@link #recentInvalidations}.
+     */
+    private static final int RECENT_INVALIDATIONS = 1024;
+
+    /**
+     * Counts the invalidations, such that a response which has been computed
+     * while entities were written is not cached.
+     */
+    private final AtomicLong invalidations = new AtomicLong();
+
+    /**
+     * The tags of the most recent invalidations, by their number. A response
+     * which has been computed while entities were written is cached
+     * nevertheless if it does not depend on any of these.
+     */
+    private final Map<Long, Set<String>> recentInvalidations = new ConcurrentHashMap<>();
+
+    /**
+     * Creates an unbounded cache.
+     *
+     * @param values
+     *            The modules whose responses are to be cached.
+     */
     public ResponseCache(final Collection<ScuttleModule> values) {
-        final IdentityHashMap<ScuttleModule, ConcurrentMap<Long, CacheEntry>> store = new IdentityHashMap<>(
+        final IdentityHashMap<ScuttleModule, ResponseCacheSegment> store = new IdentityHashMap<>(
+                values.size());
+        final IdentityHashMap<ScuttleModule, String> names = new IdentityHashMap<>(
                 values.size());
 
         for (final ScuttleModule handler : values) {
-            store.put(handler,
-                    new ConcurrentHashMap<Long, CacheEntry>());
+            store.put(handler, new ResponseCacheSegment(Long.MAX_VALUE,
+                    bytes, dependencies));
+            names.put(handler, handler.getClass().getName());
         }
 
         this.store = Collections.unmodifiableMap(store);
+        this.names = Collections.unmodifiableMap(names);
+        this.maxBytes = Long.MAX_VALUE;
+        this.flightTimeout = 30000;
+        this.refreshQueue = null;
+        this.offHeap = null;
+        this.disk = null;
+        this.persistent = Collections.emptyMap();
+    }
+
+    /**
+     * Creates a cache which is bounded according to the given configuration.
+     *
+     * The configuration has the keys <code>maxBytes</code> (the global
+     * budget), <code>flightTimeout</code> (see
+     * {@link #get(ScuttleModule, long, Loader)}), <code>offHeap</code> (see
+     * {@link OffHeapStore}), <code>disk</code> (see {@link DiskResponseStore})
+     * and <code>modules</code>, which maps mount points to objects that may
+     * again have the key <code>maxBytes</code> (the quota of the module). The
+     * budget and the quotas include bodies which are stored off heap.
+     *
+     * @param modules
+     *            The modules whose responses are to be cached, by mount point.
+     * @param config
+     *            The <code>responseCache</code> section of the
+     *            configuration, may be null.
+     */
+    public ResponseCache(final Map<String, ScuttleModule> modules,
+            final JSONObject config) {
+        this(modules, config, null);
+    }
+
+    /**
+     * Creates a cache which is bounded according to the given configuration
+     * and which refreshes stale responses on the given job queue.
+     *
+     * @param modules
+     *            The modules whose responses are to be cached, by mount point.
+     * @param config
+     *            The <code>responseCache</code> section of the
+     *            configuration, may be null.
+     * @param refreshQueue
+     *            The queue to refresh stale responses on. May be null, in
+     *            which case stale responses are not served.
+     */
+    public ResponseCache(final Map<String, ScuttleModule> modules,
+            final JSONObject config, final JobQueue refreshQueue) {
+        this(modules, config, refreshQueue, null);
     }
 
+    /**
+     * Creates a cache which is bounded according to the given configuration,
+     * which refreshes stale responses on the given job queue and which keeps
+     * the responses written to disk in the given directory, unless another
+     * one is configured.
+     *
+     * @param modules
+     *            The modules whose responses are to be cached, by mount point.
+     * @param config
+     *            The <code>responseCache</code> section of the
+     *            configuration, may be null.
+     * @param refreshQueue
+     *            The queue to refresh stale responses on. May be null, in
+     *            which case stale responses are not served.
+     * @param tempDirectory
+     *            The private temporary directory of the web application, see
+     *            {@link DiskResponseStore}. May be null, in which case
+     *            responses are only written to disk if a directory is
+     *            configured.
+     */
+    public ResponseCache(final Map<String, ScuttleModule> modules,
+            final JSONObject config, final JobQueue refreshQueue,
+            final File tempDirectory) {
+        this.refreshQueue = refreshQueue;
+        final JSONObject c = config == null ? new JSONObject() : config;
+        final JSONObject quotas = c.optJSONObject("modules");
+
+        this.maxBytes = positive(c.optLong("maxBytes", 64L << 20));
+        this.flightTimeout = Math.max(0, c.optLong("flightTimeout", 30000));
+        this.offHeap = OffHeapStore.create(c.optJSONObject("offHeap"));
+
+        final IdentityHashMap<ScuttleModule, ResponseCacheSegment> store = new IdentityHashMap<>(
+                modules.size());
+        final IdentityHashMap<ScuttleModule, String> names = new IdentityHashMap<>(
+                modules.size());
+        for (final Entry<String, ScuttleModule> entry : modules.entrySet()) {
+            names.put(entry.getValue(), entry.getKey());
+            final JSONObject quota = quotas == null ? null : quotas
+                    .optJSONObject(entry.getKey());
+            final long moduleBytes = quota == null ? maxBytes : Math.min(
+                    maxBytes, positive(quota.optLong("maxBytes", maxBytes)));
+            store.put(entry.getValue(), new ResponseCacheSegment(moduleBytes,
+                    bytes, dependencies));
+        }
+        this.store = Collections.unmodifiableMap(store);
+        this.names = Collections.unmodifiableMap(names);
+
+        final IdentityHashMap<ScuttleModule, String> persistent = new IdentityHashMap<>();
+        final Map<String, String> versions = new HashMap<>();
+        for (final Entry<String, ScuttleModule> entry : modules.entrySet()) {
+            final CacheVersion version = entry.getValue().getClass()
+                    .getAnnotation(CacheVersion.class);
+            if (version != null) {
+                persistent.put(entry.getValue(), entry.getKey());
+                versions.put(entry.getKey(), version.value());
+            }
+        }
+        this.disk = DiskResponseStore.create(c.optJSONObject("disk"),
+                versions, tempDirectory);
+        this.persistent = disk == null ? Collections
+                .<ScuttleModule, String> emptyMap() : Collections
+                .unmodifiableMap(persistent);
+    }
+
+    private static long positive(final long value) {
+        return value <= 0 ? Long.MAX_VALUE : value;
+    }
+
+    /**
+     * Retrieves a fresh response from the cache.
+     * 
+     * @param handler
+     *            The module.
+     * @param cacheTag
+     *            The cache tag of the response.
+     * @return The response, which must be
+     *         {@link HttpCachingResponse#release() released} when it has been
+     *         served, or null if it is not cached.
+     */
     public HttpCachingResponse get(final ScuttleModule handler,
             final long cacheTag) {
-        final ConcurrentMap<Long, CacheEntry> map = store.get(handler);
-        if (map == null) {
+        final ResponseCacheSegment segment = store.get(handler);
+        if (segment == null) {
             return null;
         }
-        final CacheEntry entry = map.get(cacheTag);
-        if (entry == null) {
-            return null;
+        final long start = System.nanoTime();
+        final CacheEntry entry = segment.get(cacheTag);
+        final HttpCachingResponse response = entry != null
+                && entry.isFresh(start) ? retain(entry) : null;
+        if (response == null) {
+            segment.misses.increment();
+        } else {
+            segment.hits.increment();
+            segment.hitNanos.add(System.nanoTime() - start);
+        }
+        return response;
+    }
+
+    /**
+     * @return The response of the entry or null if its body has been freed
+     *         since it was looked up (i.e. it has been evicted).
+     */
+    private static HttpCachingResponse retain(final CacheEntry entry) {
+        final HttpCachingResponse response = entry.get();
+        return response.retain() ? response : null;
+    }
+
+    /**
+     * Retrieves a response from the cache or computes it using the given
+     * loader if it is not cached.
+     * 
+     * Concurrent misses for the same response are coalesced: only one of them
+     * invokes its loader and populates the cache, the others wait for that
+     * result (or failure) instead of doing the same work again. If the result
+     * does not arrive within the flight timeout, a waiting request invokes
+     * its own loader. A {@link ScuttleNoPermissionException} is specific to
+     * the user who caused it, hence waiting requests do not inherit it but
+     * invoke their own loader.
+     * 
+     * A cached response which has become stale (see {@link CacheableResponse})
+     * is returned as long as it is within its stale window. The first request
+     * which finds it stale schedules a refresh using the
+     * {@link Loader#detach() detached} loader, all others keep being served
+     * the stale response until the refreshed one has been cached.
+     * 
+     * @param handler
+     *            The module.
+     * @param cacheTag
+     *            The cache tag of the response.
+     * @param loader
+     *            Computes the response on a miss.
+     * @return The response, which must be
+     *         {@link HttpCachingResponse#release() released} when it has been
+     *         served. May be null if the loader returned null.
+     * @throws Exception
+     *             If the loader failed.
+     */
+    public HttpCachingResponse get(final ScuttleModule handler,
+            final long cacheTag, final Loader loader) throws Exception {
+        final ResponseCacheSegment segment = store.get(handler);
+        if (segment == null) {
+            return loader.load();
+        }
+        final long start = System.nanoTime();
+        final CacheEntry entry = segment.get(cacheTag);
+        if (entry != null) {
+            final boolean fresh = entry.isFresh(start);
+            final boolean servable = fresh || entry.isServable(start)
+                    && refreshQueue != null && !refreshQueue.isStopped()
+                    && refresh(handler, segment, cacheTag, loader);
+            final HttpCachingResponse response = servable ? retain(entry)
+                    : null;
+            if (response != null) {
+                (fresh ? segment.hits : segment.staleHits).increment();
+                segment.hitNanos.add(System.nanoTime() - start);
+                return response;
+            }
+            // expired or evicted, compute it like on a miss
+        }
+        segment.misses.increment();
+        final Flight flight = new Flight();
+        final Flight existing = segment.startFlight(cacheTag, flight);
+        if (existing != null) {
+            if (existing.await(flightTimeout)) {
+                final Exception exc = existing.exception();
+                final HttpCachingResponse response = existing.response();
+                if (exc == null && (response == null || response.retain())) {
+                    segment.coalesced.increment();
+                    return response;
+                }
+                if (exc != null
+                        && !(exc instanceof ScuttleNoPermissionException)) {
+                    throw exc;
+                }
+            }
+            // timed out, not permitted, or evicted meanwhile, compute it
+            // without coalescing
+            return load(handler, segment, cacheTag, loader);
+        }
+        try {
+            // someone might have populated the cache just now
+            final CacheEntry populated = segment.get(cacheTag);
+            HttpCachingResponse response = populated != null
+                    && populated.isFresh(System.nanoTime()) ? retain(populated)
+                    : null;
+            if (response == null) {
+                response = load(handler, segment, cacheTag, loader);
+            }
+            flight.complete(response);
+            return response;
+        } catch (final Exception exc) {
+            flight.fail(exc);
+            throw exc;
+        } finally {
+            segment.endFlight(cacheTag, flight);
+        }
+    }
+
+    /**
+     * Schedules a background refresh of a stale response, unless the response
+     * is already being computed. If the loader can not be detached, the stale
+     * response is served without being refreshed, the next request tries
+     * again.
+     *
+     * @return Whether the stale response may be served.
+     */
+    private boolean refresh(final ScuttleModule handler,
+            final ResponseCacheSegment segment, final long cacheTag,
+            final Loader loader) {
+        final Flight flight = new Flight();
+        if (segment.startFlight(cacheTag, flight) != null) {
+            return true;
+        }
+        final Loader detached;
+        try {
+            detached = loader.detach();
+        } catch (final RuntimeException exc) {
+            flight.abandon();
+            segment.endFlight(cacheTag, flight);
+            logger.warn("Can not refresh a stale response", exc);
+            return true;
+        }
+        if (detached == null) {
+            flight.abandon();
+            segment.endFlight(cacheTag, flight);
+            return false;
         }
-        return entry.get();
+        refreshQueue.submit(new AbstractJob("Refresh a stale response") {
+            @Override
+            public void execute() throws Exception {
+                try {
+                    flight.complete(load(handler, segment, cacheTag,
+                            detached));
+                } catch (final ScuttleNoPermissionException exc) {
+                    // the user lost the privilege meanwhile, the response
+                    // will be computed by the next request
+                    flight.fail(exc);
+                } catch (final Exception exc) {
+                    flight.fail(exc);
+                    throw exc;
+                } finally {
+                    segment.endFlight(cacheTag, flight);
+                }
+            }
+
+            @Override
+            public void onCancel() {
+                flight.abandon();
+                segment.endFlight(cacheTag, flight);
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Promotes the response from disk or invokes the loader if it is not
+     * stored on disk (or not fresh any more).
+     */
+    private HttpCachingResponse load(final ScuttleModule handler,
+            final ResponseCacheSegment segment, final long cacheTag,
+            final Loader loader) throws Exception {
+        final long started = invalidations.get();
+        final String mountPoint = persistent.get(handler);
+        if (mountPoint != null) {
+            final HttpCachingResponse stored = disk.get(mountPoint, cacheTag);
+            if (stored != null
+                    && new CacheEntry(cacheTag, stored, 0)
+                            .isFresh(System.nanoTime())) {
+                populate(handler, cacheTag, stored, false, started);
+                return stored;
+            }
+        }
+        final long start = System.nanoTime();
+        final HttpCachingResponse response;
+        try {
+            response = loader.load();
+        } finally {
+            segment.loads.increment();
+            segment.loadNanos.add(System.nanoTime() - start);
+        }
+        if (response != null) {
+            populate(handler, cacheTag, response, true, started);
+        }
+        return response;
     }
 
     public void populate(final ScuttleModule handler, final long cacheTag,
             final HttpCachingResponse response) {
-        final ConcurrentMap<Long, CacheEntry> map = store.get(handler);
-        if (map != null) {
-            map.put(cacheTag, new CacheEntry(response));
+        populate(handler, cacheTag, response, true, invalidations.get());
+    }
+
+    /**
+     * @param started
+     *            The number of invalidations when the computation of the
+     *            response started. If entities have been written since, the
+     *            response might reflect their previous state. It is not
+     *            cached then if it depends on any of these entities.
+     */
+    private void populate(final ScuttleModule handler, final long cacheTag,
+            final HttpCachingResponse response, final boolean persist,
+            final long started) {
+        final ResponseCacheSegment segment = store.get(handler);
+        if (segment == null) {
+            return;
+        }
+        final boolean independent = response.getDependencies().isEmpty();
+        final String mountPoint = persistent.get(handler);
+        if (persist && independent && mountPoint != null) {
+            disk.put(mountPoint, cacheTag, response);
+        }
+        final CacheEntry entry = new CacheEntry(cacheTag, offHeap == null
+                ? response : response.moveOffHeap(offHeap));
+        if (!independent) {
+            // index the entry before checking for invalidations, such that
+            // an invalidation which is not noticed here will find it
+            dependencies.add(entry, segment);
+            if (invalidatedSince(started, response.getDependencies())) {
+                dependencies.remove(entry);
+                entry.get().release();
+                return;
+            }
         }
+        segment.put(entry);
+        enforceBudget();
+    }
+
+    /**
+     * Determine whether any of the given tags has been invalidated since the
+     * given number of invalidations. Invalidations which are not remembered
+     * (any more or yet) are assumed to affect the tags.
+     */
+    private boolean invalidatedSince(final long started,
+            final Set<String> tags) {
+        final long current = invalidations.get();
+        if (current - started > RECENT_INVALIDATIONS) {
+            return true;
+        }
+        for (long number = started + 1; number <= current; number++) {
+            final Set<String> invalidated = recentInvalidations.get(number);
+            if (invalidated == null
+                    || !Collections.disjoint(invalidated, tags)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Evicts entries from the modules that use the most memory until the
+     * global budget is met.
+     */
+    private void enforceBudget() {
+        while (bytes.get() > maxBytes) {
+            ResponseCacheSegment largest = null;
+            for (final ResponseCacheSegment segment : store.values()) {
+                if (largest == null || segment.bytes() > largest.bytes()) {
+                    largest = segment;
+                }
+            }
+            if (largest == null || !largest.evictOne()) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Retrieve the memory currently used by all cached responses.
+     *
+     * @return The size in bytes.
+     */
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    /**
+     * Retrieve the global memory budget.
+     *
+     * @return The budget in bytes.
+     */
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Retrieve the memory occupied by bodies stored off heap.
+     *
+     * @return The size in bytes, 0 if bodies are not stored off heap.
+     */
+    public long getOffHeapBytes() {
+        return offHeap == null ? 0 : offHeap.usedBytes();
+    }
+
+    /**
+     * Retrieve the memory allocated for storing bodies off heap.
+     *
+     * @return The size in bytes, 0 if bodies are not stored off heap.
+     */
+    public long getOffHeapAllocatedBytes() {
+        return offHeap == null ? 0 : offHeap.allocatedBytes();
+    }
+
+    /**
+     * Takes a snapshot of the statistics of every module.
+     *
+     * @return The statistics by mount point.
+     */
+    public Map<String, ResponseCacheStats> getStats() {
+        final Map<String, ResponseCacheStats> stats = new TreeMap<>();
+        for (final Entry<ScuttleModule, ResponseCacheSegment> entry : store
+                .entrySet()) {
+            final String name = names.get(entry.getKey());
+            stats.put(name, new ResponseCacheStats(name, entry.getValue()));
+        }
+        return stats;
+    }
+
+    /**
+     * Retrieve the number of responses stored on disk.
+     *
+     * @return The number of responses, 0 if responses are not stored on
+     *         disk.
+     */
+    public int getDiskSize() {
+        return disk == null ? 0 : disk.size();
+    }
+
+    /**
+     * Evicts the responses which depend on any of the given tags.
+     *
+     * @param tags
+     *            The tags of entities, see
+     *            {@link de.fu.mi.scuttle.lib.persistence.EntityTags}.
+     */
+    public void invalidate(final Collection<String> tags) {
+        final long number = invalidations.incrementAndGet();
+        recentInvalidations.put(number, Collections
+                .unmodifiableSet(new HashSet<>(tags)));
+        recentInvalidations.remove(number - RECENT_INVALIDATIONS);
+        for (final Entry<CacheEntry, ResponseCacheSegment> entry : dependencies
+                .removeAll(tags).entrySet()) {
+            entry.getValue().invalidate(entry.getKey());
+        }
+    }
+
+    /**
+     * Evicts the responses which depend on the changed entities.
+     */
+    @Override
+    public void entitiesChanged(final Set<String> tags) {
+        invalidate(tags);
     }
 
     public void evictAll() {
-        for (final ConcurrentMap<Long, CacheEntry> map : store
-                .values()) {
-            map.clear();
+        for (final ResponseCacheSegment segment : store.values()) {
+            segment.clear();
+        }
+        if (disk != null) {
+            disk.clearAll();
         }
     }
 
     public void evict(final ScuttleModule handler) {
-        final ConcurrentMap<Long, CacheEntry> map = store
-                .get(handler);
-        if (map != null) {
-            map.clear();
+        final ResponseCacheSegment segment = store.get(handler);
+        if (segment != null) {
+            segment.clear();
+        }
+        final String mountPoint = persistent.get(handler);
+        if (mountPoint != null) {
+            disk.clear(mountPoint);
+        }
+    }
+
+    /**
+     * Finishes writing responses to disk. The cache can not be used
+     * afterwards.
+     */
+    public void close() {
+        if (disk != null) {
+            disk.close();
         }
     }
 }
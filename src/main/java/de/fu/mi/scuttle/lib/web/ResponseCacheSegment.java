@@ -0,0 +1,366 @@
+package de.fu.mi.scuttle.lib.web;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+import de.fu.mi.scuttle.lib.util.concurrent.StripedCounter;
+import de.fu.mi.scuttle.lib.web.ResponseCache.CacheEntry;
+
+/**
+ * The cached responses of a single module, bounded by a quota in bytes.
+ *
+ * Entries are evicted in segmented LRU order: new entries enter a probation
+ * queue and are promoted to a protected queue (which takes up to 80% of the
+ * quota) once they are accessed again, such that a burst of one-time requests
+ * can not flush the popular entries.
+ *
+ * Reads do not touch the queues. They only record the accessed entry in a
+ * lossy ring buffer, which is drained under the eviction lock by writes or by
+ * a read that fills the buffer and finds the lock free. Hence reads never
+ * block.
+ *
+ * The segment holds a reference to the body of every entry (see
+ * {@link HttpCachingResponse#retain()}) which is released when the entry is
+ * removed. Removed entries are also removed from the index of dependencies.
+ *
+ * The segment also keeps the statistics of the module, see
+ * {@link ResponseCacheStats}. The counters which are updated by every request
+ * are striped, the others are only updated under the eviction lock.
+ */
+final class ResponseCacheSegment {
+
+    static final int NONE = 0;
+    static final int PROBATION = 1;
+    static final int PROTECTED = 2;
+
+    private static final int READ_BUFFER_SIZE = 128;
+    private static final int READ_BUFFER_MASK = READ_BUFFER_SIZE - 1;
+    private static final int DRAIN_THRESHOLD_MASK = 31;
+
+    /**
+     * An intrusive doubly linked list of entries, LRU first.
+     */
+    private static final class Queue {
+
+        private final CacheEntry head = new CacheEntry(0, null, 0);
+
+        Queue() {
+            head.prev = head;
+            head.next = head;
+        }
+
+        CacheEntry first() {
+            return head.next == head ? null : head.next;
+        }
+
+        void add(final CacheEntry entry) {
+            entry.prev = head.prev;
+            entry.next = head;
+            head.prev.next = entry;
+            head.prev = entry;
+        }
+
+        void remove(final CacheEntry entry) {
+            entry.prev.next = entry.next;
+            entry.next.prev = entry.prev;
+            entry.prev = null;
+            entry.next = null;
+        }
+
+        void clear() {
+            head.prev = head;
+            head.next = head;
+        }
+    }
+
+    private final ConcurrentMap<Long, CacheEntry> map = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<Long, ResponseCache.Flight> flights = new ConcurrentHashMap<>();
+
+    private final ReentrantLock evictionLock = new ReentrantLock();
+
+    private final AtomicReferenceArray<CacheEntry> readBuffer = new AtomicReferenceArray<>(
+            READ_BUFFER_SIZE);
+
+    private final AtomicInteger readIndex = new AtomicInteger();
+
+    private final Queue probation = new Queue();
+
+    private final Queue protectedQueue = new Queue();
+
+    /** Guarded by the eviction lock. */
+    private long protectedBytes = 0;
+
+    private final long maxBytes;
+
+    private final long maxProtectedBytes;
+
+    private final AtomicLong bytes = new AtomicLong();
+
+    private final AtomicLong totalBytes;
+
+    private final ResponseDependencies dependencies;
+
+    final StripedCounter hits = new StripedCounter();
+
+    final StripedCounter staleHits = new StripedCounter();
+
+    final StripedCounter misses = new StripedCounter();
+
+    final StripedCounter coalesced = new StripedCounter();
+
+    final StripedCounter loads = new StripedCounter();
+
+    final StripedCounter hitNanos = new StripedCounter();
+
+    final StripedCounter loadNanos = new StripedCounter();
+
+    private final AtomicLong populates = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    private final AtomicLong invalidations = new AtomicLong();
+
+    /**
+     * @param maxBytes
+     *            The quota of this segment.
+     * @param totalBytes
+     *            The counter of the bytes used by all segments.
+     * @param dependencies
+     *            The index of dependencies shared by all segments.
+     */
+    ResponseCacheSegment(final long maxBytes, final AtomicLong totalBytes,
+            final ResponseDependencies dependencies) {
+        this.maxBytes = maxBytes;
+        this.maxProtectedBytes = maxBytes / 5 * 4;
+        this.totalBytes = totalBytes;
+        this.dependencies = dependencies;
+    }
+
+    long bytes() {
+        return bytes.get();
+    }
+
+    int size() {
+        return map.size();
+    }
+
+    long maxBytes() {
+        return maxBytes;
+    }
+
+    long populates() {
+        return populates.get();
+    }
+
+    long evictions() {
+        return evictions.get();
+    }
+
+    long invalidations() {
+        return invalidations.get();
+    }
+
+    CacheEntry get(final long cacheTag) {
+        final CacheEntry entry = map.get(cacheTag);
+        if (entry != null) {
+            recordRead(entry);
+        }
+        return entry;
+    }
+
+    /**
+     * Registers the computation of a response.
+     * 
+     * @return The computation that is already in progress or null if the
+     *         given flight has been registered.
+     */
+    ResponseCache.Flight startFlight(final long cacheTag,
+            final ResponseCache.Flight flight) {
+        return flights.putIfAbsent(cacheTag, flight);
+    }
+
+    void endFlight(final long cacheTag, final ResponseCache.Flight flight) {
+        flights.remove(cacheTag, flight);
+    }
+
+    private void recordRead(final CacheEntry entry) {
+        final int index = readIndex.getAndIncrement();
+        readBuffer.lazySet(index & READ_BUFFER_MASK, entry);
+        if ((index & DRAIN_THRESHOLD_MASK) == DRAIN_THRESHOLD_MASK
+                && evictionLock.tryLock()) {
+            try {
+                drainReadBuffer();
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Adds an entry, replacing the entry with the same cache tag. Entries
+     * that are larger than the quota or that have been invalidated already
+     * are not cached at all.
+     */
+    void put(final CacheEntry entry) {
+        if (entry.weight > maxBytes) {
+            discard(entry);
+            return;
+        }
+        evictionLock.lock();
+        try {
+            if (entry.invalidated) {
+                discard(entry);
+                return;
+            }
+            drainReadBuffer();
+            final CacheEntry previous = map.put(entry.cacheTag, entry);
+            if (previous != null) {
+                unlink(previous);
+                discard(previous);
+            }
+            entry.queue = PROBATION;
+            probation.add(entry);
+            populates.incrementAndGet();
+            addBytes(entry.weight);
+            while (bytes.get() > maxBytes && evictVictim()) {
+                // evict until the quota is met
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Evicts the least valuable entry.
+     *
+     * @return Whether there was an entry to evict.
+     */
+    boolean evictOne() {
+        evictionLock.lock();
+        try {
+            drainReadBuffer();
+            return evictVictim();
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Removes an entry because something it depends on has changed. If the
+     * entry has not been added yet, it will not be added.
+     */
+    void invalidate(final CacheEntry entry) {
+        evictionLock.lock();
+        try {
+            entry.invalidated = true;
+            if (map.remove(entry.cacheTag, entry)) {
+                unlink(entry);
+                discard(entry);
+                invalidations.incrementAndGet();
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    void clear() {
+        evictionLock.lock();
+        try {
+            for (int i = 0; i < READ_BUFFER_SIZE; i++) {
+                readBuffer.lazySet(i, null);
+            }
+            for (final CacheEntry entry : map.values()) {
+                entry.queue = NONE;
+                discard(entry);
+            }
+            map.clear();
+            probation.clear();
+            protectedQueue.clear();
+            protectedBytes = 0;
+            addBytes(-bytes.get());
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    private boolean evictVictim() {
+        CacheEntry victim = probation.first();
+        if (victim == null) {
+            victim = protectedQueue.first();
+        }
+        if (victim == null) {
+            return false;
+        }
+        unlink(victim);
+        map.remove(victim.cacheTag, victim);
+        discard(victim);
+        evictions.incrementAndGet();
+        return true;
+    }
+
+    private void discard(final CacheEntry entry) {
+        if (!entry.get().getDependencies().isEmpty()) {
+            dependencies.remove(entry);
+        }
+        entry.get().release();
+    }
+
+    private void unlink(final CacheEntry entry) {
+        switch (entry.queue) {
+        case PROBATION:
+            probation.remove(entry);
+            break;
+        case PROTECTED:
+            protectedQueue.remove(entry);
+            protectedBytes -= entry.weight;
+            break;
+        default:
+            return;
+        }
+        entry.queue = NONE;
+        addBytes(-entry.weight);
+    }
+
+    private void addBytes(final long delta) {
+        bytes.addAndGet(delta);
+        totalBytes.addAndGet(delta);
+    }
+
+    private void drainReadBuffer() {
+        for (int i = 0; i < READ_BUFFER_SIZE; i++) {
+            final CacheEntry entry = readBuffer.getAndSet(i, null);
+            if (entry != null) {
+                onAccess(entry);
+            }
+        }
+    }
+
+    private void onAccess(final CacheEntry entry) {
+        switch (entry.queue) {
+        case PROBATION:
+            probation.remove(entry);
+            entry.queue = PROTECTED;
+            protectedQueue.add(entry);
+            protectedBytes += entry.weight;
+            while (protectedBytes > maxProtectedBytes) {
+                final CacheEntry demoted = protectedQueue.first();
+                protectedQueue.remove(demoted);
+                protectedBytes -= demoted.weight;
+                demoted.queue = PROBATION;
+                probation.add(demoted);
+            }
+            break;
+        case PROTECTED:
+            protectedQueue.remove(entry);
+            protectedQueue.add(entry);
+            break;
+        default:
+            // evicted in the meantime
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package de.fu.mi.scuttle.lib.web;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * A snapshot of the statistics of the cached responses of a single module,
+ * see {@link ResponseCache#getStats()}.
+ *
+ * The counters are totals since the cache was created. A miss is a request
+ * whose response was not in memory, it is either computed by the loader,
+ * promoted from disk or taken from a concurrent computation of the same
+ * response (in which case it is also counted as coalesced). Loads are the
+ * invocations of the loader, including background refreshes of stale
+ * responses. The counters are read one after another while requests go on,
+ * hence they may be slightly inconsistent with each other.
+ */
+public final class ResponseCacheStats {
+
+    private final String mountPoint;
+    private final int entries;
+    private final long bytes;
+    private final long maxBytes;
+    private final long hits;
+    private final long staleHits;
+    private final long misses;
+    private final long coalesced;
+    private final long loads;
+    private final long populates;
+    private final long evictions;
+    private final long invalidations;
+    private final long hitNanos;
+    private final long loadNanos;
+
+    ResponseCacheStats(final String mountPoint,
+            final ResponseCacheSegment segment) {
+        this.mountPoint = mountPoint;
+        this.entries = segment.size();
+        this.bytes = segment.bytes();
+        this.maxBytes = segment.maxBytes();
+        this.hits = segment.hits.sum();
+        this.staleHits = segment.staleHits.sum();
+        this.misses = segment.misses.sum();
+        this.coalesced = segment.coalesced.sum();
+        this.loads = segment.loads.sum();
+        this.populates = segment.populates();
+        this.evictions = segment.evictions();
+        this.invalidations = segment.invalidations();
+        this.hitNanos = segment.hitNanos.sum();
+        this.loadNanos = segment.loadNanos.sum();
+    }
+
+    public String getMountPoint() {
+        return mountPoint;
+    }
+
+    /**
+     * The number of responses currently cached.
+     */
+    public int getEntries() {
+        return entries;
+    }
+
+    /**
+     * The memory currently used by the cached responses, in bytes.
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * The quota of the module in bytes.
+     */
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * The number of requests served a fresh response from memory.
+     */
+    public long getHits() {
+        return hits;
+    }
+
+    /**
+     * The number of requests served a stale response from memory while it was
+     * being refreshed.
+     */
+    public long getStaleHits() {
+        return staleHits;
+    }
+
+    /**
+     * The number of requests whose response was not in memory.
+     */
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * The number of misses which waited for a concurrent computation of the
+     * same response.
+     */
+    public long getCoalesced() {
+        return coalesced;
+    }
+
+    /**
+     * The number of invocations of the loader.
+     */
+    public long getLoads() {
+        return loads;
+    }
+
+    /**
+     * The number of responses added to the cache.
+     */
+    public long getPopulates() {
+        return populates;
+    }
+
+    /**
+     * The number of responses evicted to meet the quota or the global
+     * budget.
+     */
+    public long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * The number of responses evicted because an entity they depend on was
+     * written.
+     */
+    public long getInvalidations() {
+        return invalidations;
+    }
+
+    /**
+     * The total time spent looking up the responses of hits, in nano
+     * seconds.
+     */
+    public long getHitNanos() {
+        return hitNanos;
+    }
+
+    /**
+     * The total time spent in the loader, in nano seconds.
+     */
+    public long getLoadNanos() {
+        return loadNanos;
+    }
+
+    /**
+     * The fraction of requests served from memory.
+     *
+     * @return The ratio or 0 if there were no requests.
+     */
+    public double getHitRatio() {
+        final long total = hits + staleHits + misses;
+        return total == 0 ? 0 : (double) (hits + staleHits) / total;
+    }
+
+    public JSONObject toJSON() throws JSONException {
+        final JSONObject json = new JSONObject();
+        json.put("entries", entries);
+        json.put("bytes", bytes);
+        json.put("maxBytes", maxBytes);
+        json.put("hits", hits);
+        json.put("staleHits", staleHits);
+        json.put("misses", misses);
+        json.put("coalesced", coalesced);
+        json.put("loads", loads);
+        json.put("populates", populates);
+        json.put("evictions", evictions);
+        json.put("invalidations", invalidations);
+        json.put("hitNanos", hitNanos);
+        json.put("loadNanos", loadNanos);
+        json.put("hitRatio", getHitRatio());
+        return json;
+    }
+}
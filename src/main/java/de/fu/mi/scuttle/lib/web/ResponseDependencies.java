@@ -0,0 +1,70 @@
+package de.fu.mi.scuttle.lib.web;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import de.fu.mi.scuttle.lib.web.ResponseCache.CacheEntry;
+
+/**
+ * The reverse index from the tags of entities to the cached responses which
+ * depend on them, see {@link HttpCachingResponse#getDependencies()}.
+ *
+ * Only entries which have dependencies are indexed. The index is maintained
+ * when entries are added and removed, which happens under the eviction lock
+ * of their segment, lookups of the cache do not touch it.
+ */
+final class ResponseDependencies {
+
+    /** Guarded by this. */
+    private final Map<String, Map<CacheEntry, ResponseCacheSegment>> dependents = new HashMap<>();
+
+    synchronized void add(final CacheEntry entry,
+            final ResponseCacheSegment segment) {
+        for (final String tag : entry.get().getDependencies()) {
+            Map<CacheEntry, ResponseCacheSegment> entries = dependents
+                    .get(tag);
+            if (entries == null) {
+                entries = new IdentityHashMap<>();
+                dependents.put(tag, entries);
+            }
+            entries.put(entry, segment);
+        }
+    }
+
+    synchronized void remove(final CacheEntry entry) {
+        for (final String tag : entry.get().getDependencies()) {
+            final Map<CacheEntry, ResponseCacheSegment> entries = dependents
+                    .get(tag);
+            if (entries != null) {
+                entries.remove(entry);
+                if (entries.isEmpty()) {
+                    dependents.remove(tag);
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes the entries which depend on any of the given tags from the
+     * index.
+     *
+     * @return The removed entries and their segments.
+     */
+    synchronized Map<CacheEntry, ResponseCacheSegment> removeAll(
+            final Collection<String> tags) {
+        final Map<CacheEntry, ResponseCacheSegment> removed = new IdentityHashMap<>();
+        for (final String tag : tags) {
+            final Map<CacheEntry, ResponseCacheSegment> entries = dependents
+                    .remove(tag);
+            if (entries != null) {
+                removed.putAll(entries);
+            }
+        }
+        for (final CacheEntry entry : removed.keySet()) {
+            remove(entry);
+        }
+        return removed;
+    }
+}
@@ -1,5 +1,7 @@
 package de.fu.mi.scuttle.lib.web;
 
+import java.util.List;
+
 import de.fu.mi.scuttle.lib.ScuttleModule;
 
 /**
@@ -33,6 +35,13 @@ public interface ScuttleRequest {
      */
     String getHeader(String name);
 
+    /**
+     * Retrieve the address of the client that sent this request.
+     * 
+     * @return The IP address of the client (or the last proxy).
+     */
+    String getRemoteAddress();
+
     /**
      * Return the string value of the named parameter.
      * 
@@ -65,10 +74,26 @@ public interface ScuttleRequest {
      *            The target type.
      * @return The value converted to the target type.
      * @throws ConversionException
-     *             If the conversion failed.
+     *             If the conversion failed or if there is no converter for
+     *             the target type, see {@link Converters}.
      */
     <T> T get(String name, Class<T> clazz) throws ConversionException;
 
+    /**
+     * Return the value of the named parameter as a list of comma separated
+     * values, like <code>?ids=1,2,3</code>.
+     * 
+     * @param name
+     *            The name of the parameter in the request.
+     * @param clazz
+     *            The type of the items.
+     * @return The converted items, an empty list if the parameter is not set.
+     * @throws ConversionException
+     *             If the conversion of any item failed.
+     */
+    <T> List<T> getList(String name, Class<T> clazz)
+            throws ConversionException;
+
     /**
      * Return the requested path relative to the handler.
      * 
@@ -82,7 +107,7 @@ public interface ScuttleRequest {
 
     /**
      * Check whether this requests was sent by a UA that accepts a gzipped
-     * response.
+     * response, see {@link ContentEncoding#acceptsGzip(String)}.
      * 
      * @return Whether it does or not.
      */
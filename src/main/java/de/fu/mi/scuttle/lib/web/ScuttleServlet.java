@@ -24,6 +24,10 @@ public interface ScuttleServlet extends DbProvider, ScuttleSimpleServlet {
      * Updates this servlets internal state while online, in a thread safe
      * manner.
      * 
+     * The updater works on a copy of the modules, the result is published
+     * atomically once the updater is done. Requests are never blocked by an
+     * update.
+     * 
      * @param updater
      *            The updater that will update the internal state.
      */
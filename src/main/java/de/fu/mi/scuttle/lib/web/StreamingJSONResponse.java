@@ -0,0 +1,112 @@
+package de.fu.mi.scuttle.lib.web;
+
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import org.json.JSONWriter;
+
+import com.google.common.base.Charsets;
+
+/**
+ * A JSON response which is written while it is produced, instead of being
+ * built as a {@link org.json.JSONObject} tree first (see {@link JSONResponse}).
+ *
+ * The module hands over a {@link Producer}, which is invoked when the response
+ * is written and writes the document through a {@link JSONWriter} right into
+ * the output stream. The memory needed by a request hence does not depend on
+ * the number of rows, as long as the rows are not collected beforehand, for
+ * example when they are read from a cursor:
+ *
+ * <pre>
+ * final CursoredStream cursor = (CursoredStream) db()
+ *         .createQuery("SELECT c FROM Course c")
+ *         .setHint(QueryHints.CURSOR, HintValues.TRUE)
+ *         .setHint(QueryHints.READ_ONLY, HintValues.TRUE).getSingleResult();
+ * return new StreamingJSONResponse(new StreamingJSONResponse.Producer() {
+ *     public void write(final JSONWriter json) throws Exception {
+ *         json.object().key("courses").array();
+ *         try {
+ *             while (cursor.hasNext()) {
+ *                 final Course course = (Course) cursor.next();
+ *                 json.object().key("id").value(course.getUuid())
+ *                         .key("title").value(course.getTitle()).endObject();
+ *                 cursor.releasePrevious();
+ *             }
+ *         } finally {
+ *             cursor.close();
+ *         }
+ *         json.endArray().endObject();
+ *     }
+ * });
+ * </pre>
+ *
+ * The producer runs after the module has returned the response, but before
+ * the entity manager of the request is closed. Once the first bytes have been
+ * sent, an exception can not be turned into an error response anymore, the
+ * client receives a truncated document then.
+ *
+ * If the response of the module is cached, it is written into the cache
+ * once and served from there, see {@link HttpCachingResponse}.
+ */
+public class StreamingJSONResponse implements ScuttleResponse {
+
+    /**
+     * Writes the JSON document of a {@link StreamingJSONResponse}.
+     */
+    public interface Producer {
+
+        /**
+         * Writes the document, which must be a single object or array.
+         *
+         * @param json
+         *            The writer, which writes to the response.
+         * @throws Exception
+         *             Anything might happen.
+         */
+        void write(JSONWriter json) throws Exception;
+    }
+
+    private final Producer producer;
+
+    private final boolean gzip;
+
+    public StreamingJSONResponse(final Producer producer) {
+        this(producer, false);
+    }
+
+    /**
+     * @param producer
+     *            Writes the document.
+     * @param gzip
+     *            Whether the document is compressed (if the client accepts
+     *            gzip).
+     */
+    public StreamingJSONResponse(final Producer producer, final boolean gzip) {
+        this.producer = producer;
+        this.gzip = gzip;
+    }
+
+    @Override
+    public void doResponse(
+            final boolean gzipSupported,
+            final ScuttleServletResponse resp) throws Exception {
+        final boolean gzip = this.gzip && gzipSupported;
+        resp.setCharacterEncoding("UTF-8");
+        resp.setHeader("Content-Type", "application/json; charset=UTF-8");
+        final Writer w = gzip ?
+                new OutputStreamWriter(
+                        ContentEncoding.gzip(resp, "application/json"),
+                        Charsets.UTF_8) : resp.getWriter();
+        try {
+            producer.write(new JSONWriter(w));
+        } finally {
+            if (gzip) {
+                // writes the trailer of the gzip stream (or the body if it
+                // is too small to be compressed)
+                w.close();
+            } else {
+                w.flush();
+            }
+        }
+    }
+}
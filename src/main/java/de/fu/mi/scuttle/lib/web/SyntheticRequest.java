@@ -0,0 +1,186 @@
+package de.fu.mi.scuttle.lib.web;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A request which does not originate from a client, such as a warm-up request
+ * (see {@link WarmUp}). It is an anonymous GET request from the local host
+ * which accepts gzip and has a session of its own.
+ */
+public class SyntheticRequest implements ScuttleRequest {
+
+    private final String path;
+
+    private final Map<String, String> parameters;
+
+    private final ScuttleSession session = new ScuttleSession() {
+
+        private final Map<String, Object> values = new ConcurrentHashMap<>();
+
+        @Override
+        public String getString(final String key) {
+            final Object value = values.get(key);
+            return value == null ? null : value.toString();
+        }
+
+        @Override
+        public Object get(final String key) {
+            return values.get(key);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T> T get(final String key, final T defaultValue) {
+            final Object value = values.get(key);
+            return value == null ? defaultValue : (T) value;
+        }
+
+        @Override
+        public void put(final String key, final Object value) {
+            if (value == null) {
+                values.remove(key);
+            } else {
+                values.put(key, value);
+            }
+        }
+
+        @Override
+        public void clear() {
+            values.clear();
+        }
+
+        @Override
+        public void remove(final String key) {
+            values.remove(key);
+        }
+    };
+
+    /**
+     * @param path
+     *            The path below the mount point of the module.
+     * @param parameters
+     *            The parameters.
+     */
+    public SyntheticRequest(final String path,
+            final Map<String, String> parameters) {
+        this.path = path;
+        this.parameters = Collections
+                .unmodifiableMap(new HashMap<>(parameters));
+    }
+
+    /**
+     * Creates a request from a path and a query string, such as
+     * <code>list?semester=current&amp;full=true</code>. The parameters are
+     * URL decoded.
+     *
+     * @param pathAndQuery
+     *            The path below the mount point of the module, optionally
+     *            followed by a question mark and a query string.
+     * @return The request.
+     */
+    public static SyntheticRequest parse(final String pathAndQuery) {
+        final int question = pathAndQuery.indexOf('?');
+        if (question < 0) {
+            return new SyntheticRequest(pathAndQuery,
+                    Collections.<String, String> emptyMap());
+        }
+        final Map<String, String> parameters = new HashMap<>();
+        for (final String pair : pathAndQuery.substring(question + 1).split(
+                "&")) {
+            if (pair.isEmpty()) {
+                continue;
+            }
+            final int equals = pair.indexOf('=');
+            final String name = decode(equals < 0 ? pair : pair.substring(0,
+                    equals));
+            if (!parameters.containsKey(name)) {
+                // the first value counts, like for a http request
+                parameters.put(name, equals < 0 ? "" : decode(pair
+                        .substring(equals + 1)));
+            }
+        }
+        return new SyntheticRequest(pathAndQuery.substring(0, question),
+                parameters);
+    }
+
+    private static String decode(final String value) {
+        try {
+            return URLDecoder.decode(value, "UTF-8");
+        } catch (final UnsupportedEncodingException exc) {
+            throw new RuntimeException(exc);
+        }
+    }
+
+    @Override
+    public boolean isNull(final String name) {
+        return parameters.get(name) == null;
+    }
+
+    @Override
+    public String getHeader(final String name) {
+        return "Accept-Encoding".equalsIgnoreCase(name) ? "gzip" : null;
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return "127.0.0.1";
+    }
+
+    @Override
+    public String get(final String name) {
+        return parameters.get(name);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T get(final String name, final T defaultValue) {
+        final String value = parameters.get(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Converters.convert(value,
+                    (Class<T>) defaultValue.getClass());
+        } catch (final ConversionException exc) {
+            return defaultValue;
+        }
+    }
+
+    @Override
+    public <T> T get(final String name, final Class<T> clazz)
+            throws ConversionException {
+        return Converters.convert(parameters.get(name), clazz);
+    }
+
+    @Override
+    public <T> List<T> getList(final String name, final Class<T> clazz)
+            throws ConversionException {
+        return Converters.convertList(parameters.get(name), clazz);
+    }
+
+    @Override
+    public String getPath() {
+        return path;
+    }
+
+    @Override
+    public boolean acceptsGzip() {
+        return true;
+    }
+
+    @Override
+    public ScuttleSession getSession() {
+        return session;
+    }
+
+    @Override
+    public RequestMethod getRequestMethod() {
+        return RequestMethod.GET;
+    }
+}
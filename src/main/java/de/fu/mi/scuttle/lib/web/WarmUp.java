@@ -0,0 +1,37 @@
+package de.fu.mi.scuttle.lib.web;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+import de.fu.mi.scuttle.lib.ScuttleModule;
+
+/**
+ * Declares requests for a {@link ScuttleModule} whose responses are put into
+ * the {@link ResponseCache} right after startup, such that the first users do
+ * not have to wait for them to be computed.
+ *
+ * Every value is a path below the mount point of the module, optionally
+ * followed by a query string, see {@link SyntheticRequest#parse(String)}. The
+ * requests are anonymous GET requests. Requests whose cache tag is 0 are not
+ * cached and hence skipped, so are requests which require a login.
+ *
+ * <pre>
+ * &#064;WarmUp({ "", "list?semester=current" })
+ * </pre>
+ *
+ * Requests which can only be determined at runtime can be declared by
+ * implementing {@link WarmUpProvider}.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface WarmUp {
+
+    /**
+     * @return The paths and query strings of the requests.
+     */
+    String[] value();
+}
@@ -0,0 +1,22 @@
+package de.fu.mi.scuttle.lib.web;
+
+import java.util.Collection;
+
+/**
+ * Implemented by modules which determine their warm-up requests at runtime,
+ * see {@link WarmUp}.
+ */
+public interface WarmUpProvider {
+
+    /**
+     * Retrieve the requests whose responses are to be cached after startup.
+     * Invoked once, on a background thread, after all modules have been
+     * loaded.
+     *
+     * @return The requests, see {@link SyntheticRequest}.
+     * @throws Exception
+     *             If the requests can not be determined, the module is not
+     *             warmed up then.
+     */
+    Collection<? extends ScuttleRequest> warmUpRequests() throws Exception;
+}